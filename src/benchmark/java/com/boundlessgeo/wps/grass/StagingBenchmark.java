@@ -0,0 +1,81 @@
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Staging throughput: GeoTIFF staging (used with r.in.gdal) against raw binary staging
+ * (used with r.in.bin).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StagingBenchmark {
+
+	/** DEM file, or sfdem.tiff from the test resources */
+	@Param("sfdem.tiff")
+	public String dem;
+
+	/** Factor used to upsample the DEM */
+	@Param({ "1", "4" })
+	public int scale;
+
+	private File directory;
+	private GeoTiffReader reader;
+	private GridCoverage2D coverage;
+
+	@Setup
+	public void setup() throws Exception {
+		directory = Files.createTempDirectory("staging").toFile();
+		reader = new GeoTiffFormat().getReader(StandIn.dem(directory, dem, scale));
+		coverage = reader.read(null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		coverage.dispose(true);
+		reader.dispose();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Benchmark
+	public long geotiff() throws Exception {
+		GrassProcesses.Stage stage = new GrassProcesses.Stage(coverage, directory);
+		try {
+			return stage.call().length();
+		} finally {
+			stage.cleanup();
+		}
+	}
+
+	@Benchmark
+	public long binary() throws Exception {
+		GrassProcesses.Stage stage = new GrassProcesses.Stage(coverage, directory);
+		try {
+			return stage.raw().file.length();
+		} finally {
+			stage.cleanup();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.data.util.IOUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+
+/**
+ * Stand-in GRASS toolchain used to benchmark without GRASS installed.
+ * <p>
+ * The grass70, r.in.gdal, r.viewshed and r.out.gdal scripts (see the standin resources)
+ * create locations and copy rasters between the staged file, the mapset and the output
+ * file. Each script sleeps for the number of seconds recorded in a {@code <name>.delay}
+ * file next to it, used to simulate computation. Only the import exchange is supported.
+ */
+class StandIn {
+    static final String[] MODULES = { "r.in.gdal", "r.viewshed", "r.out.gdal" };
+
+    /** GISBASE directory, holding grass70 and bin */
+    final File directory;
+
+    StandIn(File directory) throws IOException {
+        this.directory = directory;
+        install("grass70", exec());
+        for (String module : MODULES) {
+            install("bin/" + module, new File(bin(), module));
+        }
+    }
+
+    private static void install(String resource, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        InputStream script = StandIn.class.getResourceAsStream("standin/" + resource);
+        if (script == null) {
+            throw new IOException("Stand-in " + resource + " not found");
+        }
+        IOUtils.copy(script, file);
+        file.setExecutable(true);
+    }
+
+    /** Stand-in grass70 executable */
+    File exec() {
+        return new File(directory, "grass70");
+    }
+
+    /** Stand-in module directory */
+    File bin() {
+        return new File(directory, "bin");
+    }
+
+    /**
+     * Simulate computation time for module.
+     *
+     * @param module grass70 or module name
+     * @param seconds time to sleep, 0 for none
+     */
+    void delay(String module, String seconds) throws IOException {
+        File script = "grass70".equals(module) ? exec() : new File(bin(), module);
+        File delay = new File(script.getParentFile(), module + ".delay");
+        if (Double.parseDouble(seconds) > 0) {
+            FileUtils.writeStringToFile(delay, seconds);
+        } else {
+            FileUtils.deleteQuietly(delay);
+        }
+    }
+
+    /**
+     * Configure GrassProcesses to use the stand-in toolchain, with locations kept in workspace.
+     * Properties are read when GrassProcesses is first created.
+     */
+    void configure(File workspace) {
+        System.setProperty("GRASS", exec().getPath());
+        System.setProperty("GRASS_MODULES", bin().getPath());
+        System.setProperty("GRASS_LOCATIONS", new File(workspace, "locations").getPath());
+        System.setProperty("GRASS_RESULTS", new File(workspace, "results").getPath());
+    }
+
+    /**
+     * DEM used for benchmarks, upsampled by scale to obtain larger rasters.
+     *
+     * @param directory directory used for the DEM file
+     * @param dem DEM file, or sfdem.tiff for the test DEM
+     * @param scale upsampling factor, 1 for the DEM as is
+     * @return GeoTIFF file
+     */
+    static File dem(File directory, String dem, int scale) throws IOException {
+        File file = new File(dem);
+        if (!file.exists()) {
+            file = new File(directory, dem);
+            InputStream resource = StandIn.class.getResourceAsStream(dem);
+            if (resource == null) {
+                throw new IOException("DEM " + dem + " not found");
+            }
+            IOUtils.copy(resource, file);
+        }
+        if (scale == 1) {
+            return file;
+        }
+        GeoTiffReader reader = new GeoTiffFormat().getReader(file);
+        try {
+            GridCoverage2D coverage = reader.read(null);
+            GridCoverage2D scaled = (GridCoverage2D) Operations.DEFAULT.scale(coverage, scale, scale, 0, 0);
+            File output = new File(directory, "dem" + scale + ".tif");
+            GeoTiffWriter writer = new GeoTiffWriter(output);
+            try {
+                writer.write(scaled, null);
+            } finally {
+                writer.dispose();
+                scaled.dispose(true);
+                coverage.dispose(true);
+            }
+            return output;
+        } finally {
+            reader.dispose();
+        }
+    }
+}
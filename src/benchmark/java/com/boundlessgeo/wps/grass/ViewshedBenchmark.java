@@ -0,0 +1,111 @@
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.geometry.Envelope2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Viewshed request overhead and concurrency scaling, using the {@link StandIn} toolchain.
+ * <p>
+ * With no delay the time measured is the overhead of staging, location checkout, module
+ * execution and reading the result. A delay simulates r.viewshed computation, showing how
+ * requests are scheduled (see GRASS_MAX_JOBS) as the number of threads increases. The GRASS
+ * engine is used by default, as the in-process engine would otherwise be chosen for these DEMs;
+ * run with {@code -p engine=java} to compare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ViewshedBenchmark {
+
+	/** DEM file, or sfdem.tiff from the test resources */
+	@Param("sfdem.tiff")
+	public String dem;
+
+	/** Factor used to upsample the DEM */
+	@Param({ "1", "4" })
+	public int scale;
+
+	/** Seconds the r.viewshed stand-in sleeps */
+	@Param("0")
+	public String delay;
+
+	/** GRASS_VIEWSHED_ENGINE */
+	@Param("grass")
+	public String engine;
+
+	/** GRASS_CACHE_SIZE, 0 to stage and import the DEM for every request */
+	@Param({ "0", "1073741824" })
+	public String cache;
+
+	private File directory;
+	private GeoTiffReader reader;
+	private GridCoverage2D coverage;
+	private double x;
+	private double y;
+
+	@Setup
+	public void setup() throws Exception {
+		directory = Files.createTempDirectory("benchmark").toFile();
+		StandIn grass = new StandIn(new File(directory, "grass"));
+		grass.delay("r.viewshed", delay);
+		grass.configure(directory);
+		System.setProperty("GRASS_VIEWSHED_ENGINE", engine);
+		System.setProperty("GRASS_CACHE_SIZE", cache);
+		System.setProperty("GRASS_RESULT_CACHE_SIZE", "0");
+		new GrassProcesses();
+
+		reader = new GeoTiffFormat().getReader(StandIn.dem(directory, dem, scale));
+		coverage = reader.read(null);
+		Envelope2D bounds = coverage.getEnvelope2D();
+		x = bounds.getCenterX();
+		y = bounds.getCenterY();
+	}
+
+	@TearDown
+	public void tearDown() {
+		coverage.dispose(true);
+		reader.dispose();
+		GrassProcesses.POOL.clear();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void viewshed() throws Exception {
+		request();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void viewshedConcurrent() throws Exception {
+		request();
+	}
+
+	private void request() throws Exception {
+		// disposing the result removes its scratch directory
+		GrassProcesses.viewshed(coverage, x, y, null, null, null, null, null, null).dispose(true);
+	}
+}
@@ -0,0 +1,141 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Result of a batch viewshed: the number of observers each cell is visible from, or the
+ * viewshed of each observer as a band.
+ * <p>
+ * Viewsheds are added one at a time as they complete, a tile at a time for images, so only
+ * the result (and not every viewshed) is held in memory. The result itself is held in memory,
+ * and is limited by GRASS_BATCH_MEMORY.
+ */
+class BatchResult {
+    private final int cols;
+
+    private final int rows;
+
+    /** Visibility count, when cumulative */
+    private final int[] counts;
+
+    /** Viewshed of each observer, when producing bands */
+    private final float[][] bands;
+
+    BatchResult(int cols, int rows, int observers, boolean bands) {
+        this.cols = cols;
+        this.rows = rows;
+        if (bands) {
+            this.counts = null;
+            this.bands = new float[observers][];
+        } else {
+            this.counts = new int[cols * rows];
+            this.bands = null;
+        }
+    }
+
+    /**
+     * Memory required for a result.
+     *
+     * @param cols columns
+     * @param rows rows
+     * @param observers number of observers
+     * @param bands true for a band per observer, false for a visibility count
+     * @return bytes
+     */
+    static long bytes(int cols, int rows, int observers, boolean bands) {
+        return 4L * cols * rows * (bands ? observers : 1);
+    }
+
+    /**
+     * Add viewshed of an observer.
+     *
+     * @param index observer index
+     * @param viewshed cell values by row, NaN for cells not visible
+     */
+    synchronized void add(int index, float[] viewshed) {
+        if (counts != null) {
+            for (int i = 0; i < viewshed.length; i++) {
+                if (!Float.isNaN(viewshed[i])) {
+                    counts[i]++;
+                }
+            }
+        } else {
+            bands[index] = viewshed;
+        }
+    }
+
+    /**
+     * Add viewshed of an observer, reading image a tile at a time.
+     *
+     * @param index observer index
+     * @param viewshed image covering the result grid
+     * @param nodata value of cells not visible, in addition to NaN
+     */
+    synchronized void add(int index, RenderedImage viewshed, float nodata) {
+        float[] band = null;
+        if (bands != null) {
+            band = new float[cols * rows];
+            Arrays.fill(band, Float.NaN);
+            bands[index] = band;
+        }
+        float[] samples = null;
+        for (int ty = viewshed.getMinTileY(); ty < viewshed.getMinTileY() + viewshed.getNumYTiles(); ty++) {
+            for (int tx = viewshed.getMinTileX(); tx < viewshed.getMinTileX() + viewshed.getNumXTiles(); tx++) {
+                Raster tile = viewshed.getTile(tx, ty);
+                Rectangle area = tile.getBounds().intersection(new Rectangle(viewshed.getMinX(),
+                        viewshed.getMinY(), Math.min(viewshed.getWidth(), cols), Math.min(viewshed.getHeight(), rows)));
+                if (area.isEmpty()) {
+                    continue;
+                }
+                if (samples == null || samples.length < area.width * area.height) {
+                    samples = new float[area.width * area.height];
+                }
+                samples = tile.getSamples(area.x, area.y, area.width, area.height, 0, samples);
+                for (int r = 0; r < area.height; r++) {
+                    int offset = (area.y - viewshed.getMinY() + r) * cols + area.x - viewshed.getMinX();
+                    for (int c = 0; c < area.width; c++) {
+                        float value = samples[r * area.width + c];
+                        if (Float.isNaN(value) || value == nodata) {
+                            continue;
+                        }
+                        if (counts != null) {
+                            counts[offset + c]++;
+                        } else {
+                            band[offset + c] = value;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Result raster: a single integer band of counts, or a float band for each observer.
+     */
+    synchronized WritableRaster raster() {
+        if (counts != null) {
+            return Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_INT, cols, rows, 1),
+                    new DataBufferInt(counts, counts.length), null);
+        }
+        for (int i = 0; i < bands.length; i++) {
+            if (bands[i] == null) {
+                bands[i] = new float[cols * rows];
+                Arrays.fill(bands[i], Float.NaN);
+            }
+        }
+        return Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, cols, rows, bands.length),
+                new DataBufferFloat(bands, cols * rows), null);
+    }
+}
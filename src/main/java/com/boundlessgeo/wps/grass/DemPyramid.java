@@ -0,0 +1,211 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Coarse overview levels of DEMs, used for fast preview runs.
+ * <p>
+ * Each level has cells a power of two larger than the DEM, holding the average of the DEM
+ * cells it covers (ignoring no data, as r.resamp.stats method=average), with NaN for no
+ * data. Levels are built once and kept in memory, keyed by DEM fingerprint (see
+ * {@link RasterCache#fingerprint(GridCoverage2D)}), within a memory budget; least recently
+ * used levels are removed when the budget is exceeded.
+ */
+class DemPyramid {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Memory budget in bytes */
+    final long budget;
+
+    /** Levels in least recently used order */
+    private final LinkedHashMap<String, GridCoverage2D> levels = new LinkedHashMap<String, GridCoverage2D>(16,
+            0.75f, true);
+
+    /** Locks used to ensure a level is only built once */
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    /** Total size of levels */
+    private long size;
+
+    DemPyramid(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Level of dem for a preview at resolution, the coarsest with cells no larger than resolution.
+     *
+     * @param dem digital elevation model
+     * @param resolution preview cell size in map units, or null for full resolution
+     * @return dem at full resolution, or an overview level
+     * @throws TransformException if the level could not be georeferenced
+     */
+    GridCoverage2D level(GridCoverage2D dem, Double resolution) throws TransformException {
+        int factor = resolution == null ? 1 : factor(dem, resolution);
+        if (factor == 1) {
+            return dem;
+        }
+        String key = RasterCache.fingerprint(dem) + "/" + factor;
+        Object created = new Object();
+        Object existing = locks.putIfAbsent(key, created);
+        Object lock = existing != null ? existing : created;
+        boolean cached = false;
+        try {
+            synchronized (lock) {
+                synchronized (this) {
+                    GridCoverage2D level = levels.get(key);
+                    if (level != null) {
+                        cached = true;
+                        return level;
+                    }
+                }
+                GridCoverage2D level;
+                try (GrassMetrics.Timer timer = GrassProcesses.METRICS.time("pyramid")) {
+                    level = build(dem, factor);
+                }
+                LOGGER.info("DEM level " + key + " built");
+                cached = budget > 0 && add(key, level);
+                return level;
+            }
+        } finally {
+            if (!cached) {
+                // level not kept, so neither is its lock
+                locks.remove(key, lock);
+            }
+        }
+    }
+
+    /**
+     * Add level, evicting least recently used levels to stay within budget.
+     *
+     * @return true if added, false if the level is larger than the budget
+     */
+    private synchronized boolean add(String key, GridCoverage2D level) {
+        long bytes = size(level);
+        if (bytes > budget) {
+            return false;
+        }
+        levels.put(key, level);
+        size += bytes;
+        for (Iterator<Map.Entry<String, GridCoverage2D>> i = levels.entrySet().iterator(); i.hasNext()
+                && size > budget;) {
+            Map.Entry<String, GridCoverage2D> entry = i.next();
+            if (!entry.getKey().equals(key)) {
+                LOGGER.fine("DEM level " + entry.getKey() + " evicted");
+                size -= size(entry.getValue());
+                i.remove();
+                locks.remove(entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    private static long size(GridCoverage2D level) {
+        RenderedImage image = level.getRenderedImage();
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Factor by which cells of dem are enlarged for a preview at resolution: the largest power of
+     * two keeping cells no larger than resolution, and leaving at least one cell.
+     *
+     * @param dem digital elevation model
+     * @param resolution preview cell size in map units
+     * @return factor, 1 for full resolution
+     */
+    static int factor(GridCoverage2D dem, double resolution) {
+        GridGeometry2D grid = dem.getGridGeometry();
+        GridEnvelope2D range = grid.getGridRange2D();
+        Envelope2D bounds = grid.getEnvelope2D();
+        double cell = Math.max(bounds.getWidth() / range.width, bounds.getHeight() / range.height);
+        int factor = 1;
+        while (cell * factor * 2 <= resolution && factor * 2 <= Math.max(range.width, range.height)) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Average blocks of factor by factor cells of the first band of dem.
+     *
+     * @param dem digital elevation model
+     * @param factor block size in cells
+     * @return level, covering dem (cells at the right and bottom edges may extend beyond it)
+     * @throws TransformException if the level could not be georeferenced
+     */
+    static GridCoverage2D build(GridCoverage2D dem, int factor) throws TransformException {
+        GridGeometry2D grid = dem.getGridGeometry();
+        GridEnvelope2D range = grid.getGridRange2D();
+        int cols = (range.width + factor - 1) / factor;
+        int rows = (range.height + factor - 1) / factor;
+        float nodata = JavaViewshed.nodata(dem);
+
+        float[] averages = new float[cols * rows];
+        RenderedImage image = dem.getRenderedImage();
+        for (int row = 0; row < rows; row++) {
+            // strip of factor rows of dem
+            int height = Math.min(factor, range.height - row * factor);
+            Raster strip = image.getData(new Rectangle(image.getMinX(), image.getMinY() + row * factor,
+                    range.width, height));
+            float[] z = strip.getSamples(strip.getMinX(), strip.getMinY(), range.width, height, 0, (float[]) null);
+            double[] sums = new double[cols];
+            int[] counts = new int[cols];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < range.width; x++) {
+                    float value = z[y * range.width + x];
+                    if (!Float.isNaN(value) && value != nodata) {
+                        sums[x / factor] += value;
+                        counts[x / factor]++;
+                    }
+                }
+            }
+            for (int col = 0; col < cols; col++) {
+                averages[row * cols + col] = counts[col] == 0 ? Float.NaN : (float) (sums[col] / counts[col]);
+            }
+        }
+        DataBufferFloat buffer = new DataBufferFloat(averages, averages.length);
+        WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_FLOAT, cols, rows, 1), buffer, null);
+        Envelope2D envelope = grid.gridToWorld(new GridEnvelope2D(range.x, range.y, cols * factor, rows * factor));
+        return new GridCoverageFactory().create(dem.getName() + "_" + factor, raster, envelope);
+    }
+
+    /** Memory used by levels, in bytes */
+    synchronized long size() {
+        return size;
+    }
+
+    /** Number of levels */
+    synchronized int count() {
+        return levels.size();
+    }
+
+    /** Remove all levels */
+    synchronized void clear() {
+        levels.clear();
+        locks.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,411 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import static java.io.File.pathSeparator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.exec.environment.EnvironmentUtils;
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Capabilities of the GRASS installation, probed once in the background and cached for use
+ * by requests.
+ * <p>
+ * A probe runs {@code grass70 -v} for the version and lists the executables in the module
+ * directory. Requests wait for the first probe to complete, and then look modules up without
+ * touching the filesystem. Module interface descriptions are read on first use and cached.
+ * The catalog is published through JMX as {@value #NAME}, where {@link #refresh()} probes
+ * the installation again.
+ */
+public class GrassCatalog implements GrassCatalogMXBean {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** JMX object name */
+    static final String NAME = "com.boundlessgeo.wps.grass:type=GrassCatalog";
+
+    /** GRASS_VERSION used until the version has been probed */
+    static final String DEFAULT_VERSION = "7.0.0";
+
+    /** Time allowed for each probing command, in milliseconds */
+    static final long TIMEOUT = 60000;
+
+    private static final Pattern VERSION = Pattern.compile("(\\d+\\.\\d+\\.\\d+)");
+
+    /** GRASS executable, or null if not available */
+    final String exec;
+
+    /** Module directory, or null if not available */
+    final String bin;
+
+    /** Directory holding the location used to describe modules */
+    private final File directory;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentHashMap<String, String> descriptions = new ConcurrentHashMap<String, String>();
+
+    private volatile Snapshot current;
+
+    private Future<Snapshot> probe;
+
+    GrassCatalog(String exec, String bin, File directory) {
+        this.exec = exec;
+        this.bin = bin;
+        this.directory = directory;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GRASS catalog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Capabilities found by a probe */
+    static final class Snapshot {
+        /** Output of grass70 -v, or the reason it is unavailable */
+        final String version;
+
+        /** Module executables by name */
+        final Map<String, File> modules;
+
+        /** Time of the probe */
+        final long probed;
+
+        /** Environment for the probed version, built when first needed */
+        volatile Map<String, String> environment;
+
+        Snapshot(String version, Map<String, File> modules, long probed) {
+            this.version = version;
+            this.modules = Collections.unmodifiableMap(modules);
+            this.probed = probed;
+        }
+    }
+
+    /**
+     * Check if catalog describes the given installation.
+     *
+     * @param exec GRASS executable
+     * @param bin module directory
+     * @return true if the catalog was created for exec and bin
+     */
+    boolean matches(String exec, String bin) {
+        return (exec == null ? this.exec == null : exec.equals(this.exec))
+                && (bin == null ? this.bin == null : bin.equals(this.bin));
+    }
+
+    @Override
+    public synchronized void refresh() {
+        probe = executor.submit(new Callable<Snapshot>() {
+            @Override
+            public Snapshot call() {
+                Snapshot snapshot = probe();
+                current = snapshot;
+                descriptions.clear();
+                LOGGER.info("GRASS catalog: " + snapshot.modules.size() + " modules in " + bin);
+                return snapshot;
+            }
+        });
+    }
+
+    /**
+     * Capabilities of the installation, waiting for the first probe if needed.
+     *
+     * @return snapshot
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = current;
+        return snapshot != null ? snapshot : await();
+    }
+
+    /**
+     * Wait for the latest probe to complete.
+     *
+     * @return snapshot
+     */
+    Snapshot await() {
+        Future<Snapshot> pending;
+        synchronized (this) {
+            if (probe == null) {
+                refresh();
+            }
+            pending = probe;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for GRASS catalog");
+        } catch (ExecutionException failed) {
+            throw new IllegalStateException("GRASS catalog unavailable: " + failed.getCause(), failed.getCause());
+        }
+    }
+
+    /**
+     * Probe version and modules of the installation.
+     *
+     * @return snapshot
+     */
+    Snapshot probe() {
+        Map<String, File> modules = new TreeMap<String, File>();
+        File[] files = bin != null ? new File(bin).listFiles() : null;
+        if (files == null) {
+            LOGGER.warning("GRASS modules unavailable in " + bin);
+        } else {
+            for (File file : files) {
+                String name = file.getName();
+                if (GrassProcesses.SYSTEM == GrassProcesses.Env.WINDOWS) {
+                    // .bat wrappers are preferred to .exe
+                    String module = name.length() > 4 ? name.substring(0, name.length() - 4) : name;
+                    if (name.endsWith(".bat")) {
+                        modules.put(module, file);
+                    } else if (name.endsWith(".exe") && !modules.containsKey(module)) {
+                        modules.put(module, file);
+                    }
+                } else if (file.isFile() && file.canExecute()) {
+                    modules.put(name, file);
+                }
+            }
+        }
+        String version = exec != null ? version(exec) : "unavailable";
+        return new Snapshot(version, modules, System.currentTimeMillis());
+    }
+
+    /**
+     * Version reported by grass70 -v.
+     *
+     * @param exec GRASS executable
+     * @return version output, or the reason it is unavailable
+     */
+    static String version(String exec) {
+        CommandLine cmd = new CommandLine(exec);
+        cmd.addArgument("-v");
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            run(cmd, null, output, output);
+            return output.toString();
+        } catch (ExecuteException huh) {
+            return "exit code: " + huh.getExitValue() + " (" + huh.getMessage() + ")";
+        } catch (IOException e) {
+            return "unavailable: " + e.getClass().getSimpleName() + ":" + e.getMessage();
+        }
+    }
+
+    private static void run(CommandLine cmd, Map<String, String> env, OutputStream output, OutputStream errors)
+            throws IOException {
+        DefaultExecutor executor = new DefaultExecutor();
+        executor.setExitValue(0);
+        executor.setWatchdog(new ExecuteWatchdog(TIMEOUT));
+        executor.setStreamHandler(new PumpStreamHandler(output, errors));
+        LOGGER.info("exec: " + cmd.toString());
+        executor.execute(cmd, env);
+    }
+
+    /**
+     * Executable of module.
+     *
+     * @param name module name, such as r.viewshed
+     * @return executable file
+     * @throws IllegalStateException if the module is not available
+     */
+    File module(String name) {
+        File file = snapshot().modules.get(name);
+        if (file == null) {
+            throw new IllegalStateException(name + " not found:" + new File(String.valueOf(bin), name));
+        }
+        return file;
+    }
+
+    /**
+     * Environment variables for GRASS operation, shared by all jobs (everything except GISRC).
+     * Kept with the snapshot, so the environment always matches the probed version.
+     *
+     * @return environment, not to be modified
+     * @throws IOException if the process environment is not available
+     */
+    Map<String, String> environment() throws IOException {
+        Snapshot snapshot = snapshot();
+        Map<String, String> env = snapshot.environment;
+        if (env == null) {
+            env = Collections.unmodifiableMap(environment(exec, grassVersion(snapshot.version)));
+            snapshot.environment = env;
+        }
+        return env;
+    }
+
+    /**
+     * Environment variables for GRASS operation.
+     *
+     * @param exec GRASS executable, located in GISBASE
+     * @param version GRASS_VERSION
+     * @return environment
+     * @throws IOException if the process environment is not available
+     */
+    static Map<String, String> environment(String exec, String version) throws IOException {
+        Map<String, String> env = EnvironmentUtils.getProcEnvironment();
+        // GRASS ENV
+        File GISBASE = new File(exec).getParentFile();
+        EnvironmentUtils.addVariableToEnvironment(env, "GISBASE="+GISBASE);
+        EnvironmentUtils.addVariableToEnvironment(env, "GRASS_VERSION="+version);
+        // machine readable messages, including GRASS_INFO_PERCENT progress (see GrassJob)
+        EnvironmentUtils.addVariableToEnvironment(env, "GRASS_MESSAGE_FORMAT=gui");
+
+        // SYSTEM ENV
+        String bin = new File(GISBASE,"bin").getAbsolutePath();
+        String scripts = new File(GISBASE,"scripts").getAbsolutePath();
+        String lib = new File(GISBASE,"lib").getAbsolutePath();
+        if (GrassProcesses.SYSTEM == GrassProcesses.Env.WINDOWS) {
+            String PATH = env.get("PATH") + pathSeparator + bin + pathSeparator + scripts + pathSeparator + lib;
+            EnvironmentUtils.addVariableToEnvironment(env, "PATH=" + PATH);
+        } else {
+            String PATH = env.get("PATH") + pathSeparator + bin + pathSeparator + scripts;
+            EnvironmentUtils.addVariableToEnvironment(env, "PATH=" + PATH);
+            if (GrassProcesses.SYSTEM == GrassProcesses.Env.LINUX) {
+                String LD_LIBRARY_PATH = (env.containsKey("LD_LIBRARY_PATH")
+                        ? env.get("LD_LIBRARY_PATH") + pathSeparator : "") + lib;
+                EnvironmentUtils.addVariableToEnvironment(env, "LD_LIBRARY_PATH=" + LD_LIBRARY_PATH);
+            } else if (GrassProcesses.SYSTEM == GrassProcesses.Env.MAC) {
+                String DYLD_LIBRARY_PATH = (env.containsKey("DYLD_LIBRARY_PATH")
+                        ? env.get("DYLD_LIBRARY_PATH") + pathSeparator : "") + lib;
+                EnvironmentUtils.addVariableToEnvironment(env, "DYLD_LIBRARY_PATH=" + DYLD_LIBRARY_PATH);
+            }
+        }
+        return env;
+    }
+
+    /**
+     * GRASS_VERSION from the output of grass70 -v.
+     *
+     * @param version version output, or null if not yet probed
+     * @return version number such as 7.0.0, or {@link #DEFAULT_VERSION}
+     */
+    static String grassVersion(String version) {
+        Matcher matcher = VERSION.matcher(version != null ? version : "");
+        return matcher.find() ? matcher.group(1) : DEFAULT_VERSION;
+    }
+
+    @Override
+    public String describe(String module) {
+        String description = descriptions.get(module);
+        if (description == null) {
+            try {
+                description = interfaceDescription(module);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to describe " + module + ": " + e.getMessage(), e);
+            }
+            String existing = descriptions.putIfAbsent(module, description);
+            if (existing != null) {
+                description = existing;
+            }
+        }
+        return description;
+    }
+
+    private String interfaceDescription(String module) throws Exception {
+        File executable = module(module);
+        File location = location();
+        File scratch = Files.createTempDirectory(directory.toPath(), "describe").toFile();
+        try {
+            Map<String, String> env = GrassProcesses.customEnv(scratch, directory, location,
+                    new File(location, "PERMANENT"));
+            CommandLine cmd = new CommandLine(executable);
+            cmd.addArgument("--interface-description");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            run(cmd, env, output, new ByteArrayOutputStream());
+            return output.toString("UTF-8");
+        } finally {
+            FileUtils.deleteQuietly(scratch);
+        }
+    }
+
+    /** Location used to run modules for their description, created on first use */
+    private synchronized File location() throws Exception {
+        File location = new File(directory, "catalog");
+        if (!new File(location, "PERMANENT").exists()) {
+            directory.mkdirs();
+            FileUtils.deleteQuietly(location);
+            GrassProcesses.location(location, "EPSG:4326");
+        }
+        return location;
+    }
+
+    @Override
+    public String getExecutable() {
+        return exec;
+    }
+
+    @Override
+    public String getModuleDirectory() {
+        return bin;
+    }
+
+    @Override
+    public String getVersion() {
+        Snapshot snapshot = current;
+        return snapshot != null ? snapshot.version : null;
+    }
+
+    @Override
+    public String[] getModules() {
+        Snapshot snapshot = current;
+        return snapshot != null ? snapshot.modules.keySet().toArray(new String[0]) : new String[0];
+    }
+
+    @Override
+    public long getProbed() {
+        Snapshot snapshot = current;
+        return snapshot != null ? snapshot.probed : 0;
+    }
+
+    /** Register with the platform MBean server, replacing a catalog registered earlier */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to register " + NAME, e);
+        }
+    }
+
+    /** Stop probing */
+    void close() {
+        executor.shutdown();
+    }
+}
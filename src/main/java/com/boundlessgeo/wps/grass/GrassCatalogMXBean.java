@@ -0,0 +1,39 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+/**
+ * Management interface for the GRASS capability catalog, published as
+ * {@value GrassCatalog#NAME}.
+ */
+public interface GrassCatalogMXBean {
+
+    /** GRASS executable */
+    String getExecutable();
+
+    /** Module directory */
+    String getModuleDirectory();
+
+    /** Version reported by the GRASS executable, or null until probed */
+    String getVersion();
+
+    /** Names of the modules available, empty until probed */
+    String[] getModules();
+
+    /** Time of the last completed probe in milliseconds since the epoch, or 0 */
+    long getProbed();
+
+    /**
+     * Interface description of a module (output of {@code --interface-description}), cached
+     * until the catalog is refreshed.
+     *
+     * @param module module name, such as r.viewshed
+     * @return XML interface description
+     */
+    String describe(String module);
+
+    /** Probe the GRASS installation again in the background, such as after an upgrade */
+    void refresh();
+}
@@ -0,0 +1,38 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.exec.CommandLine;
+
+/**
+ * Runs GRASS module commands on behalf of {@link GrassProcesses#execute(CommandLine, Map, File)},
+ * which takes care of scheduling, metrics and logging.
+ * <p>
+ * Implementations run commands in this JVM ({@link LocalExecutor}) or send them to worker
+ * daemons ({@link RemoteExecutor}). Rasters are exchanged through files, so all commands of a
+ * job must see the same scratch and location directories. Executors hold nothing beyond the
+ * commands they are running (each remote command has its own connection), so an executor can
+ * be replaced without being closed.
+ */
+interface GrassExecutor {
+
+    /**
+     * Run command, waiting for it to finish.
+     *
+     * @param cmd module command line
+     * @param env environment from {@link GrassProcesses#customEnv(File, File, File, File)}, or
+     *        null to inherit the environment
+     * @param directory working directory, or null
+     * @param task receives module output, and is given the process to kill on timeout or cancel
+     * @return exit value
+     * @throws org.apache.commons.exec.ExecuteException if the module failed or was killed
+     * @throws IOException if the module could not be run
+     */
+    int execute(CommandLine cmd, Map<String, String> env, File directory, GrassJob.Task task) throws IOException;
+}
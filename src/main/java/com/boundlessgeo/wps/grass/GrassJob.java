@@ -0,0 +1,452 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.exec.ExecuteException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.util.logging.Logging;
+import org.opengis.util.ProgressListener;
+
+/**
+ * GRASS modules run for a process request, sharing its scratch directory.
+ * <p>
+ * Modules are run with GRASS_MESSAGE_FORMAT=gui, and their percent messages are reported to
+ * the {@link ProgressListener} of the request. A watcher thread kills a module, along with its
+ * child processes, once it exceeds its timeout or the request has been cancelled (WPS cancel or
+ * dismiss), so the process fails promptly and its scratch directory is removed.
+ * <p>
+ * Jobs are looked up by scratch directory, which holds the GISRC file of each module
+ * environment (see {@link #of(Map)}).
+ */
+class GrassJob {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Interval in milliseconds at which running modules are checked */
+    static final long WATCH_INTERVAL = 500;
+
+    /** Default module timeout in milliseconds, when not scaled by raster size */
+    static final long TIMEOUT = 60000;
+
+    /** GRASS_MESSAGE_FORMAT=gui message, such as GRASS_INFO_WARNING(1234,2): text */
+    private static final Pattern MESSAGE = Pattern.compile("GRASS_INFO_([A-Z]+)(\\(\\d+,\\d+\\))?:? ?(.*)");
+
+    /** Jobs by scratch directory */
+    private static final Map<File, GrassJob> JOBS = new ConcurrentHashMap<File, GrassJob>();
+
+    /** Modules running, for all jobs */
+    private static final Set<Task> RUNNING = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+
+    private static ScheduledExecutorService watcher;
+
+    /** Scratch directory of the job */
+    final File scratch;
+
+    /** Progress listener of the request, or null */
+    final ProgressListener listener;
+
+    /** Timeout for each module in milliseconds */
+    final long timeout;
+
+    /** Expected number of modules run */
+    private int steps;
+
+    /** Modules completed */
+    private int completed;
+
+    /** Modules running */
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    /** Progress last reported */
+    private float reported;
+
+    private volatile boolean cancelled;
+
+    private GrassJob(File scratch, ProgressListener listener, long timeout, int steps) {
+        this.scratch = scratch;
+        this.listener = listener;
+        this.timeout = timeout;
+        this.steps = steps;
+    }
+
+    /**
+     * Start job in scratch directory, to be finished when the process completes.
+     *
+     * @param scratch scratch directory from {@link ScratchSpace#create(long)}
+     * @param listener progress listener of the request, or null
+     * @param timeout timeout for each module in milliseconds
+     * @param steps expected number of modules run, used to scale progress
+     * @return job
+     */
+    static GrassJob start(File scratch, ProgressListener listener, long timeout, int steps) {
+        GrassJob job = new GrassJob(scratch, listener, timeout, steps);
+        JOBS.put(scratch, job);
+        watch();
+        return job;
+    }
+
+    /**
+     * Job running modules with environment.
+     *
+     * @param env environment from {@link GrassProcesses#customEnv(File, File, File, File)}, or null
+     * @return job, or null if not run for a process request
+     */
+    static GrassJob of(Map<String, String> env) {
+        String gisrc = env == null ? null : env.get("GISRC");
+        return gisrc == null ? null : JOBS.get(new File(gisrc).getParentFile());
+    }
+
+    /**
+     * Module timeout for process, scaled by the size of the raster processed.
+     * <p>
+     * The timeout is GRASS_TIMEOUT plus GRASS_TIMEOUT_CELLS for each million cells, each of which
+     * can be given for a process, for example GRASS_TIMEOUT_viewshed.
+     *
+     * @param process process name
+     * @param coverage raster processed, or null
+     * @return timeout in milliseconds
+     */
+    static long timeout(String process, GridCoverage2D coverage) {
+        long timeout = GrassProcesses.property("GRASS_TIMEOUT_" + process,
+                GrassProcesses.property("GRASS_TIMEOUT", TIMEOUT));
+        long perCells = GrassProcesses.property("GRASS_TIMEOUT_CELLS_" + process,
+                GrassProcesses.property("GRASS_TIMEOUT_CELLS", TIMEOUT));
+        if (coverage != null) {
+            GridEnvelope2D range = coverage.getGridGeometry().getGridRange2D();
+            timeout += (long) range.width * range.height * perCells / 1000000;
+        }
+        return timeout;
+    }
+
+    /** Process complete, no longer tracking its modules */
+    void finish() {
+        JOBS.remove(scratch);
+    }
+
+    /** Increase expected number of modules run */
+    synchronized void steps(int count) {
+        steps += count;
+    }
+
+    /** True if the request has been cancelled or dismissed */
+    boolean isCancelled() {
+        if (!cancelled && listener != null) {
+            try {
+                cancelled = listener.isCanceled();
+            } catch (RuntimeException dismissed) {
+                cancelled = true;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Check request has not been cancelled before running a module.
+     *
+     * @param module module name
+     * @throws InterruptedIOException if the request has been cancelled or dismissed
+     */
+    void check(String module) throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException(module + " cancelled");
+        }
+    }
+
+    /**
+     * Module run for job, or for no job if null, parsing progress from its output.
+     *
+     * @param job job, or null
+     * @param module module name
+     * @param output stream receiving module output, without progress messages
+     * @return task, to be closed when the module has finished
+     */
+    static Task task(GrassJob job, String module, OutputStream output) {
+        long timeout = job == null ? GrassProcesses.property("GRASS_TIMEOUT", TIMEOUT) : job.timeout;
+        Task task = new Task(job, module, output, timeout);
+        if (job != null) {
+            synchronized (job) {
+                job.tasks.add(task);
+            }
+        }
+        RUNNING.add(task);
+        watch();
+        return task;
+    }
+
+    /** Report progress of completed and running modules to the listener */
+    private void report() {
+        float progress;
+        synchronized (this) {
+            float done = completed;
+            for (Task task : tasks) {
+                done += task.percent / 100f;
+            }
+            int expected = Math.max(steps, completed + tasks.size());
+            progress = Math.min(99f, 100f * done / Math.max(expected, 1));
+            if (progress <= reported) {
+                return;
+            }
+            reported = progress;
+        }
+        try {
+            listener.progress(progress);
+        } catch (RuntimeException dismissed) {
+            cancelled = true;
+        }
+    }
+
+    private static synchronized void watch() {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GRASS job watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to check GRASS jobs", e);
+                }
+            }
+        }, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Report progress, and kill modules which have timed out or whose request was cancelled.
+     *
+     * @param now current time
+     */
+    static void check(long now) {
+        for (Task task : RUNNING) {
+            if (task.job != null && task.job.isCancelled()) {
+                task.kill("cancelled");
+            } else if (now > task.deadline) {
+                task.kill("timed out after " + task.timeout + "ms");
+            }
+        }
+        for (GrassJob job : JOBS.values()) {
+            if (job.listener != null) {
+                job.report();
+            }
+        }
+    }
+
+    /**
+     * Kill process and its descendants (found using /proc where available).
+     *
+     * @param process process to kill
+     */
+    static void kill(Process process) {
+        Long pid = GrassMetrics.pid(process);
+        List<Long> descendants = pid == null ? new ArrayList<Long>() : descendants(pid, new File("/proc"));
+        if (!descendants.isEmpty()) {
+            List<String> command = new ArrayList<String>();
+            command.add("kill");
+            command.add("-KILL");
+            for (Long child : descendants) {
+                command.add(child.toString());
+            }
+            try {
+                new ProcessBuilder(command).redirectErrorStream(true).start().waitFor();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to kill " + descendants, e);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        process.destroy();
+    }
+
+    /**
+     * Descendants of process, using the parent pid from /proc/[pid]/stat.
+     *
+     * @param pid process id
+     * @param proc /proc directory
+     * @return descendant process ids, empty if unavailable
+     */
+    static List<Long> descendants(long pid, File proc) {
+        Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+        File[] files = proc.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().matches("\\d+")) {
+                    continue;
+                }
+                try {
+                    String stat = new String(Files.readAllBytes(new File(file, "stat").toPath()),
+                            StandardCharsets.UTF_8);
+                    // pid (comm) state ppid ..., comm may contain spaces
+                    String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                    Long parent = Long.valueOf(fields[1]);
+                    if (!children.containsKey(parent)) {
+                        children.put(parent, new ArrayList<Long>());
+                    }
+                    children.get(parent).add(Long.valueOf(file.getName()));
+                } catch (IOException | RuntimeException exited) {
+                    // process finished while listing
+                }
+            }
+        }
+        List<Long> descendants = new ArrayList<Long>();
+        List<Long> pending = new ArrayList<Long>();
+        pending.add(pid);
+        while (!pending.isEmpty()) {
+            List<Long> found = children.get(pending.remove(pending.size() - 1));
+            if (found != null) {
+                descendants.addAll(found);
+                pending.addAll(found);
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Module killed because it timed out, rather than failing on its own account.
+     */
+    static class Killed extends ExecuteException {
+        private static final long serialVersionUID = 1L;
+
+        Killed(String message, int exitValue, Throwable cause) {
+            super(message, exitValue, cause);
+        }
+    }
+
+    /**
+     * Module run by a job, receiving its output to parse progress messages.
+     */
+    static class Task extends OutputStream {
+        final GrassJob job;
+        final String module;
+        final long timeout;
+        final long deadline;
+        private final OutputStream output;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private Process process;
+        /** Reason the module was killed, or null */
+        private volatile String killed;
+        volatile int percent;
+
+        Task(GrassJob job, String module, OutputStream output, long timeout) {
+            this.job = job;
+            this.module = module;
+            this.output = output;
+            this.timeout = timeout;
+            this.deadline = System.currentTimeMillis() + timeout;
+        }
+
+        /**
+         * Module process launched, to be killed if the module times out or is cancelled.
+         *
+         * @param process module process, or the shell session running it
+         */
+        synchronized void started(Process process) {
+            this.process = process;
+            if (killed != null) {
+                GrassJob.kill(process);
+            }
+        }
+
+        synchronized void kill(String reason) {
+            if (killed != null) {
+                return;
+            }
+            killed = reason;
+            LOGGER.info(module + " " + reason + ", killing process");
+            if (process != null) {
+                GrassJob.kill(process);
+            }
+        }
+
+        /** Reason the module was killed, or null if it was not killed */
+        String killed() {
+            return killed;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                line(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        /** Parse message, passing on everything except progress */
+        private void line(String text) throws IOException {
+            Matcher matcher = MESSAGE.matcher(text.trim());
+            if (!matcher.matches()) {
+                output.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String type = matcher.group(1);
+            if ("PERCENT".equals(type)) {
+                try {
+                    percent = Math.max(0, Math.min(100, Integer.parseInt(matcher.group(3).trim())));
+                } catch (NumberFormatException ignore) {
+                    // not a percentage
+                }
+            } else if (!"END".equals(type)) {
+                String message = "MESSAGE".equals(type) ? matcher.group(3) : type + ": " + matcher.group(3);
+                output.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /** Module finished */
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.size() > 0) {
+                line(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                line.reset();
+            }
+            RUNNING.remove(this);
+            if (job != null) {
+                synchronized (job) {
+                    if (job.tasks.remove(this)) {
+                        job.completed++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Timing and resource metrics for GRASS processes, published through JMX.
+ * <p>
+ * Each stage of a process (staging, location creation, module execution, result read and
+ * cleanup) records its latency in a histogram. Module processes are sampled from
+ * {@code /proc} while running to record peak resident memory and CPU time.
+ */
+public class GrassMetrics implements GrassMetricsMXBean {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** JMX object name */
+    static final String NAME = "com.boundlessgeo.wps.grass:type=GrassMetrics";
+
+    /** Upper bound of histogram buckets in milliseconds */
+    static final long[] BOUNDS = { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000, Long.MAX_VALUE };
+
+    /** Interval between /proc samples in milliseconds */
+    static final long SAMPLE_INTERVAL = 100;
+
+    /** Clock ticks per second used by /proc/[pid]/stat */
+    private static final long CLOCK_TICKS = 100;
+
+    private final ConcurrentHashMap<String, Latency> stages = new ConcurrentHashMap<String, Latency>();
+
+    private final ConcurrentHashMap<String, Usage> processes = new ConcurrentHashMap<String, Usage>();
+
+    private final ConcurrentHashMap<String, AtomicLong> exits = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong staged = new AtomicLong();
+
+    private ScheduledExecutorService sampler;
+
+    GrassMetrics() {
+    }
+
+    /** Register with the platform MBean server */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to register " + NAME, e);
+        }
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @param stage stage name
+     * @return timer, recording the stage latency when closed
+     */
+    Timer time(String stage) {
+        return new Timer(stage);
+    }
+
+    /**
+     * Record latency of a stage.
+     *
+     * @param stage stage name
+     * @param nanos elapsed time in nanoseconds
+     */
+    void record(String stage, long nanos) {
+        Latency latency = stages.get(stage);
+        if (latency == null) {
+            Latency created = new Latency();
+            latency = stages.putIfAbsent(stage, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        latency.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /** Record bytes staged to disk */
+    void staged(long bytes) {
+        staged.addAndGet(bytes);
+    }
+
+    /** Record module exit code */
+    void exit(String module, int code) {
+        String key = module + ":" + code;
+        AtomicLong count = exits.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = exits.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Sample resource use of a module process until closed.
+     *
+     * @param module module name
+     * @param process module process
+     * @return sample, to be closed when the process has finished
+     */
+    Sample sample(String module, Process process) {
+        Long pid = pid(process);
+        File proc = pid == null ? null : new File("/proc", pid.toString());
+        Sample sample = new Sample(module, proc != null && proc.isDirectory() ? proc : null);
+        if (sample.proc != null) {
+            sample.future = sampler().scheduleAtFixedRate(sample, 0, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return sample;
+    }
+
+    private synchronized ScheduledExecutorService sampler() {
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GRASS process sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sampler;
+    }
+
+    /**
+     * Process id, using Process.pid() when available or the pid field of UNIXProcess.
+     */
+    static Long pid(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).longValue();
+        } catch (Exception unavailable) {
+            // Java 8 and earlier
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (Exception unavailable) {
+            return null;
+        }
+    }
+
+    @Override
+    public long[] getHistogramBounds() {
+        return BOUNDS.clone();
+    }
+
+    @Override
+    public Map<String, Latency> getStages() {
+        return new TreeMap<String, Latency>(stages);
+    }
+
+    @Override
+    public Map<String, Usage> getProcesses() {
+        return new TreeMap<String, Usage>(processes);
+    }
+
+    @Override
+    public Map<String, Long> getExitCodes() {
+        Map<String, Long> codes = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : exits.entrySet()) {
+            codes.put(entry.getKey(), entry.getValue().get());
+        }
+        return codes;
+    }
+
+    @Override
+    public long getBytesStaged() {
+        return staged.get();
+    }
+
+    @Override
+    public int getQueueWaiting() {
+        return GrassProcesses.SCHEDULER == null ? 0 : GrassProcesses.SCHEDULER.waiting();
+    }
+
+    @Override
+    public long getResultCacheHits() {
+        return GrassProcesses.RESULTS == null ? 0 : GrassProcesses.RESULTS.hits.get();
+    }
+
+    @Override
+    public long getResultCacheMisses() {
+        return GrassProcesses.RESULTS == null ? 0 : GrassProcesses.RESULTS.misses.get();
+    }
+
+    @Override
+    public long getResultCacheSize() {
+        return GrassProcesses.RESULTS == null ? 0 : GrassProcesses.RESULTS.size();
+    }
+
+    @Override
+    public long getRasterCacheSize() {
+        return GrassProcesses.CACHE == null ? 0 : GrassProcesses.CACHE.size();
+    }
+
+    @Override
+    public int getLocations() {
+        return GrassProcesses.POOL == null ? 0 : GrassProcesses.POOL.count();
+    }
+
+    @Override
+    public int getRasterHandles() {
+        return GrassProcesses.HANDLES == null ? 0 : GrassProcesses.HANDLES.count();
+    }
+
+    @Override
+    public void reset() {
+        stages.clear();
+        processes.clear();
+        exits.clear();
+        staged.set(0);
+    }
+
+    /** Times a stage, recording latency when closed */
+    class Timer implements Closeable {
+        private final String stage;
+        private final long start = System.nanoTime();
+
+        Timer(String stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void close() {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /** Latency histogram for a stage */
+    public static class Latency {
+        private long count;
+        private long total;
+        private long max;
+        private final long[] buckets = new long[BOUNDS.length];
+
+        synchronized void add(long millis) {
+            count++;
+            total += millis;
+            max = Math.max(max, millis);
+            for (int i = 0; i < BOUNDS.length; i++) {
+                if (millis <= BOUNDS[i]) {
+                    buckets[i]++;
+                    break;
+                }
+            }
+        }
+
+        /** Number of times the stage completed */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /** Total time in milliseconds */
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        /** Longest time in milliseconds */
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /** Mean time in milliseconds */
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /** Count of each histogram bucket, see {@link GrassMetricsMXBean#getHistogramBounds()} */
+        public synchronized long[] getHistogram() {
+            return buckets.clone();
+        }
+    }
+
+    /** Resource use of a module */
+    public static class Usage {
+        private long count;
+        private long peakMemory;
+        private long cpu;
+
+        synchronized void add(long memory, long cpu) {
+            count++;
+            peakMemory = Math.max(peakMemory, memory);
+            this.cpu += cpu;
+        }
+
+        /** Number of processes sampled */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /** Largest peak resident memory (VmHWM) of a process in kB */
+        public synchronized long getPeakMemory() {
+            return peakMemory;
+        }
+
+        /** Total CPU time (user and system) in milliseconds */
+        public synchronized long getCpu() {
+            return cpu;
+        }
+    }
+
+    /** Samples /proc/[pid] while a module process runs */
+    class Sample implements Runnable, Closeable {
+        private final String module;
+        private final File proc;
+        private ScheduledFuture<?> future;
+        private volatile long memory;
+        private volatile long cpu;
+
+        Sample(String module, File proc) {
+            this.module = module;
+            this.proc = proc;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (String line : Files.readAllLines(new File(proc, "status").toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) {
+                        memory = Math.max(memory, Long.parseLong(line.substring(6).replace("kB", "").trim()));
+                    }
+                }
+                String stat = new String(Files.readAllBytes(new File(proc, "stat").toPath()), StandardCharsets.UTF_8);
+                // fields following the command name, starting with state (field 3)
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+                cpu = ticks * 1000 / CLOCK_TICKS;
+            } catch (IOException | RuntimeException finished) {
+                // process has exited
+            }
+        }
+
+        @Override
+        public void close() {
+            if (future != null) {
+                future.cancel(false);
+                Usage usage = processes.get(module);
+                if (usage == null) {
+                    Usage created = new Usage();
+                    usage = processes.putIfAbsent(module, created);
+                    if (usage == null) {
+                        usage = created;
+                    }
+                }
+                usage.add(memory, cpu);
+            }
+        }
+    }
+}
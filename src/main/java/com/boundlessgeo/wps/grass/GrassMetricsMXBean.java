@@ -0,0 +1,56 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.util.Map;
+
+/**
+ * Management interface for GRASS process metrics, published as
+ * {@value GrassMetrics#NAME}.
+ */
+public interface GrassMetricsMXBean {
+
+    /** Upper bound (in milliseconds) of each latency histogram bucket */
+    long[] getHistogramBounds();
+
+    /**
+     * Latency by stage: staging, location, read, cleanup, queue (time waiting for a job slot)
+     * and each module executed (such as r.viewshed).
+     */
+    Map<String, GrassMetrics.Latency> getStages();
+
+    /** Resource use of module processes, sampled from /proc where available */
+    Map<String, GrassMetrics.Usage> getProcesses();
+
+    /** Number of module executions by module and exit code (such as r.viewshed:0) */
+    Map<String, Long> getExitCodes();
+
+    /** Total bytes of coverages staged to disk for GRASS */
+    long getBytesStaged();
+
+    /** Number of jobs waiting for a slot */
+    int getQueueWaiting();
+
+    /** Viewshed results served from the result cache */
+    long getResultCacheHits();
+
+    /** Viewshed results computed */
+    long getResultCacheMisses();
+
+    /** Size of the result cache in bytes */
+    long getResultCacheSize();
+
+    /** Size of the raster cache in bytes */
+    long getRasterCacheSize();
+
+    /** Number of pooled locations */
+    int getLocations();
+
+    /** Number of raster handles kept */
+    int getRasterHandles();
+
+    /** Clear collected metrics */
+    void reset();
+}
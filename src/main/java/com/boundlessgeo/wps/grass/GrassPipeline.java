@@ -0,0 +1,310 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Chain of GRASS modules described in XML, published as a WPS process by
+ * {@link GrassPipelineFactory}.
+ * <p>
+ * Raster inputs are staged and imported once, each step runs in the same mapset (so
+ * intermediate rasters stay in GRASS format) and each output raster is exported once:
+ *
+ * <pre>
+ * &lt;pipelines&gt;
+ *   &lt;pipeline name="terrain" title="Terrain" description="Slope and shaded relief"&gt;
+ *     &lt;input name="dem" type="raster" description="digital elevation model"/&gt;
+ *     &lt;input name="zscale" type="double" default="1" description="vertical exaggeration"/&gt;
+ *     &lt;step module="r.slope.aspect"&gt;
+ *       &lt;arg&gt;elevation=${dem}&lt;/arg&gt;
+ *       &lt;arg&gt;slope=slope&lt;/arg&gt;
+ *     &lt;/step&gt;
+ *     &lt;step module="r.relief"&gt;
+ *       &lt;arg&gt;input=${dem}&lt;/arg&gt;
+ *       &lt;arg&gt;output=relief&lt;/arg&gt;
+ *       &lt;arg&gt;zscale=${zscale}&lt;/arg&gt;
+ *     &lt;/step&gt;
+ *     &lt;output name="slope" raster="slope" description="slope in degrees"/&gt;
+ *     &lt;output name="relief" raster="relief" description="shaded relief"/&gt;
+ *   &lt;/pipeline&gt;
+ * &lt;/pipelines&gt;
+ * </pre>
+ *
+ * Arguments refer to inputs as <code>${name}</code>; raster inputs are replaced by the name of
+ * the imported raster. Arguments referring to an optional input which has not been provided
+ * (and has no default) are left out. Input types are raster, double, integer and string.
+ * <p>
+ * Each raster input may instead be provided as a raster handle (see {@link RasterHandles})
+ * using the input name followed by {@value #HANDLE}, and outputs are returned as handles
+ * when {@value #HANDLES} is true.
+ */
+class GrassPipeline {
+    /** GRASS raster and process parameter names */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+    /** GRASS module names, such as r.slope.aspect */
+    private static final Pattern MODULE = Pattern.compile("[a-z0-9]+(\\.[a-z0-9_]+)+");
+
+    /** Suffix of the optional parameter providing a raster input as a handle, such as dem_handle */
+    static final String HANDLE = "_handle";
+
+    /** Parameter requesting outputs be returned as raster handles */
+    static final String HANDLES = "handles";
+
+    private static final Pattern REFERENCE = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    final String name;
+
+    final String title;
+
+    final String description;
+
+    final List<Input> inputs = new ArrayList<Input>();
+
+    final List<Step> steps = new ArrayList<Step>();
+
+    final List<Output> outputs = new ArrayList<Output>();
+
+    GrassPipeline(String name, String title, String description) {
+        this.name = name;
+        this.title = title;
+        this.description = description;
+    }
+
+    /** Input parameter */
+    static class Input {
+        final String name;
+        final Class<?> type;
+        final String description;
+        /** Default value, or null */
+        final Object defaultValue;
+        final boolean required;
+
+        Input(String name, Class<?> type, String description, Object defaultValue, boolean required) {
+            this.name = name;
+            this.type = type;
+            this.description = description;
+            this.defaultValue = defaultValue;
+            this.required = required;
+        }
+
+        boolean isRaster() {
+            return type == GridCoverage2D.class;
+        }
+    }
+
+    /** GRASS module invocation */
+    static class Step {
+        final String module;
+        final List<String> args;
+
+        Step(String module, List<String> args) {
+            this.module = module;
+            this.args = args;
+        }
+    }
+
+    /** Raster exported as a result */
+    static class Output {
+        final String name;
+        final String raster;
+        final String description;
+
+        Output(String name, String raster, String description) {
+            this.name = name;
+            this.raster = raster;
+            this.description = description;
+        }
+    }
+
+    /**
+     * Input of the pipeline.
+     *
+     * @param name input name
+     * @return input, or null if not defined
+     */
+    Input input(String name) {
+        for (Input input : inputs) {
+            if (input.name.equals(name)) {
+                return input;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Arguments of step, leaving out arguments which refer to inputs without a value.
+     *
+     * @param step pipeline step
+     * @param defined names of inputs with a value
+     * @return arguments, with references to be substituted
+     */
+    List<String> arguments(Step step, Set<String> defined) {
+        List<String> args = new ArrayList<String>();
+        for (String arg : step.args) {
+            boolean available = true;
+            Matcher matcher = REFERENCE.matcher(arg);
+            while (matcher.find()) {
+                available &= defined.contains(matcher.group(1));
+            }
+            if (available) {
+                args.add(arg);
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Parse pipeline descriptors.
+     *
+     * @param xml pipelines document
+     * @return pipelines defined
+     * @throws IOException if the document could not be read or is invalid
+     */
+    static List<GrassPipeline> parse(InputStream xml) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setExpandEntityReferences(false);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(xml);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Invalid pipeline descriptor: " + e.getMessage(), e);
+        }
+        List<GrassPipeline> pipelines = new ArrayList<GrassPipeline>();
+        for (Element element : children(document.getDocumentElement(), "pipeline")) {
+            pipelines.add(pipeline(element));
+        }
+        return pipelines;
+    }
+
+    private static GrassPipeline pipeline(Element element) throws IOException {
+        String name = name(element, "pipeline");
+        GrassPipeline pipeline = new GrassPipeline(name, attribute(element, "title", name),
+                attribute(element, "description", name));
+        for (Element input : children(element, "input")) {
+            String type = attribute(input, "type", "raster");
+            String value = attribute(input, "default", null);
+            pipeline.inputs.add(new Input(name(input, "input"), type(type, name), attribute(input, "description", ""),
+                    value == null ? null : value(type, value, name),
+                    value == null && !"false".equals(attribute(input, "required", "true"))));
+        }
+        boolean raster = false;
+        for (Input input : pipeline.inputs) {
+            raster |= input.isRaster();
+        }
+        if (!raster) {
+            throw new IOException("Pipeline " + name + " requires a raster input");
+        }
+        for (Element step : children(element, "step")) {
+            String module = attribute(step, "module", "");
+            if (!MODULE.matcher(module).matches()) {
+                throw new IOException("Pipeline " + name + " module '" + module + "' invalid");
+            }
+            List<String> args = new ArrayList<String>();
+            for (Element arg : children(step, "arg")) {
+                String text = arg.getTextContent().trim();
+                Matcher matcher = REFERENCE.matcher(text);
+                while (matcher.find()) {
+                    if (pipeline.input(matcher.group(1)) == null) {
+                        throw new IOException("Pipeline " + name + " argument " + text + " refers to undefined input");
+                    }
+                }
+                args.add(text);
+            }
+            pipeline.steps.add(new Step(module, Collections.unmodifiableList(args)));
+        }
+        for (Element output : children(element, "output")) {
+            String outputName = name(output, "output");
+            pipeline.outputs.add(new Output(outputName, attribute(output, "raster", outputName),
+                    attribute(output, "description", "")));
+        }
+        if (pipeline.steps.isEmpty() || pipeline.outputs.isEmpty()) {
+            throw new IOException("Pipeline " + name + " requires a step and an output");
+        }
+        return pipeline;
+    }
+
+    private static Class<?> type(String type, String pipeline) throws IOException {
+        switch (type) {
+        case "raster":
+            return GridCoverage2D.class;
+        case "double":
+            return Double.class;
+        case "integer":
+            return Integer.class;
+        case "string":
+            return String.class;
+        default:
+            throw new IOException("Pipeline " + pipeline + " input type " + type
+                    + " invalid, expected raster, double, integer or string");
+        }
+    }
+
+    private static Object value(String type, String value, String pipeline) throws IOException {
+        try {
+            switch (type) {
+            case "double":
+                return Double.valueOf(value);
+            case "integer":
+                return Integer.valueOf(value);
+            case "string":
+                return value;
+            default:
+                throw new IOException("Pipeline " + pipeline + " " + type + " input cannot have a default");
+            }
+        } catch (NumberFormatException invalid) {
+            throw new IOException("Pipeline " + pipeline + " default " + value + " invalid for " + type);
+        }
+    }
+
+    /** Name attribute, valid as a GRASS raster name */
+    private static String name(Element element, String kind) throws IOException {
+        String name = element.getAttribute("name");
+        if (!NAME.matcher(name).matches()) {
+            throw new IOException(kind + " name '" + name + "' invalid");
+        }
+        return name;
+    }
+
+    private static String attribute(Element element, String name, String defaultValue) {
+        return element.hasAttribute(name) ? element.getAttribute(name) : defaultValue;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<Element>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element && name.equals(((Element) nodes.item(i)).getTagName())) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    @Override
+    public String toString() {
+        return "GrassPipeline " + name;
+    }
+}
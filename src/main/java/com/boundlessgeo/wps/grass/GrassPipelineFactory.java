@@ -0,0 +1,203 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.RenderingHints.Key;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.data.Parameter;
+import org.geotools.feature.NameImpl;
+import org.geotools.process.Process;
+import org.geotools.process.ProcessException;
+import org.geotools.process.ProcessFactory;
+import org.geotools.text.Text;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.type.Name;
+import org.opengis.util.InternationalString;
+import org.opengis.util.ProgressListener;
+
+/**
+ * Publishes GRASS pipelines (see {@link GrassPipeline}) as processes in the grass namespace.
+ * <p>
+ * Pipelines are read from {@value #RESOURCE} on the classpath, and from the XML files in
+ * the directory given by GRASS_PIPELINES.
+ */
+public class GrassPipelineFactory implements ProcessFactory {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Classpath location of pipeline descriptors */
+    static final String RESOURCE = "META-INF/grass/pipelines.xml";
+
+    private final Map<Name, GrassPipeline> pipelines = new LinkedHashMap<Name, GrassPipeline>();
+
+    public GrassPipelineFactory() {
+        try {
+            Enumeration<URL> resources = GrassPipelineFactory.class.getClassLoader().getResources(RESOURCE);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                try (InputStream xml = resource.openStream()) {
+                    add(GrassPipeline.parse(xml), resource.toString());
+                } catch (IOException invalid) {
+                    LOGGER.log(Level.WARNING, "Unable to load GRASS pipelines " + resource, invalid);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to locate GRASS pipelines", e);
+        }
+        String directory = GrassProcesses.property("GRASS_PIPELINES", null);
+        if (directory != null) {
+            File[] files = new File(directory).listFiles();
+            if (files == null) {
+                LOGGER.warning("GRASS_PIPELINES=" + directory + " is not a directory");
+            } else {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().endsWith(".xml")) {
+                        try (InputStream xml = new FileInputStream(file)) {
+                            add(GrassPipeline.parse(xml), file.toString());
+                        } catch (IOException invalid) {
+                            LOGGER.log(Level.WARNING, "Unable to load GRASS pipelines " + file, invalid);
+                        }
+                    }
+                }
+            }
+        }
+        LOGGER.info("GRASS pipelines: " + pipelines.keySet());
+    }
+
+    private void add(Iterable<GrassPipeline> loaded, String source) {
+        for (GrassPipeline pipeline : loaded) {
+            Name name = new NameImpl("grass", pipeline.name);
+            if (pipelines.containsKey(name)) {
+                LOGGER.info("GRASS pipeline " + name + " replaced by " + source);
+            }
+            pipelines.put(name, pipeline);
+        }
+    }
+
+    private GrassPipeline pipeline(Name name) {
+        GrassPipeline pipeline = pipelines.get(name);
+        if (pipeline == null) {
+            throw new IllegalArgumentException("Unknown process " + name);
+        }
+        return pipeline;
+    }
+
+    @Override
+    public InternationalString getTitle() {
+        return Text.text("GRASS pipelines");
+    }
+
+    @Override
+    public Set<Name> getNames() {
+        if (GrassProcesses.EXEC == null) {
+            // pipelines require GRASS
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(pipelines.keySet());
+    }
+
+    @Override
+    public InternationalString getTitle(Name name) {
+        return Text.text(pipeline(name).title);
+    }
+
+    @Override
+    public InternationalString getDescription(Name name) {
+        return Text.text(pipeline(name).description);
+    }
+
+    @Override
+    public Map<String, Parameter<?>> getParameterInfo(Name name) {
+        Map<String, Parameter<?>> parameters = new LinkedHashMap<String, Parameter<?>>();
+        for (GrassPipeline.Input input : pipeline(name).inputs) {
+            if (input.isRaster()) {
+                // raster, or handle to a raster kept by GRASS
+                parameters.put(input.name, parameter(input.name, input.type, input.description, false, null));
+                parameters.put(input.name + GrassPipeline.HANDLE, parameter(input.name + GrassPipeline.HANDLE,
+                        String.class, "handle to " + input.description + ", instead of " + input.name, false, null));
+            } else {
+                parameters.put(input.name, parameter(input.name, input.type, input.description, input.required,
+                        input.defaultValue));
+            }
+        }
+        parameters.put(GrassPipeline.HANDLES, parameter(GrassPipeline.HANDLES, Boolean.class,
+                "return outputs as raster handles for use by later GRASS processes (default false)", false, false));
+        return parameters;
+    }
+
+    @Override
+    public Map<String, Parameter<?>> getResultInfo(Name name, Map<String, Object> parameters)
+            throws IllegalArgumentException {
+        boolean handles = parameters != null && Boolean.TRUE.equals(parameters.get(GrassPipeline.HANDLES));
+        Map<String, Parameter<?>> results = new LinkedHashMap<String, Parameter<?>>();
+        for (GrassPipeline.Output output : pipeline(name).outputs) {
+            if (handles) {
+                results.put(output.name, parameter(output.name, String.class, "handle to " + output.description,
+                        true, null));
+            } else {
+                results.put(output.name, parameter(output.name, GridCoverage2D.class, output.description, true, null));
+            }
+        }
+        return results;
+    }
+
+    private static <T> Parameter<T> parameter(String name, Class<T> type, String description, boolean required,
+            Object sample) {
+        return new Parameter<T>(name, type, Text.text(name), Text.text(description), required, required ? 1 : 0, 1,
+                sample, null);
+    }
+
+    @Override
+    public boolean supportsProgress(Name name) {
+        return true;
+    }
+
+    @Override
+    public String getVersion(Name name) {
+        return "1.0.0";
+    }
+
+    @Override
+    public Process create(Name name) {
+        final GrassPipeline pipeline = pipeline(name);
+        return new Process() {
+            @Override
+            public Map<String, Object> execute(Map<String, Object> input, ProgressListener monitor)
+                    throws ProcessException {
+                try {
+                    return GrassProcesses.pipeline(pipeline, input, monitor);
+                } catch (ProcessException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new ProcessException(pipeline.name + " failed: " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Map<Key, ?> getImplementationHints() {
+        return Collections.emptyMap();
+    }
+}
@@ -4,30 +4,60 @@
  */
 package com.boundlessgeo.wps.grass;
 
+import java.awt.Rectangle;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import static java.io.File.pathSeparator;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteException;
-import org.apache.commons.exec.ExecuteWatchdog;
-import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.exec.environment.EnvironmentUtils;
 import org.apache.commons.io.FileUtils;
 import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
@@ -37,17 +67,65 @@ import org.geotools.text.Text;
 import org.geotools.util.KVP;
 import org.geotools.util.logging.Logging;
 import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.util.ProgressListener;
 
 public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses> {
     enum Env { LINUX, MAC, WINDOWS, UNKNOWN }
+    /** Raster exchange between GeoTools and GRASS: import/export copies, or external links to GDAL files */
+    enum Exchange { IMPORT, EXTERNAL }
+    /** Staging of coverages for import: GeoTIFF for r.in.gdal, or raw binary for r.in.bin */
+    enum Staging { GEOTIFF, BINARY }
+    /** Viewshed implementation: chosen by DEM size, in-process Java, or r.viewshed */
+    enum Engine { AUTO, JAVA, GRASS }
+    /** Viewshed output: vertical angles, 1-bit visibility mask, whole degrees as bytes, or visible area polygons */
+    enum Encoding {
+        ANGLES("tif"), MASK("tif"), COMPRESSED("tif"), POLYGONS("wkt");
+
+        /** Extension of the exported file */
+        final String extension;
+
+        Encoding(String extension) {
+            this.extension = extension;
+        }
+    }
 
     private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+    /** Processes available without GRASS */
+    private static final Set<String> JAVA_PROCESSES = new HashSet<String>(
+            Arrays.asList("viewshed", "viewshedBatch"));
     static String EXEC;
     static String BIN;
+    static GrassCatalog CATALOG;
+    static LocationPool POOL;
+    static RasterCache CACHE;
+    static Exchange EXCHANGE = Exchange.IMPORT;
+    static Staging STAGING = Staging.GEOTIFF;
+    static Engine ENGINE = Engine.AUTO;
+    /** GeoTIFF compression of mask and compressed viewshed outputs, DEFLATE or LZW */
+    static String COMPRESSION = "DEFLATE";
+    /** Largest region (in cells) computed in-process when the engine is AUTO */
+    static long VIEWSHED_CELLS = 4000000;
+    static JobScheduler SCHEDULER;
+    static SessionPool SESSIONS;
+    /** Runs module commands, locally or on worker daemons */
+    static GrassExecutor EXECUTOR = new LocalExecutor();
+    static ResultCache RESULTS;
+    static RasterHandles HANDLES;
+    static ScratchSpace SCRATCH;
+    static DemPyramid PYRAMID;
+    static final GrassMetrics METRICS = new GrassMetrics();
+    /** Width and height (in cells) of tiles processed concurrently by tiled modules */
+    static int TILE_SIZE = 2048;
+    /** Minimum overlap (in cells) added around each tile, in addition to the module neighbourhood */
+    static int TILE_HALO = 0;
+    /** Bytes of module output retained for logging */
+    static int OUTPUT_LIMIT = 64 * 1024;
+    /** Largest batch viewshed result (in bytes) held in memory */
+    static long BATCH_MEMORY = 256 * 1024 * 1024;
     final static Env SYSTEM;
-    private static final SecureRandom random = new SecureRandom();
 
     static {
         String system = System.getProperty("os.name").toLowerCase();
@@ -135,13 +213,185 @@ public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses>
                 BIN = null;
             }
         }
+        if( CATALOG == null || !CATALOG.matches(EXEC, BIN) ){
+            if (CATALOG != null) {
+                CATALOG.close();
+            }
+            CATALOG = new GrassCatalog(EXEC, BIN,
+                    new File(System.getProperty("java.io.tmpdir"), "grasscatalog"));
+            CATALOG.register();
+            // version and modules are probed in the background, requests wait for the first probe
+            CATALOG.refresh();
+        }
+        if( POOL == null ){
+            File geodb = new File(property("GRASS_LOCATIONS",
+                    new File(System.getProperty("java.io.tmpdir"), "grasslocations").getPath()));
+            geodb.mkdirs();
+            int size = (int) property("GRASS_POOL_SIZE", 8);
+            long idle = property("GRASS_POOL_IDLE", 30 * 60 * 1000);
+            LOGGER.info("GRASS_LOCATIONS="+geodb+" GRASS_POOL_SIZE="+size+" GRASS_POOL_IDLE="+idle);
+            POOL = new LocationPool(geodb, size, idle);
+        }
+        if( CACHE == null ){
+            long budget = property("GRASS_CACHE_SIZE", 1024L * 1024 * 1024);
+            LOGGER.info("GRASS_CACHE_SIZE="+budget);
+            CACHE = new RasterCache(budget);
+        }
+        if( RESULTS == null ){
+            File directory = new File(property("GRASS_RESULTS",
+                    new File(System.getProperty("java.io.tmpdir"), "grassresults").getPath()));
+            long budget = property("GRASS_RESULT_CACHE_SIZE", 256L * 1024 * 1024);
+            long ttl = property("GRASS_RESULT_CACHE_TTL", 24 * 60 * 60 * 1000);
+            LOGGER.info("GRASS_RESULTS="+directory+" GRASS_RESULT_CACHE_SIZE="+budget+" GRASS_RESULT_CACHE_TTL="+ttl);
+            RESULTS = new ResultCache(directory, budget, ttl);
+        }
+        if( SCRATCH == null ){
+            String tmp = System.getProperty("java.io.tmpdir");
+            String directories = property("GRASS_SCRATCH", tmp);
+            String quotas = property("GRASS_SCRATCH_QUOTA", "0");
+            String limits = property("GRASS_SCRATCH_JOB_LIMIT", "0");
+            long age = property("GRASS_SCRATCH_MAX_AGE", 24 * 60 * 60 * 1000);
+            List<ScratchSpace.Root> roots;
+            try {
+                roots = ScratchSpace.roots(directories, quotas, limits);
+            } catch (NumberFormatException invalid) {
+                LOGGER.warning("GRASS_SCRATCH_QUOTA="+quotas+" GRASS_SCRATCH_JOB_LIMIT="+limits+
+                        " invalid, expected bytes for each GRASS_SCRATCH directory");
+                roots = ScratchSpace.roots(directories, null, null);
+            }
+            if (roots.isEmpty()) {
+                roots = ScratchSpace.roots(tmp, null, null);
+            }
+            LOGGER.info("GRASS_SCRATCH="+roots+" GRASS_SCRATCH_MAX_AGE="+age);
+            SCRATCH = new ScratchSpace(roots, age);
+            SCRATCH.start();
+        }
+        if( PYRAMID == null ){
+            long budget = property("GRASS_PYRAMID_SIZE", 64L * 1024 * 1024);
+            LOGGER.info("GRASS_PYRAMID_SIZE="+budget);
+            PYRAMID = new DemPyramid(budget);
+        }
+        if( HANDLES == null ){
+            long quota = property("GRASS_HANDLE_QUOTA", 1024L * 1024 * 1024);
+            long ttl = property("GRASS_HANDLE_TTL", 60 * 60 * 1000);
+            LOGGER.info("GRASS_HANDLE_QUOTA="+quota+" GRASS_HANDLE_TTL="+ttl);
+            HANDLES = new RasterHandles(quota, ttl);
+            HANDLES.start();
+        }
+        if( SCHEDULER == null ){
+            int jobs = (int) property("GRASS_MAX_JOBS", Runtime.getRuntime().availableProcessors());
+            int queue = (int) property("GRASS_QUEUE_SIZE", 100);
+            String policy = property("GRASS_QUEUE_POLICY", "wait");
+            int memory = (int) property("GRASS_JOB_MEMORY", 500);
+            LOGGER.info("GRASS_MAX_JOBS="+jobs+" GRASS_QUEUE_SIZE="+queue+" GRASS_QUEUE_POLICY="+policy+
+                    " GRASS_JOB_MEMORY="+memory);
+            SCHEDULER = new JobScheduler(jobs, queue, !"reject".equalsIgnoreCase(policy.trim()), memory);
+        }
+        int sessions = (int) property("GRASS_SESSIONS", 0);
+        if( SESSIONS == null && sessions > 0 && EXEC != null ){
+            if (SYSTEM == Env.WINDOWS) {
+                LOGGER.warning("GRASS_SESSIONS not supported on Windows");
+            } else {
+                int jobs = (int) property("GRASS_SESSION_JOBS", 100);
+                LOGGER.info("GRASS_SESSIONS="+sessions+" GRASS_SESSION_JOBS="+jobs);
+                try {
+                    SESSIONS = new SessionPool(sessions, jobs, baseEnv());
+                } catch (IOException e) {
+                    LOGGER.warning("GRASS_SESSIONS unavailable: "+e.getMessage());
+                }
+            }
+        }
+        String workers = property("GRASS_WORKERS", null);
+        String secret = property("GRASS_WORKER_SECRET", null);
+        if( workers != null && (secret == null || secret.isEmpty()) ){
+            LOGGER.warning("GRASS_WORKERS="+workers+" ignored, GRASS_WORKER_SECRET required");
+        }
+        else if( workers != null && !(EXECUTOR instanceof RemoteExecutor) ){
+            try {
+                EXECUTOR = new RemoteExecutor(RemoteExecutor.addresses(workers), secret);
+                LOGGER.info("GRASS_WORKERS="+workers);
+            } catch (IllegalArgumentException invalid) {
+                LOGGER.warning("GRASS_WORKERS="+workers+" invalid, expected comma separated host:port");
+            }
+        }
+        OUTPUT_LIMIT = (int) property("GRASS_OUTPUT_LIMIT", 64 * 1024);
+        METRICS.register();
+        String exchange = property("GRASS_EXCHANGE", "import");
+        try {
+            EXCHANGE = Exchange.valueOf(exchange.trim().toUpperCase());
+            LOGGER.info("GRASS_EXCHANGE="+EXCHANGE);
+        } catch (IllegalArgumentException invalid) {
+            LOGGER.warning("GRASS_EXCHANGE="+exchange+" invalid, expected import or external");
+        }
+        String engine = property("GRASS_VIEWSHED_ENGINE", "auto");
+        try {
+            ENGINE = Engine.valueOf(engine.trim().toUpperCase());
+            VIEWSHED_CELLS = property("GRASS_VIEWSHED_CELLS", 4000000);
+            LOGGER.info("GRASS_VIEWSHED_ENGINE="+ENGINE+" GRASS_VIEWSHED_CELLS="+VIEWSHED_CELLS);
+        } catch (IllegalArgumentException invalid) {
+            LOGGER.warning("GRASS_VIEWSHED_ENGINE="+engine+" invalid, expected auto, java or grass");
+        }
+        TILE_SIZE = (int) Math.max(property("GRASS_TILE_SIZE", 2048), 1);
+        TILE_HALO = (int) Math.max(property("GRASS_TILE_HALO", 0), 0);
+        LOGGER.info("GRASS_TILE_SIZE="+TILE_SIZE+" GRASS_TILE_HALO="+TILE_HALO);
+        BATCH_MEMORY = property("GRASS_BATCH_MEMORY", 256 * 1024 * 1024);
+        String staging = property("GRASS_STAGING", "geotiff");
+        try {
+            STAGING = Staging.valueOf(staging.trim().toUpperCase());
+            LOGGER.info("GRASS_STAGING="+STAGING);
+        } catch (IllegalArgumentException invalid) {
+            LOGGER.warning("GRASS_STAGING="+staging+" invalid, expected geotiff or binary");
+        }
+        String compression = property("GRASS_COMPRESSION", "deflate").trim().toUpperCase();
+        if (compression.equals("DEFLATE") || compression.equals("LZW")) {
+            COMPRESSION = compression;
+            LOGGER.info("GRASS_COMPRESSION="+COMPRESSION);
+        } else {
+            LOGGER.warning("GRASS_COMPRESSION="+compression+" invalid, expected deflate or lzw");
+        }
+    }
+
+    /**
+     * Look up configuration using environmental variable, context parameter or system property.
+     * @param name property name
+     * @param defaultValue value used if property is not defined
+     * @return property value, or defaultValue if not defined
+     */
+    static String property(String name, String defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Look up numeric configuration using environmental variable, context parameter or system property.
+     * @param name property name
+     * @param defaultValue value used if property is not defined or invalid
+     * @return property value, or defaultValue if not defined
+     */
+    static long property(String name, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException invalid) {
+            LOGGER.warning(name+"="+value+" invalid, using "+defaultValue);
+            return defaultValue;
+        }
     }
 
     @Override
     public Set<Name> getNames() {
         if( EXEC == null ){
-            // do not advertise grass processes if executable is not available
-            return Collections.emptySet();
+            // only advertise processes with an in-process implementation if executable is not available
+            Set<Name> names = new HashSet<Name>();
+            for (Name name : super.getNames()) {
+                if (JAVA_PROCESSES.contains(name.getLocalPart())) {
+                    names.add(name);
+                }
+            }
+            return names;
         }
         return super.getNames();
     }
@@ -153,228 +403,1685 @@ public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses>
         if (EXEC == null ){
             return "unavailable";
         }
-        CommandLine cmd = new CommandLine(EXEC);
-        cmd.addArgument("-v");
+        // probed once by the catalog
+        return CATALOG.snapshot().version;
+    }
+
+    @DescribeProcess(title = "r.viewshed", description = "Computes the viewshed of a point on an elevation raster map.")
+    @DescribeResult(description="area visible from provided location")
+    public static GridCoverage2D viewshed(
+            @DescribeParameter(name = "dem", description = "digitial elevation model")
+            GridCoverage2D source,
+            @DescribeParameter(name = "x", description = "x location in map units")
+            final double x,
+            @DescribeParameter(name = "y", description = "y location in map units")
+            final double y,
+            @DescribeParameter(name = "observer_elevation", description = "viewing elevation above the ground (default 1.75)", min = 0)
+            Double observerElevation,
+            @DescribeParameter(name = "target_elevation", description = "offset for target elevation above the ground (default 0)", min = 0)
+            Double targetElevation,
+            @DescribeParameter(name = "max_distance", description = "maximum visibility radius in map units (default unlimited)", min = 0)
+            Double maxDistance,
+            @DescribeParameter(name = "output", description = "angles for the vertical angle of visible cells, mask for a 1-bit visibility mask, or compressed for whole degrees as bytes (default angles)", min = 0)
+            String output,
+            @DescribeParameter(name = "resolution", description = "preview cell size in map units, using the coarsest overview of the dem with cells no larger (default full resolution)", min = 0)
+            Double resolution,
+            ProgressListener monitor) throws Exception{
 
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setExitValue(0);
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(60000);
-        executor.setWatchdog(watchdog);
+        final Encoding encoding = encoding(output);
+        // dem, or overview level for a preview
+        final GridCoverage2D dem = PYRAMID.level(source, resolution);
+        // r.viewshed options
+        final KVP options = viewshedOptions(observerElevation, targetElevation, maxDistance);
+        // area within max_distance of observer
+        Envelope2D area = null;
+        if (maxDistance != null && maxDistance > 0) {
+            area = new Envelope2D(dem.getCoordinateReferenceSystem2D(),
+                    x - maxDistance, y - maxDistance, 2 * maxDistance, 2 * maxDistance);
+        }
+
+        if (engine(dem, area) == Engine.JAVA) {
+            try (GrassMetrics.Timer timer = METRICS.time("java.viewshed")) {
+                GridCoverage2D viewshed = JavaViewshed.viewshed(dem, x, y,
+                        observerElevation != null ? observerElevation : 1.75,
+                        targetElevation != null ? targetElevation : 0, maxDistance != null ? maxDistance : 0);
+                return JavaViewshed.encode(viewshed, encoding);
+            }
+        }
+
+        //Stage files in a scratch directory, kept until the result is disposed
+        final File geodb = SCRATCH.create(estimate(dem, 1));
+        // import, r.viewshed, encoding and export
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout("viewshed", dem),
+                encoding == Encoding.ANGLES ? 3 : 4);
         try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            executor.setStreamHandler(new PumpStreamHandler(outputStream));
+            File viewshed = viewshed(geodb, dem, x, y, options, area, encoding, 0);
 
-            LOGGER.info("exec: "+cmd.toString());
-            int exitValue = executor.execute(cmd);
-            return outputStream.toString();
-        } catch (ExecuteException huh){
-            return "exit code: "+huh.getExitValue()+ " ("+huh.getMessage()+")";
-        } catch (IOException e) {
-            return "unavailable: "+e.getClass().getSimpleName()+":"+e.getMessage();
+            // STAGE RESULT
+            try (GrassMetrics.Timer timer = METRICS.time("read")) {
+                return ScratchCoverage.read(viewshed, geodb);
+            }
+        } finally {
+            job.finish();
+            SCRATCH.finish(geodb);
         }
     }
 
-    @DescribeProcess(title = "r.viewshed", description = "Computes the viewshed of a point on an elevation raster map.")
-    @DescribeResult(description="area visible from provided location")
-    public static GridCoverage2D viewshed(
+    @DescribeProcess(title = "r.viewshed area", description = "Computes the area visible from a point on an elevation raster map as polygons, vectorized and simplified by GRASS.")
+    @DescribeResult(description="polygons of the area visible from provided location")
+    public static SimpleFeatureCollection viewshedArea(
             @DescribeParameter(name = "dem", description = "digitial elevation model")
-            GridCoverage2D dem,
+            GridCoverage2D source,
             @DescribeParameter(name = "x", description = "x location in map units")
             double x,
             @DescribeParameter(name = "y", description = "y location in map units")
-            double y) throws Exception{
+            double y,
+            @DescribeParameter(name = "observer_elevation", description = "viewing elevation above the ground (default 1.75)", min = 0)
+            Double observerElevation,
+            @DescribeParameter(name = "target_elevation", description = "offset for target elevation above the ground (default 0)", min = 0)
+            Double targetElevation,
+            @DescribeParameter(name = "max_distance", description = "maximum visibility radius in map units (default unlimited)", min = 0)
+            Double maxDistance,
+            @DescribeParameter(name = "tolerance", description = "Douglas-Peucker simplification threshold in map units, 0 for none (default the cell size)", min = 0)
+            Double tolerance,
+            @DescribeParameter(name = "resolution", description = "preview cell size in map units, using the coarsest overview of the dem with cells no larger (default full resolution)", min = 0)
+            Double resolution,
+            ProgressListener monitor) throws Exception{
+        if (EXEC == null) {
+            throw new IllegalStateException("GRASS unavailable, required to vectorize viewshed");
+        }
+        // dem, or overview level for a preview
+        GridCoverage2D dem = PYRAMID.level(source, resolution);
+        KVP options = viewshedOptions(observerElevation, targetElevation, maxDistance);
+        Envelope2D area = null;
+        if (maxDistance != null && maxDistance > 0) {
+            area = new Envelope2D(dem.getCoordinateReferenceSystem2D(),
+                    x - maxDistance, y - maxDistance, 2 * maxDistance, 2 * maxDistance);
+        }
+        if (tolerance == null) {
+            GridEnvelope2D range = dem.getGridGeometry().getGridRange2D();
+            Envelope2D bounds = dem.getEnvelope2D();
+            tolerance = Math.max(bounds.getWidth() / range.width, bounds.getHeight() / range.height);
+        }
 
-        String COMMAND = "viewshed";
-        //Stage files in a temporary location
-        File geodb = Files.createTempDirectory("grassdata").toFile();
-        geodb.deleteOnExit();
-        File location = new File( geodb, COMMAND + Long.toString(random.nextLong()) + "location");
+        final File geodb = SCRATCH.create(estimate(dem, 1));
+        // import, r.viewshed, r.mapcalc, r.to.vect, v.generalize and v.out.ascii
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout("viewshed", dem), 6);
+        try {
+            File wkt = viewshed(geodb, dem, x, y, options, area, Encoding.POLYGONS, tolerance);
+            try (GrassMetrics.Timer timer = METRICS.time("read")) {
+                return polygons(wkt, dem.getCoordinateReferenceSystem2D());
+            }
+        } finally {
+            job.finish();
+            SCRATCH.finish(geodb);
+        }
+    }
 
-        // stage dem file
-        File file = new File( geodb, "dem.tif");
-        //The file must exist for FileImageOutputStreamExtImplSpi to create the output stream
+    /**
+     * Viewshed output encoding.
+     *
+     * @param output angles, mask or compressed (null for angles)
+     * @return encoding
+     */
+    static Encoding encoding(String output) {
+        if (output == null || output.trim().isEmpty()) {
+            return Encoding.ANGLES;
+        }
+        try {
+            Encoding encoding = Encoding.valueOf(output.trim().toUpperCase());
+            if (encoding != Encoding.POLYGONS) {
+                return encoding;
+            }
+        } catch (IllegalArgumentException invalid) {
+        }
+        throw new IllegalArgumentException("output="+output+" invalid, expected angles, mask or compressed"
+                + " (see grass:viewshedArea for polygons)");
+    }
+
+    /**
+     * Read polygons written by v.out.ascii format=wkt, one geometry per line.
+     *
+     * @param file WKT file
+     * @param crs coordinate reference system of the polygons
+     * @return features with a polygon geometry
+     * @throws IOException if the file could not be read or parsed
+     */
+    static SimpleFeatureCollection polygons(File file, CoordinateReferenceSystem crs) throws IOException {
         if (!file.exists()) {
-            file.getParentFile().mkdirs();
-            file.createNewFile();
+            throw new IOException("Generated " + file.getName() + " not found");
         }
-        final GeoTiffFormat format = new GeoTiffFormat();
-        GridCoverageWriter writer = format.getWriter(file);
-        writer.write(dem, null);
-        LOGGER.info("Staging file:"+file);
+        SimpleFeatureTypeBuilder type = new SimpleFeatureTypeBuilder();
+        type.setName("viewshed");
+        type.setCRS(crs);
+        type.add("the_geom", Polygon.class);
+        SimpleFeatureType schema = type.buildFeatureType();
 
-        // use file to create location with (returns PERMANENT mapset)
-        File mapset = location( location, file );
+        ListFeatureCollection features = new ListFeatureCollection(schema);
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+        WKTReader reader = new WKTReader();
+        int id = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            Geometry geometry;
+            try {
+                geometry = reader.read(line);
+            } catch (ParseException invalid) {
+                throw new IOException("Generated " + file.getName() + " invalid: " + invalid.getMessage(), invalid);
+            }
+            // areas are written as polygons, split any multipolygons
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                Geometry polygon = geometry.getGeometryN(n);
+                if (polygon instanceof Polygon && !polygon.isEmpty()) {
+                    builder.add(polygon);
+                    features.add(builder.buildFeature("viewshed." + (++id)));
+                }
+            }
+        }
+        return features;
+    }
 
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setWatchdog(new ExecuteWatchdog(60000));
-        executor.setStreamHandler(new PumpStreamHandler(System.out));
-        executor.setWorkingDirectory(mapset);
+    /**
+     * Estimate scratch space used by a job staging coverage and exporting rasters of the same
+     * grid (imported rasters are held in the location pool rather than scratch space).
+     *
+     * @param coverage coverage staged for import
+     * @param outputs number of rasters exported
+     * @return estimated size in bytes
+     */
+    static long estimate(GridCoverage2D coverage, int outputs) {
+        GridEnvelope2D range = coverage.getGridGeometry().getGridRange2D();
+        long cells = (long) range.width * range.height;
+        int bits = 0;
+        for (int size : coverage.getRenderedImage().getSampleModel().getSampleSize()) {
+            bits += size;
+        }
+        // exported as at most double precision
+        return cells * (bits / 8 + 8L * outputs);
+    }
 
-        Map<String,String> env = customEnv( geodb, location, mapset );
+    /**
+     * Compute viewshed using GRASS, or copy a cached result when enabled.
+     *
+     * @param geodb job directory
+     * @param dem digital elevation model
+     * @param x observer x location
+     * @param y observer y location
+     * @param options r.viewshed options
+     * @param area optional area of interest (limited by max_distance)
+     * @param encoding output encoding
+     * @param tolerance simplification threshold for polygons
+     * @return geodb/viewshed.tif, or geodb/viewshed.wkt for polygons
+     * @throws Exception if the viewshed could not be computed
+     */
+    private static File viewshed(final File geodb, final GridCoverage2D dem, final double x, final double y,
+            final KVP options, final Envelope2D area, final Encoding encoding, final double tolerance)
+            throws Exception {
+        if (!RESULTS.enabled()) {
+            return viewshedGrass(geodb, dem, x, y, options, area, encoding, tolerance);
+        }
+        // r.viewshed observes from the centre of the cell containing x,y
+        GridCoordinates2D cell = dem.getGridGeometry().worldToGrid(
+                new DirectPosition2D(dem.getCoordinateReferenceSystem2D(), x, y));
+        KVP inputs = new KVP("dem", RasterCache.fingerprint(dem), "column", cell.x, "row", cell.y);
+        inputs.putAll(options);
+        if (encoding != Encoding.ANGLES) {
+            inputs.put("output", encoding.name().toLowerCase());
+        }
+        if (encoding == Encoding.POLYGONS) {
+            inputs.put("tolerance", tolerance);
+        }
+        return RESULTS.get(ResultCache.key("viewshed", inputs), new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return viewshedGrass(geodb, dem, x, y, options, area, encoding, tolerance);
+            }
+        }, new File(geodb, "viewshed." + encoding.extension));
+    }
 
-        // EXPORT IMPORT DEM
-        // r.in.gdal input=~/grassdata/viewshed/PERMANENT/dem.tif output=dem --overwrite
+    /**
+     * Compute viewshed using GRASS.
+     *
+     * @param geodb job directory
+     * @param dem digital elevation model
+     * @param x observer x location
+     * @param y observer y location
+     * @param options r.viewshed options
+     * @param area optional area of interest (limited by max_distance)
+     * @param encoding output encoding
+     * @param tolerance simplification threshold for polygons
+     * @return geodb/viewshed.tif, or geodb/viewshed.wkt for polygons
+     * @throws Exception if the viewshed could not be computed
+     */
+    private static File viewshedGrass(File geodb, GridCoverage2D dem, double x, double y, KVP options,
+            Envelope2D area, Encoding encoding, double tolerance) throws Exception {
+        // crop dem to area, unless the full dem is to be cached (region is restricted instead)
+        boolean cache = CACHE.enabled() && EXCHANGE == Exchange.IMPORT;
+        GridCoverage2D input = dem;
+        if (area != null && !cache) {
+            input = (GridCoverage2D) Operations.DEFAULT.crop(dem, area);
+        }
 
-        File r_in_gdal = bin("r.in.gdal");
-        CommandLine cmd = new CommandLine( r_in_gdal );
-        cmd.addArgument("input=${file}");
-        cmd.addArgument("output=dem");
-        cmd.addArgument("--overwrite");
-        cmd.setSubstitutionMap(new KVP("file",file));
+        // stage dem file on demand (not required when location and raster are cached)
+        Stage stage = new Stage(input, geodb);
+        if (EXCHANGE == Exchange.EXTERNAL) {
+            // GeoTIFF source file can be linked directly
+            stage.source = geotiff(input);
+        }
+
+        // check out mapset from a location matching dem (creating location if needed)
+        LocationPool.Mapset mapset = null;
         try {
-            LOGGER.info(cmd.toString());
-            executor.setExitValue(0);
-            int exitValue = executor.execute(cmd,env);
+            mapset = POOL.checkout(LocationPool.key(dem), stage);
+            // define region: cropped dem, or area of cached dem
+            if (input != dem || area == null) {
+                region(mapset, input.getGridGeometry(), null);
+            } else {
+                region(mapset, dem.getGridGeometry(), area);
+            }
+            return viewshed(geodb, dem, stage, mapset, x, y, options, encoding, tolerance);
+        } finally {
+            try (GrassMetrics.Timer timer = METRICS.time("cleanup")) {
+                if (mapset != null) {
+                    mapset.close();
+                }
+                stage.cleanup();
+                if (input != dem) {
+                    input.dispose(false);
+                }
+            }
         }
-        catch( ExecuteException fail ){
-            LOGGER.warning(r_in_gdal.getName()+":"+fail.getLocalizedMessage());
-            throw fail;
+    }
+
+    /**
+     * Optional r.viewshed parameters.
+     */
+    private static KVP viewshedOptions(Double observerElevation, Double targetElevation, Double maxDistance) {
+        KVP options = new KVP();
+        if (observerElevation != null) {
+            options.put("observer_elevation", observerElevation);
+        }
+        if (targetElevation != null) {
+            options.put("target_elevation", targetElevation);
+        }
+        if (maxDistance != null && maxDistance > 0) {
+            options.put("max_distance", maxDistance);
+        }
+        return options;
+    }
+
+    @DescribeProcess(title = "r.viewshed batch", description = "Computes the viewshed of many points on an elevation raster map, importing the map once.")
+    @DescribeResult(description="number of points each cell is visible from, or the viewshed of each point as a band")
+    public static GridCoverage2D viewshedBatch(
+            @DescribeParameter(name = "dem", description = "digitial elevation model")
+            GridCoverage2D source,
+            @DescribeParameter(name = "points", description = "observer points in map units of the dem", min = 0)
+            SimpleFeatureCollection points,
+            @DescribeParameter(name = "coordinates", description = "observer points in map units of the dem, such as a multipoint", min = 0)
+            Geometry coordinates,
+            @DescribeParameter(name = "observer_elevation", description = "viewing elevation above the ground (default 1.75)", min = 0)
+            Double observerElevation,
+            @DescribeParameter(name = "target_elevation", description = "offset for target elevation above the ground (default 0)", min = 0)
+            Double targetElevation,
+            @DescribeParameter(name = "max_distance", description = "maximum visibility radius in map units (default unlimited)", min = 0)
+            Double maxDistance,
+            @DescribeParameter(name = "output", description = "cumulative for the number of points each cell is visible from (default), or bands for the viewshed of each point", min = 0)
+            String output,
+            @DescribeParameter(name = "resolution", description = "preview cell size in map units, using the coarsest overview of the dem with cells no larger (default full resolution)", min = 0)
+            Double resolution,
+            ProgressListener monitor) throws Exception {
+
+        // dem, or overview level for a preview
+        final GridCoverage2D dem = PYRAMID.level(source, resolution);
+        List<Coordinate> observers = observers(points, coordinates);
+        if (observers.isEmpty()) {
+            throw new IllegalArgumentException("points or coordinates required");
+        }
+        boolean bands = "bands".equalsIgnoreCase(output);
+        if (output != null && !bands && !"cumulative".equalsIgnoreCase(output)) {
+            throw new IllegalArgumentException("output "+output+" invalid, expected cumulative or bands");
+        }
+        GridGeometry2D grid = dem.getGridGeometry();
+        GridEnvelope2D range = grid.getGridRange2D();
+        long bytes = BatchResult.bytes(range.width, range.height, observers.size(), bands);
+        if (bytes > BATCH_MEMORY) {
+            throw new IllegalArgumentException((bands ? "bands of " + observers.size() + " points" : "cumulative")
+                    + " for " + range.width + "x" + range.height + " cells requires " + bytes
+                    + " bytes, more than GRASS_BATCH_MEMORY " + BATCH_MEMORY
+                    + " (use fewer points, a preview resolution, or cumulative output)");
+        }
+        BatchResult result = new BatchResult(range.width, range.height, observers.size(), bands);
+
+        if (engine(dem, null) == Engine.JAVA) {
+            try (GrassMetrics.Timer timer = METRICS.time("java.viewshed")) {
+                JavaViewshed viewshed = JavaViewshed.read(dem, range);
+                for (int i = 0; i < observers.size(); i++) {
+                    if (monitor != null) {
+                        if (monitor.isCanceled()) {
+                            throw new InterruptedIOException("viewshedBatch cancelled");
+                        }
+                        monitor.progress(100f * i / observers.size());
+                    }
+                    Coordinate observer = observers.get(i);
+                    GridCoordinates2D cell = grid.worldToGrid(
+                            new DirectPosition2D(dem.getCoordinateReferenceSystem2D(), observer.x, observer.y));
+                    if (!range.contains(cell)) {
+                        throw new IllegalArgumentException("Point "+observer+" outside of dem");
+                    }
+                    result.add(i, viewshed.compute(cell.x - range.x, cell.y - range.y,
+                            observerElevation != null ? observerElevation : 1.75,
+                            targetElevation != null ? targetElevation : 0, maxDistance != null ? maxDistance : 0));
+                }
+            }
+        } else {
+            viewshedBatch(dem, observers, viewshedOptions(observerElevation, targetElevation, maxDistance), result,
+                    monitor);
+        }
+        return new GridCoverageFactory().create(bands ? "viewsheds" : "cumulative", result.raster(),
+                dem.getEnvelope2D());
+    }
+
+    /**
+     * Observer locations from a feature collection (using centroids for features which are not points)
+     * and the coordinates of a geometry.
+     */
+    private static List<Coordinate> observers(SimpleFeatureCollection points, Geometry coordinates) {
+        List<Coordinate> observers = new ArrayList<Coordinate>();
+        if (points != null) {
+            SimpleFeatureIterator features = points.features();
+            try {
+                while (features.hasNext()) {
+                    Object geometry = features.next().getDefaultGeometry();
+                    if (geometry instanceof Point) {
+                        observers.add(((Point) geometry).getCoordinate());
+                    } else if (geometry instanceof Geometry && !((Geometry) geometry).isEmpty()) {
+                        observers.add(((Geometry) geometry).getCentroid().getCoordinate());
+                    }
+                }
+            } finally {
+                features.close();
+            }
+        }
+        if (coordinates != null) {
+            observers.addAll(Arrays.asList(coordinates.getCoordinates()));
+        }
+        return observers;
+    }
+
+    /**
+     * Compute viewshed of each observer using GRASS. The dem is imported once, and r.viewshed
+     * jobs run in parallel in mapsets of the same location, streaming each result into the
+     * batch result as it completes.
+     */
+    private static void viewshedBatch(GridCoverage2D dem, List<Coordinate> observers, final KVP options,
+            BatchResult result, ProgressListener monitor) throws Exception {
+        // results are removed once read, so at most one for each running job
+        final File geodb = SCRATCH.create(estimate(dem,
+                Math.min(observers.size(), SCHEDULER.limit("r.viewshed"))));
+        // import, then r.viewshed and export for each observer
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout("viewshedBatch", dem),
+                1 + 2 * observers.size());
+        Stage stage = new Stage(dem, geodb);
+        if (EXCHANGE == Exchange.EXTERNAL) {
+            stage.source = geotiff(dem);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(SCHEDULER.limit("r.viewshed"));
+        LocationPool.Mapset mapset = null;
+        RasterCache.Entry cached = null;
+        Map<String, String> env = null;
+        try {
+            mapset = POOL.checkout(LocationPool.key(dem), stage);
+            region(mapset, dem.getGridGeometry(), null);
+            env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+
+            // IMPORT DEM once, shared with the job mapsets as dem@mapset
+            String input;
+            if (EXCHANGE == Exchange.EXTERNAL) {
+                link(stage.call(), "dem", mapset.mapset(), env);
+                input = "dem@" + mapset.mapset().getName();
+            } else if (CACHE.enabled()) {
+                cached = cache(geodb, dem, stage, mapset);
+                input = cached.raster();
+            } else {
+                importRaster(stage, "dem", mapset.mapset(), env);
+                input = "dem@" + mapset.mapset().getName();
+            }
+
+            CompletionService<Integer> jobs = new ExecutorCompletionService<Integer>(executor);
+            for (int i = 0; i < observers.size(); i++) {
+                final int index = i;
+                final Coordinate observer = observers.get(i);
+                final LocationPool.Mapset shared = mapset;
+                final String raster = input;
+                jobs.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        try (LocationPool.Mapset job = shared.sibling()) {
+                            Map<String, String> env = customEnv(geodb, job.geodb(), job.location(), job.mapset());
+                            try {
+                                rViewshed(raster, observer.x, observer.y, options, env, job.mapset());
+                                export("viewshed", new File(geodb, "viewshed" + index + ".tif"), env, job.mapset());
+                            } finally {
+                                cleanup(new File(env.get("GISRC")));
+                            }
+                        }
+                        return index;
+                    }
+                });
+            }
+            for (int i = 0; i < observers.size(); i++) {
+                int index;
+                try {
+                    job.check("r.viewshed");
+                    index = jobs.take().get();
+                } catch (ExecutionException failed) {
+                    if (failed.getCause() instanceof Exception) {
+                        throw (Exception) failed.getCause();
+                    }
+                    throw failed;
+                }
+                File file = new File(geodb, "viewshed" + index + ".tif");
+                try (GrassMetrics.Timer timer = METRICS.time("read")) {
+                    GeoTiffReader reader = new GeoTiffFormat().getReader(file);
+                    GridCoverage2D viewshed = reader.read(null);
+                    try {
+                        result.add(index, viewshed.getRenderedImage(), JavaViewshed.nodata(viewshed));
+                    } finally {
+                        viewshed.dispose(true);
+                        reader.dispose();
+                    }
+                }
+                cleanup(file);
+            }
+        } finally {
+            try (GrassMetrics.Timer timer = METRICS.time("cleanup")) {
+                executor.shutdownNow();
+                executor.awaitTermination(60, TimeUnit.SECONDS);
+                if (cached != null) {
+                    CACHE.release(cached);
+                }
+                if (env != null) {
+                    cleanup(new File(env.get("GISRC")));
+                }
+                if (mapset != null) {
+                    mapset.close();
+                }
+                stage.cleanup();
+                job.finish();
+                SCRATCH.finish(geodb);
+            }
+        }
+    }
+
+    @DescribeProcess(title = "r.slope.aspect slope", description = "Computes the slope of an elevation raster map, processing tiles in parallel.")
+    @DescribeResult(description="slope")
+    public static GridCoverage2D slope(
+            @DescribeParameter(name = "dem", description = "digitial elevation model")
+            GridCoverage2D dem,
+            @DescribeParameter(name = "format", description = "degrees (default) or percent", min = 0)
+            String format,
+            @DescribeParameter(name = "resolution", description = "preview cell size in map units, using the coarsest overview of the dem with cells no larger (default full resolution)", min = 0)
+            Double resolution,
+            ProgressListener monitor) throws Exception {
+        dem = PYRAMID.level(dem, resolution);
+        final KVP options = new KVP();
+        if (format != null) {
+            if (!"degrees".equals(format) && !"percent".equals(format)) {
+                throw new IllegalArgumentException("format "+format+" invalid, expected degrees or percent");
+            }
+            options.put("format", format);
+        }
+        return tiled("slope", dem, 1, new TileModule() {
+            @Override
+            public void run(String input, String output, Map<String, String> env, File mapset) throws Exception {
+                CommandLine cmd = new CommandLine(bin("r.slope.aspect"));
+                cmd.addArgument("elevation=${input}");
+                cmd.addArgument("slope=${output}");
+                for (String option : options.keySet()) {
+                    cmd.addArgument(option+"=${"+option+"}");
+                }
+                cmd.addArgument("--overwrite");
+                KVP kvp = new KVP("input", input, "output", output);
+                kvp.putAll(options);
+                cmd.setSubstitutionMap(kvp);
+                execute(cmd, env, mapset);
+            }
+        }, monitor);
+    }
+
+    @DescribeProcess(title = "r.slope.aspect aspect", description = "Computes the aspect of an elevation raster map, processing tiles in parallel.")
+    @DescribeResult(description="aspect in degrees counterclockwise from east")
+    public static GridCoverage2D aspect(
+            @DescribeParameter(name = "dem", description = "digitial elevation model")
+            GridCoverage2D dem,
+            @DescribeParameter(name = "resolution", description = "preview cell size in map units, using the coarsest overview of the dem with cells no larger (default full resolution)", min = 0)
+            Double resolution,
+            ProgressListener monitor) throws Exception {
+        dem = PYRAMID.level(dem, resolution);
+        return tiled("aspect", dem, 1, new TileModule() {
+            @Override
+            public void run(String input, String output, Map<String, String> env, File mapset) throws Exception {
+                CommandLine cmd = new CommandLine(bin("r.slope.aspect"));
+                cmd.addArgument("elevation=${input}");
+                cmd.addArgument("aspect=${output}");
+                cmd.addArgument("--overwrite");
+                cmd.setSubstitutionMap(new KVP("input", input, "output", output));
+                execute(cmd, env, mapset);
+            }
+        }, monitor);
+    }
+
+    @DescribeProcess(title = "r.neighbors", description = "Computes a statistic of the neighbourhood of each cell of a raster map, processing tiles in parallel.")
+    @DescribeResult(description="neighbourhood statistic")
+    public static GridCoverage2D neighbors(
+            @DescribeParameter(name = "raster", description = "input raster")
+            GridCoverage2D raster,
+            @DescribeParameter(name = "method", description = "average (default), median, mode, minimum, maximum, range, stddev, sum, count, variance, diversity, interspersion, quart1, quart3, perc90 or quantile", min = 0)
+            String method,
+            @DescribeParameter(name = "size", description = "neighbourhood size in cells, odd (default 3)", min = 0)
+            Integer size,
+            ProgressListener monitor) throws Exception {
+        final String statistic = method != null ? method : "average";
+        final int cells = size != null ? size : 3;
+        if (cells < 1 || cells % 2 == 0) {
+            throw new IllegalArgumentException("size "+cells+" invalid, expected an odd number of cells");
+        }
+        return tiled("neighbors", raster, cells / 2, new TileModule() {
+            @Override
+            public void run(String input, String output, Map<String, String> env, File mapset) throws Exception {
+                CommandLine cmd = new CommandLine(bin("r.neighbors"));
+                cmd.addArgument("input=${input}");
+                cmd.addArgument("output=${output}");
+                cmd.addArgument("method=${method}");
+                cmd.addArgument("size=${size}");
+                cmd.addArgument("--overwrite");
+                cmd.setSubstitutionMap(new KVP("input", input, "output", output, "method", statistic, "size", cells));
+                execute(cmd, env, mapset);
+            }
+        }, monitor);
+    }
+
+    /**
+     * GRASS module run on a single tile by {@link GrassProcesses#tiled(String, GridCoverage2D, int, TileModule, ProgressListener)}.
+     */
+    interface TileModule {
+        /**
+         * Run module over the current region of mapset.
+         *
+         * @param input GRASS raster name of the input coverage
+         * @param output GRASS raster name to write
+         * @param env environment from {@link GrassProcesses#customEnv(File, File, File, File)}
+         * @param mapset mapset directory, used as working directory
+         */
+        void run(String input, String output, Map<String, String> env, File mapset) throws Exception;
+    }
+
+    /**
+     * Run a module with a local neighbourhood over a large coverage by splitting it into tiles.
+     * <p>
+     * The coverage is imported once. Each tile runs concurrently in its own mapset, with the
+     * region extended by halo cells so cells at the edge of the tile see their full
+     * neighbourhood, and is then trimmed back to the tile. The trimmed tiles are patched
+     * together and exported by GRASS, so the mosaic is only held on disk and read lazily.
+     *
+     * @param process process name, used to look up its timeout
+     * @param coverage input coverage
+     * @param halo neighbourhood of the module in cells
+     * @param module module run on each tile
+     * @param monitor progress listener, or null
+     * @return mosaic of module output
+     */
+    static GridCoverage2D tiled(String process, GridCoverage2D coverage, int halo, TileModule module,
+            ProgressListener monitor) throws Exception {
+        if (EXEC == null) {
+            throw new IllegalStateException("GRASS unavailable");
+        }
+        File geodb = SCRATCH.create(estimate(coverage, 1));
+        // import, module and trim for each tile, then patch and export
+        int tiles = tiles(coverage.getGridGeometry().getGridRange2D(), TILE_SIZE).size();
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout(process, coverage), 2 * tiles + 3);
+        try {
+            File mosaic = tiled(geodb, coverage, halo, module);
+            try (GrassMetrics.Timer timer = METRICS.time("read")) {
+                return ScratchCoverage.read(mosaic, geodb);
+            }
+        } finally {
+            job.finish();
+            SCRATCH.finish(geodb);
+        }
+    }
+
+    /**
+     * Run module over tiles of coverage, writing the mosaic to geodb/mosaic.tif.
+     */
+    private static File tiled(final File geodb, GridCoverage2D coverage, int halo, final TileModule module)
+            throws Exception {
+        GridGeometry2D grid = coverage.getGridGeometry();
+        final GridEnvelope2D range = grid.getGridRange2D();
+        List<Rectangle> tiles = tiles(range, TILE_SIZE);
+        final int overlap = Math.max(halo, TILE_HALO);
+
+        Stage stage = new Stage(coverage, geodb);
+        if (EXCHANGE == Exchange.EXTERNAL) {
+            stage.source = geotiff(coverage);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(tiles.size(), Runtime.getRuntime().availableProcessors()));
+        final List<LocationPool.Mapset> jobs = Collections.synchronizedList(new ArrayList<LocationPool.Mapset>());
+        LocationPool.Mapset mapset = null;
+        RasterCache.Entry cached = null;
+        Map<String, String> env = null;
+        File mosaic = new File(geodb, "mosaic.tif");
+        try {
+            mapset = POOL.checkout(LocationPool.key(coverage), stage);
+            region(mapset, grid, null);
+            env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+
+            // IMPORT coverage once, shared with the tile mapsets as input@mapset
+            String input;
+            if (EXCHANGE == Exchange.EXTERNAL) {
+                link(stage.call(), "input", mapset.mapset(), env);
+                input = "input@" + mapset.mapset().getName();
+            } else if (CACHE.enabled()) {
+                cached = cache(geodb, coverage, stage, mapset);
+                input = cached.raster();
+            } else {
+                importRaster(stage, "input", mapset.mapset(), env);
+                input = "input@" + mapset.mapset().getName();
+            }
+
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final Rectangle tile : tiles) {
+                final LocationPool.Mapset shared = mapset;
+                final String raster = input;
+                final GridGeometry2D geometry = grid;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        LocationPool.Mapset job = shared.sibling();
+                        jobs.add(job);
+                        Map<String, String> env = customEnv(geodb, job.geodb(), job.location(), job.mapset());
+                        try {
+                            // compute over tile and halo
+                            Rectangle extended = new Rectangle(tile.x - overlap, tile.y - overlap,
+                                    tile.width + 2 * overlap, tile.height + 2 * overlap).intersection(range);
+                            tileRegion(job, geometry, extended);
+                            module.run(raster, "output", env, job.mapset());
+
+                            // trim halo
+                            tileRegion(job, geometry, tile);
+                            CommandLine cmd = new CommandLine(bin("r.mapcalc"));
+                            cmd.addArgument("expression=tile=output");
+                            cmd.addArgument("--overwrite");
+                            execute(cmd, env, job.mapset());
+                        } finally {
+                            cleanup(new File(env.get("GISRC")));
+                        }
+                        return "tile@" + job.mapset().getName();
+                    }
+                }));
+            }
+            StringBuilder patch = new StringBuilder();
+            for (Future<String> result : results) {
+                try {
+                    String tile = result.get();
+                    patch.append(patch.length() == 0 ? "" : ",").append(tile);
+                } catch (ExecutionException failed) {
+                    if (failed.getCause() instanceof Exception) {
+                        throw (Exception) failed.getCause();
+                    }
+                    throw failed;
+                }
+            }
+
+            // MOSAIC tiles over the full region
+            try (GrassMetrics.Timer timer = METRICS.time("mosaic")) {
+                if (tiles.size() == 1) {
+                    export(patch.toString(), mosaic, env, mapset.mapset());
+                } else {
+                    CommandLine cmd = new CommandLine(bin("r.patch"));
+                    cmd.addArgument("input=${tiles}");
+                    cmd.addArgument("output=mosaic");
+                    cmd.addArgument("--overwrite");
+                    cmd.setSubstitutionMap(new KVP("tiles", patch.toString()));
+                    execute(cmd, env, mapset.mapset());
+
+                    export("mosaic", mosaic, env, mapset.mapset());
+                }
+            }
+        } finally {
+            try (GrassMetrics.Timer timer = METRICS.time("cleanup")) {
+                executor.shutdownNow();
+                executor.awaitTermination(60, TimeUnit.SECONDS);
+                for (LocationPool.Mapset job : jobs) {
+                    job.close();
+                }
+                if (cached != null) {
+                    CACHE.release(cached);
+                }
+                if (env != null) {
+                    cleanup(new File(env.get("GISRC")));
+                }
+                if (mapset != null) {
+                    mapset.close();
+                }
+                stage.cleanup();
+            }
+        }
+        return mosaic;
+    }
+
+    /**
+     * Split range into tiles of at most size cells wide and high.
+     *
+     * @param range grid range
+     * @param size tile width and height
+     * @return tiles, in grid coordinates of range, by row
+     */
+    static List<Rectangle> tiles(GridEnvelope2D range, int size) {
+        List<Rectangle> tiles = new ArrayList<Rectangle>();
+        for (int y = range.y; y < range.y + range.height; y += size) {
+            for (int x = range.x; x < range.x + range.width; x += size) {
+                tiles.add(new Rectangle(x, y, Math.min(size, range.x + range.width - x),
+                        Math.min(size, range.y + range.height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /** Define region of mapset as cells of grid */
+    private static void tileRegion(LocationPool.Mapset mapset, GridGeometry2D grid, Rectangle cells) throws Exception {
+        GridEnvelope2D range = new GridEnvelope2D(cells);
+        LocationPool.region(new File(mapset.mapset(), "WIND"), grid.gridToWorld(range), range);
+    }
+
+    /**
+     * Run a pipeline of GRASS modules in a single mapset.
+     * <p>
+     * Raster inputs are imported once, or referenced directly when given as a raster handle
+     * ({@link GrassPipeline#HANDLE} suffix). The location and region are defined by the first
+     * raster input. Each step runs in turn leaving intermediate rasters in GRASS format, and
+     * each output is exported once, or kept in the mapset and returned as a handle when
+     * {@link GrassPipeline#HANDLES} is true.
+     *
+     * @param pipeline pipeline description
+     * @param input input values by name
+     * @param monitor progress listener, or null
+     * @return output coverages (or handles) by name
+     */
+    static Map<String, Object> pipeline(GrassPipeline pipeline, Map<String, Object> input,
+            ProgressListener monitor) throws Exception {
+        if (EXEC == null) {
+            throw new IllegalStateException("GRASS unavailable");
+        }
+        long estimate = 0;
+        int imports = 0;
+        GridCoverage2D first = null;
+        if (input != null) {
+            for (GrassPipeline.Input parameter : pipeline.inputs) {
+                if (input.get(parameter.name) instanceof GridCoverage2D) {
+                    GridCoverage2D coverage = (GridCoverage2D) input.get(parameter.name);
+                    estimate += estimate(coverage, pipeline.outputs.size());
+                    imports++;
+                    first = first == null ? coverage : first;
+                }
+            }
+        }
+        File geodb = SCRATCH.create(estimate);
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout(pipeline.name, first),
+                imports + pipeline.steps.size() + pipeline.outputs.size());
+        try {
+            return pipeline(geodb, pipeline, input);
+        } finally {
+            job.finish();
+            SCRATCH.finish(geodb);
+        }
+    }
+
+    private static Map<String, Object> pipeline(File geodb, GrassPipeline pipeline, Map<String, Object> input)
+            throws Exception {
+        if (input == null) {
+            input = Collections.emptyMap();
+        }
+        boolean keep = Boolean.TRUE.equals(input.get(GrassPipeline.HANDLES));
+        if (keep && !HANDLES.enabled()) {
+            throw new IllegalArgumentException("Raster handles disabled (GRASS_HANDLE_QUOTA=0)");
+        }
+        KVP values = new KVP();
+        Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+        Map<String, RasterHandles.Handle> handles = new LinkedHashMap<String, RasterHandles.Handle>();
+        // first raster input, defining location and region
+        Object region = null;
+        LocationPool.Mapset mapset = null;
+        RasterCache.Entry cached = null;
+        Map<String, String> env = null;
+        try {
+            for (GrassPipeline.Input parameter : pipeline.inputs) {
+                Object value = input.get(parameter.name);
+                if (value == null && parameter.isRaster() && input.get(parameter.name + GrassPipeline.HANDLE) != null) {
+                    RasterHandles.Handle handle = HANDLES.checkout((String) input.get(parameter.name + GrassPipeline.HANDLE));
+                    handles.put(parameter.name, handle);
+                    value = handle;
+                }
+                if (value == null) {
+                    value = parameter.defaultValue;
+                }
+                if (value == null) {
+                    if (parameter.required) {
+                        throw new IllegalArgumentException(pipeline.name + " requires " + parameter.name);
+                    }
+                } else if (value instanceof GridCoverage2D) {
+                    GridCoverage2D coverage = (GridCoverage2D) value;
+                    File directory = new File(geodb, parameter.name);
+                    directory.mkdirs();
+                    Stage stage = new Stage(coverage, directory);
+                    if (EXCHANGE == Exchange.EXTERNAL) {
+                        stage.source = geotiff(coverage);
+                    }
+                    stages.put(parameter.name, stage);
+                    region = region == null ? stage : region;
+                } else if (value instanceof RasterHandles.Handle) {
+                    region = region == null ? value : region;
+                } else {
+                    values.put(parameter.name, value);
+                }
+            }
+
+            if (region instanceof RasterHandles.Handle) {
+                // work alongside the handle, using its location and region
+                mapset = ((RasterHandles.Handle) region).mapset.sibling();
+            } else {
+                Stage stage = (Stage) region;
+                mapset = POOL.checkout(LocationPool.key(stage.coverage), stage);
+                region(mapset, stage.coverage.getGridGeometry(), null);
+            }
+            env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+
+            // REFERENCE raster handles, and IMPORT other raster inputs once
+            for (Map.Entry<String, RasterHandles.Handle> entry : handles.entrySet()) {
+                RasterHandles.Handle handle = entry.getValue();
+                if (!handle.mapset.location().equals(mapset.location())) {
+                    throw new IllegalArgumentException("Raster handle " + handle.id + " for " + entry.getKey()
+                            + " does not match the location of " + pipeline.name);
+                }
+                values.put(entry.getKey(), handle.qualified());
+            }
+            for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+                String name = entry.getKey();
+                Stage stage = entry.getValue();
+                if (EXCHANGE == Exchange.EXTERNAL) {
+                    link(stage.call(), name, mapset.mapset(), env);
+                    values.put(name, name);
+                } else if (CACHE.enabled() && stage == region) {
+                    cached = cache(geodb, stage.coverage, stage, mapset);
+                    values.put(name, cached.raster());
+                } else {
+                    importRaster(stage, name, mapset.mapset(), env);
+                    values.put(name, name);
+                }
+            }
+
+            // EXECUTE steps
+            for (GrassPipeline.Step step : pipeline.steps) {
+                CommandLine cmd = new CommandLine(bin(step.module));
+                for (String arg : pipeline.arguments(step, values.keySet())) {
+                    cmd.addArgument(arg);
+                }
+                cmd.addArgument("--overwrite");
+                cmd.setSubstitutionMap(values);
+                execute(cmd, env, mapset.mapset());
+            }
+
+            if (keep) {
+                // KEEP outputs in mapset, now owned by the handles
+                Map<String, Object> results = new LinkedHashMap<String, Object>();
+                LocationPool.Mapset outputs = mapset;
+                mapset = null;
+                List<String> rasters = new ArrayList<String>();
+                for (GrassPipeline.Output output : pipeline.outputs) {
+                    rasters.add(output.raster);
+                }
+                List<String> ids = HANDLES.add(outputs, rasters);
+                for (int i = 0; i < ids.size(); i++) {
+                    results.put(pipeline.outputs.get(i).name, ids.get(i));
+                }
+                return results;
+            }
+            // EXPORT outputs
+            for (GrassPipeline.Output output : pipeline.outputs) {
+                export(output.raster, new File(geodb, output.name + ".tif"), env, mapset.mapset());
+            }
+        } finally {
+            try (GrassMetrics.Timer timer = METRICS.time("cleanup")) {
+                for (RasterHandles.Handle handle : handles.values()) {
+                    HANDLES.release(handle);
+                }
+                if (cached != null) {
+                    CACHE.release(cached);
+                }
+                if (env != null) {
+                    cleanup(new File(env.get("GISRC")));
+                }
+                if (mapset != null) {
+                    mapset.close();
+                }
+                for (Stage stage : stages.values()) {
+                    stage.cleanup();
+                }
+            }
+        }
+
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        try (GrassMetrics.Timer timer = METRICS.time("read")) {
+            for (GrassPipeline.Output output : pipeline.outputs) {
+                results.put(output.name, ScratchCoverage.read(new File(geodb, output.name + ".tif"), geodb));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Object result : results.values()) {
+                ((GridCoverage2D) result).dispose(true);
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    @DescribeProcess(title = "GRASS stage", description = "Imports a raster into GRASS, returning a handle for use as input to later GRASS processes.")
+    @DescribeResult(description="raster handle, valid until unused for GRASS_HANDLE_TTL")
+    public static String stage(
+            @DescribeParameter(name = "raster", description = "raster to import")
+            GridCoverage2D raster,
+            ProgressListener monitor) throws Exception {
+        if (EXEC == null) {
+            throw new IllegalStateException("GRASS unavailable");
+        }
+        if (!HANDLES.enabled()) {
+            throw new IllegalArgumentException("Raster handles disabled (GRASS_HANDLE_QUOTA=0)");
+        }
+        File geodb = SCRATCH.create(estimate(raster, 0));
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout("stage", raster), 1);
+        Stage stage = new Stage(raster, geodb);
+        LocationPool.Mapset mapset = null;
+        Map<String, String> env = null;
+        try {
+            mapset = POOL.checkout(LocationPool.key(raster), stage);
+            region(mapset, raster.getGridGeometry(), null);
+            env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+            importRaster(stage, "raster", mapset.mapset(), env);
+
+            LocationPool.Mapset kept = mapset;
+            mapset = null;
+            return HANDLES.add(kept, "raster");
+        } finally {
+            try (GrassMetrics.Timer timer = METRICS.time("cleanup")) {
+                if (env != null) {
+                    cleanup(new File(env.get("GISRC")));
+                }
+                if (mapset != null) {
+                    mapset.close();
+                }
+                stage.cleanup();
+                job.finish();
+                SCRATCH.finish(geodb);
+            }
+        }
+    }
+
+    @DescribeProcess(title = "GRASS fetch", description = "Exports the raster referred to by a handle.")
+    @DescribeResult(description="raster")
+    public static GridCoverage2D fetch(
+            @DescribeParameter(name = "handle", description = "raster handle from grass:stage or a pipeline")
+            String handle,
+            ProgressListener monitor) throws Exception {
+        if (EXEC == null) {
+            throw new IllegalStateException("GRASS unavailable");
+        }
+        RasterHandles.Handle raster = HANDLES.checkout(handle);
+        File geodb;
+        try {
+            // exported raster, estimated by the mapset holding it
+            geodb = SCRATCH.create(FileUtils.sizeOfDirectory(raster.mapset.mapset()));
+        } catch (IOException | RuntimeException e) {
+            HANDLES.release(raster);
+            throw e;
+        }
+        GrassJob job = GrassJob.start(geodb, monitor, GrassJob.timeout("fetch", null), 1);
+        try {
+            File file = new File(geodb, "raster.tif");
+            try (LocationPool.Mapset mapset = raster.mapset.sibling()) {
+                Map<String, String> env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+                try {
+                    export(raster.qualified(), file, env, mapset.mapset());
+                } finally {
+                    cleanup(new File(env.get("GISRC")));
+                }
+            } finally {
+                HANDLES.release(raster);
+            }
+            try (GrassMetrics.Timer timer = METRICS.time("read")) {
+                return ScratchCoverage.read(file, geodb);
+            }
+        } finally {
+            job.finish();
+            SCRATCH.finish(geodb);
+        }
+    }
+
+    /**
+     * Choose viewshed engine: in-process when GRASS is unavailable, or for regions up to
+     * GRASS_VIEWSHED_CELLS when the engine is AUTO.
+     *
+     * @param dem digital elevation model
+     * @param area optional area of interest (limited by max_distance)
+     * @return JAVA or GRASS
+     */
+    static Engine engine(GridCoverage2D dem, Envelope2D area) {
+        if (EXEC == null) {
+            return Engine.JAVA;
+        }
+        if (ENGINE != Engine.AUTO) {
+            return ENGINE;
+        }
+        GridEnvelope2D range = dem.getGridGeometry().getGridRange2D();
+        double cells = (double) range.width * range.height;
+        if (area != null) {
+            Envelope2D bounds = dem.getEnvelope2D();
+            double fraction = Math.min(1, area.getWidth() / bounds.getWidth())
+                    * Math.min(1, area.getHeight() / bounds.getHeight());
+            cells *= fraction;
+        }
+        return cells <= VIEWSHED_CELLS ? Engine.JAVA : Engine.GRASS;
+    }
+
+    /**
+     * Define mapset region, aligned to the provided grid.
+     *
+     * @param mapset job mapset
+     * @param grid grid geometry of raster
+     * @param area optional area of interest, region is restricted to the grid cells covering area
+     * @throws Exception if the region could not be defined
+     */
+    private static void region(LocationPool.Mapset mapset, GridGeometry2D grid, Envelope2D area) throws Exception {
+        GridEnvelope2D range = grid.getGridRange2D();
+        Envelope2D bounds = grid.getEnvelope2D();
+        if (area != null) {
+            GridEnvelope2D cells = grid.worldToGrid(area);
+            range = new GridEnvelope2D(cells.intersection(range));
+            if (range.isEmpty()) {
+                throw new IllegalArgumentException("Area "+area+" outside of dem");
+            }
+            bounds = grid.gridToWorld(range);
         }
+        LocationPool.region(new File(mapset.mapset(), "WIND"), bounds, range);
+    }
 
-        // EXECUTE VIEWSHED
+    private static File viewshed(File geodb, GridCoverage2D dem, Stage stage, LocationPool.Mapset mapset,
+            double x, double y, KVP options, Encoding encoding, double tolerance) throws Exception {
+        Map<String,String> env = customEnv(geodb, mapset.geodb(), mapset.location(), mapset.mapset());
+        RasterCache.Entry cached = null;
+        try {
+            // IMPORT DEM (or reuse cached import)
+            String input;
+            if (EXCHANGE == Exchange.EXTERNAL) {
+                link(stage.call(), "dem", mapset.mapset(), env);
+                input = "dem";
+            } else if (CACHE.enabled()) {
+                cached = cache(geodb, dem, stage, mapset);
+                input = cached.raster();
+            } else {
+                importRaster(stage, "dem", mapset.mapset(), env);
+                input = "dem";
+            }
+
+            File viewshed = new File( geodb, "viewshed." + encoding.extension);
+            // angles can be written directly, other encodings are derived within the mapset
+            boolean external = EXCHANGE == Exchange.EXTERNAL && encoding == Encoding.ANGLES;
+            if (external) {
+                // write raster output directly to geodb/viewshed.tif
+                externalOut(geodb, mapset.mapset(), env);
+            }
+
+            // EXECUTE VIEWSHED
+            rViewshed(input, x, y, options, env, mapset.mapset());
+
+            if (!external) {
+                // EXECUTE EXPORT VIEWSHED
+                encode("viewshed", viewshed, encoding, tolerance, env, mapset.mapset());
+            }
+
+            return viewshed;
+        } finally {
+            if (cached != null) {
+                CACHE.release(cached);
+            }
+            cleanup( new File(env.get("GISRC")));
+        }
+    }
+
+    /**
+     * Run r.viewshed, writing raster viewshed in mapset.
+     *
+     * @param input GRASS raster name of dem
+     * @param x viewpoint x location
+     * @param y viewpoint y location
+     * @param options r.viewshed options
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     * @param mapset mapset directory, used as working directory
+     */
+    private static void rViewshed(String input, double x, double y, KVP options, Map<String, String> env,
+            File mapset) throws Exception {
         File r_viewshed = bin("r.viewshed");
-        cmd = new CommandLine( r_viewshed );
-        cmd.addArgument("input=dem");
+        CommandLine cmd = new CommandLine( r_viewshed );
+        cmd.addArgument("input=${input}");
         cmd.addArgument("output=viewshed");
         cmd.addArgument("coordinates=${x},${y}");
+        cmd.addArgument("memory=${memory}");
+        for (String option : options.keySet()) {
+            cmd.addArgument(option+"=${"+option+"}");
+        }
         cmd.addArgument("--overwrite");
-        cmd.setSubstitutionMap(new KVP("x",x,"y",y));
+        KVP kvp = new KVP("input",input,"x",x,"y",y,"memory",SCHEDULER.memory);
+        kvp.putAll(options);
+        cmd.setSubstitutionMap(kvp);
 
-        try {
-            LOGGER.info(cmd.toString());
-            executor.setExitValue(0);
-            int exitValue = executor.execute(cmd,env);
-        }
-        catch( ExecuteException fail ){
-            LOGGER.warning(r_viewshed.getName()+":"+fail.getLocalizedMessage());
-            throw fail;
+        execute(cmd, env, mapset);
+    }
+
+    /**
+     * Export viewshed raster to file in the requested encoding.
+     * <p>
+     * Angles are exported as is. A mask is computed with r.mapcalc (1 visible, 0 not visible)
+     * and exported as a 1-bit GeoTIFF. Compressed output rounds angles to whole degrees, exported
+     * as bytes with 255 for cells not visible. Both are compressed using GRASS_COMPRESSION.
+     * Polygons are vectorized with r.to.vect, simplified with v.generalize and written as WKT
+     * by v.out.ascii.
+     *
+     * @param raster GRASS raster name of viewshed
+     * @param file file to write
+     * @param encoding output encoding
+     * @param tolerance simplification threshold for polygons, 0 for none
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     * @param mapset mapset directory, used as working directory
+     */
+    private static void encode(String raster, File file, Encoding encoding, double tolerance,
+            Map<String, String> env, File mapset) throws Exception {
+        switch (encoding) {
+        case MASK:
+            mapcalc("mask=if(isnull(" + raster + "),0,1)", env, mapset);
+            export("mask", file, env, mapset, "type=Byte", "createopt=TILED=YES,NBITS=1,COMPRESS=" + COMPRESSION);
+            break;
+        case COMPRESSED:
+            mapcalc("degrees=round(" + raster + ")", env, mapset);
+            // null cells (not visible) written as nodata
+            export("degrees", file, env, mapset, "type=Byte", "nodata=255",
+                    "createopt=TILED=YES,COMPRESS=" + COMPRESSION);
+            break;
+        case POLYGONS:
+            mapcalc("visible=if(isnull(" + raster + "),null(),1)", env, mapset);
+            CommandLine cmd = new CommandLine(bin("r.to.vect"));
+            cmd.addArgument("-s");
+            cmd.addArgument("input=visible");
+            cmd.addArgument("output=visible");
+            cmd.addArgument("type=area");
+            cmd.addArgument("--overwrite");
+            execute(cmd, env, mapset);
+
+            String vector = "visible";
+            if (tolerance > 0) {
+                cmd = new CommandLine(bin("v.generalize"));
+                cmd.addArgument("input=visible");
+                cmd.addArgument("output=simplified");
+                cmd.addArgument("method=douglas");
+                cmd.addArgument("threshold=${tolerance}");
+                cmd.addArgument("--overwrite");
+                cmd.setSubstitutionMap(new KVP("tolerance", tolerance));
+                execute(cmd, env, mapset);
+                vector = "simplified";
+            }
+            cmd = new CommandLine(bin("v.out.ascii"));
+            cmd.addArgument("input=${vector}");
+            cmd.addArgument("output=${file}");
+            cmd.addArgument("type=area");
+            cmd.addArgument("format=wkt");
+            cmd.addArgument("--overwrite");
+            cmd.setSubstitutionMap(new KVP("vector", vector, "file", file));
+            execute(cmd, env, mapset);
+            break;
+        default:
+            export(raster, file, env, mapset);
         }
+    }
 
-        // EXECUTE EXPORT VIEWSHED
-        // r.out.gdal --overwrite input=viewshed@PERMANENT output=/Users/jody/grassdata/viewshed/viewshed.tif format=GTiff
-        File viewshed = new File( location, "viewshed.tif");
+    /**
+     * Run r.mapcalc.
+     *
+     * @param expression map algebra expression
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     * @param mapset mapset directory, used as working directory
+     */
+    private static void mapcalc(String expression, Map<String, String> env, File mapset) throws Exception {
+        CommandLine cmd = new CommandLine(bin("r.mapcalc"));
+        cmd.addArgument("expression=" + expression);
+        cmd.addArgument("--overwrite");
+        execute(cmd, env, mapset);
+    }
 
+    /**
+     * Export raster to a GeoTIFF file using r.out.gdal.
+     *
+     * @param raster GRASS raster name
+     * @param file GeoTIFF file to write
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     * @param mapset mapset directory, used as working directory
+     * @param options additional r.out.gdal options, such as type and createopt (default TILED=YES)
+     */
+    private static void export(String raster, File file, Map<String, String> env, File mapset,
+            String... options) throws Exception {
+        // r.out.gdal --overwrite input=viewshed@PERMANENT output=/Users/jody/grassdata/viewshed/viewshed.tif format=GTiff
         File r_out_gdal = bin("r.out.gdal");
-        cmd = new CommandLine( r_out_gdal );
-        cmd.addArgument("input=viewshed");
-        cmd.addArgument("output=${viewshed}");
+        CommandLine cmd = new CommandLine( r_out_gdal );
+        cmd.addArgument("input=${raster}");
+        cmd.addArgument("output=${file}");
         cmd.addArgument("--overwrite");
         cmd.addArgument("format=GTiff");
-        cmd.setSubstitutionMap(new KVP("viewshed", viewshed));
+        boolean createopt = false;
+        for (String option : options) {
+            cmd.addArgument(option);
+            createopt |= option.startsWith("createopt=");
+        }
+        if (!createopt) {
+            // tiled, so results can be read a tile at a time
+            cmd.addArgument("createopt=TILED=YES");
+        }
+        cmd.setSubstitutionMap(new KVP("raster", raster, "file", file));
 
-        try {
-            LOGGER.info(cmd.toString());
-            executor.setExitValue(0);
-            int exitValue = executor.execute(cmd,env);
+        execute(cmd, env, mapset);
+    }
+
+    /**
+     * Look up dem in the raster cache, importing it into the PERMANENT mapset of the
+     * location if it is not already available.
+     *
+     * @param geodb job directory
+     * @param dem digital elevation model
+     * @param stage staged dem file, used if the dem is not already cached
+     * @param mapset job mapset
+     * @return cache entry, to be released when no longer in use
+     * @throws Exception if the dem could not be imported
+     */
+    private static RasterCache.Entry cache(File geodb, GridCoverage2D dem, Stage stage, LocationPool.Mapset mapset)
+            throws Exception {
+        String name = RasterCache.name(RasterCache.fingerprint(dem));
+        Object lock = CACHE.lock(mapset.location(), name);
+        synchronized (lock) {
+            RasterCache.Entry entry = null;
+            try {
+                entry = CACHE.checkout(mapset.location(), name);
+                if (entry != null) {
+                    LOGGER.info("Cached raster:"+entry.raster());
+                    return entry;
+                }
+                File permanent = new File(mapset.location(), "PERMANENT");
+                Map<String, String> env = customEnv(geodb, mapset.geodb(), mapset.location(), permanent);
+                try {
+                    importRaster(stage, name, permanent, env);
+                } finally {
+                    cleanup(new File(env.get("GISRC")));
+                }
+                entry = CACHE.add(mapset.location(), name);
+                return entry;
+            } finally {
+                if (entry == null) {
+                    // raster not cached, so neither is its lock
+                    CACHE.unlock(mapset.location(), name, lock);
+                }
+            }
         }
-        catch( ExecuteException fail ){
-            LOGGER.warning(r_out_gdal.getName()+":"+fail.getLocalizedMessage());
-            throw fail;
+    }
+
+    /**
+     * Import staged coverage into mapset using r.in.gdal, or r.in.bin for binary staging.
+     *
+     * @param stage staged coverage
+     * @param name GRASS raster name
+     * @param mapset mapset directory, used as working directory
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     */
+    private static void importRaster(Stage stage, String name, File mapset, Map<String, String> env)
+            throws IOException {
+        if (STAGING == Staging.BINARY && stage.source == null) {
+            importBinary(stage, name, mapset, env);
+            return;
         }
+        File file = stage.call();
 
-        // STAGE RESULT
+        // r.in.gdal input=~/grassdata/viewshed/PERMANENT/dem.tif output=dem --overwrite
+        File r_in_gdal = bin("r.in.gdal");
+        CommandLine cmd = new CommandLine( r_in_gdal );
+        cmd.addArgument("input=${file}");
+        cmd.addArgument("output=${name}");
+        cmd.addArgument("--overwrite");
+        cmd.setSubstitutionMap(new KVP("file",file,"name",name));
+        execute(cmd, env, mapset);
+    }
+
+    /**
+     * Import staged coverage into mapset using r.in.bin, with bounds and resolution
+     * taken from the coverage grid geometry.
+     *
+     * @param stage staged coverage
+     * @param name GRASS raster name
+     * @param mapset mapset directory, used as working directory
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     */
+    private static void importBinary(Stage stage, String name, File mapset, Map<String, String> env)
+            throws IOException {
+        RawRaster raw = stage.raw();
+        Envelope2D bounds = stage.coverage.getEnvelope2D();
 
-        if( !viewshed.exists() ){
-            throw new IOException("Generated viweshed.tif not found");
+
+        // r.in.bin -f input=/tmp/dem.bin output=dem bytes=4 order=little north=.. south=.. east=.. west=.. rows=.. cols=..
+        File r_in_bin = bin("r.in.bin");
+        CommandLine cmd = new CommandLine( r_in_bin );
+        if (raw.floating) {
+            cmd.addArgument(raw.bytes == 8 ? "-d" : "-f");
+        } else if (raw.signed) {
+            cmd.addArgument("-s");
         }
-        GeoTiffReader reader = format.getReader( viewshed );
-        GridCoverage2D coverage = reader.read(null);
-        cleanup( new File(env.get("GISRC")));
-        return coverage;
+        cmd.addArgument("input=${file}");
+        cmd.addArgument("output=${name}");
+        cmd.addArgument("bytes=${bytes}");
+        cmd.addArgument("order=${order}");
+        cmd.addArgument("north=${north}");
+        cmd.addArgument("south=${south}");
+        cmd.addArgument("east=${east}");
+        cmd.addArgument("west=${west}");
+        cmd.addArgument("rows=${rows}");
+        cmd.addArgument("cols=${cols}");
+        KVP kvp = new KVP("file", raw.file, "name", name, "bytes", raw.bytes, "order", raw.order(),
+                "north", bounds.getMaxY(), "south", bounds.getMinY(), "east", bounds.getMaxX(), "west", bounds.getMinX(),
+                "rows", raw.rows, "cols", raw.cols);
+        double[] nodata = stage.coverage.getSampleDimension(0).getNoDataValues();
+        if (nodata != null && nodata.length > 0) {
+            cmd.addArgument("anull=${anull}");
+            kvp.put("anull", nodata[0]);
+        }
+        cmd.addArgument("--overwrite");
+        cmd.setSubstitutionMap(kvp);
+        execute(cmd, env, mapset);
     }
 
-    private static void cleanup(File ... files) {
-        for( File file : files ){
-            FileUtils.deleteQuietly(file);
+    /**
+     * Link raster file into mapset using r.external, rather than importing a copy.
+     *
+     * @param file raster file
+     * @param name GRASS raster name
+     * @param mapset mapset directory, used as working directory
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     */
+    private static void link(File file, String name, File mapset, Map<String, String> env) throws IOException {
+
+        // r.external input=/tmp/dem.tif output=dem -o --overwrite
+        // (-o as location was created from a matching CRS)
+        File r_external = bin("r.external");
+        CommandLine cmd = new CommandLine( r_external );
+        cmd.addArgument("input=${file}");
+        cmd.addArgument("output=${name}");
+        cmd.addArgument("-o");
+        cmd.addArgument("--overwrite");
+        cmd.setSubstitutionMap(new KVP("file",file,"name",name));
+        execute(cmd, env, mapset);
+    }
+
+    /**
+     * Use r.external.out so raster output in mapset is written as GeoTIFF files
+     * in the provided directory, rather than GRASS native format requiring r.out.gdal.
+     *
+     * @param directory directory for output, raster NAME is written as NAME.tif
+     * @param mapset mapset directory, used as working directory
+     * @param env environment from {@link #customEnv(File, File, File, File)}
+     */
+    private static void externalOut(File directory, File mapset, Map<String, String> env) throws IOException {
+
+        // r.external.out directory=/tmp/grassdata format=GTiff extension=tif
+        File r_external_out = bin("r.external.out");
+        CommandLine cmd = new CommandLine( r_external_out );
+        cmd.addArgument("directory=${directory}");
+        cmd.addArgument("format=GTiff");
+        cmd.addArgument("extension=tif");
+        cmd.setSubstitutionMap(new KVP("directory",directory));
+        execute(cmd, env, mapset);
+    }
+
+    /**
+     * GeoTIFF file the coverage was read from, allowing the file to be used
+     * directly rather than staged.
+     *
+     * @param dem coverage
+     * @return GeoTIFF source file, or null if not available
+     */
+    static File geotiff(GridCoverage2D dem) {
+        File source = RasterCache.source(dem);
+        if (source != null) {
+            String name = source.getName().toLowerCase();
+            if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+                return source;
+            }
         }
+        return null;
     }
 
-    private static File bin(String command) {
-            File exec;
-            if (SYSTEM == Env.WINDOWS) {
-                exec = new File(new File(BIN),command+".bat");
-                if (!exec.exists()) {
-                    exec = new File(new File(BIN),command+".exe");
+    /**
+     * Coverage staged on first use, as a GeoTIFF file or raw binary file.
+     * <p>
+     * Also used to create a pooled location for the coverage.
+     */
+    static class Stage implements Callable<File>, LocationPool.Prototype {
+        final GridCoverage2D coverage;
+        /** Staged GeoTIFF file */
+        final File file;
+        /** Staged raw binary file */
+        final File binary;
+        /** Existing GeoTIFF file used instead of staging coverage, if available */
+        File source;
+        private boolean staged;
+        private RawRaster raw;
+
+        Stage(GridCoverage2D coverage, File directory) {
+            this.coverage = coverage;
+            this.file = new File(directory, "dem.tif");
+            this.binary = new File(directory, "dem.bin");
+        }
+
+        @Override
+        public synchronized File call() throws IOException {
+            if (source != null) {
+                return source;
+            }
+            if (!staged) {
+                //The file must exist for FileImageOutputStreamExtImplSpi to create the output stream
+                if (!file.exists()) {
+                    file.getParentFile().mkdirs();
+                    file.createNewFile();
                 }
-            } else {
-                exec = new File(new File(BIN),command);
+                try (GrassMetrics.Timer timer = METRICS.time("staging")) {
+                    final GeoTiffFormat format = new GeoTiffFormat();
+                    GridCoverageWriter writer = format.getWriter(file);
+                    writer.write(coverage, null);
+                }
+                METRICS.staged(file.length());
+                LOGGER.info("Staging file:"+file);
+                staged = true;
+            }
+            return file;
+        }
+
+        /**
+         * Stage coverage as raw binary file, streamed tile by tile.
+         */
+        synchronized RawRaster raw() throws IOException {
+            if (raw == null) {
+                try (GrassMetrics.Timer timer = METRICS.time("staging")) {
+                    raw = RawRaster.write(coverage.getRenderedImage(), binary);
+                }
+                METRICS.staged(binary.length());
+                LOGGER.info("Staging file:"+binary);
             }
+            return raw;
+        }
 
-        if( !exec.exists()){
-            throw new IllegalStateException(command+" not found:"+exec);
+        /**
+         * Create location for coverage. Binary staging uses the EPSG code when available
+         * to avoid writing a GeoTIFF just to create the location.
+         */
+        @Override
+        public void create(File location) throws Exception {
+            Integer epsg = null;
+            if (STAGING == Staging.BINARY && source == null) {
+                epsg = CRS.lookupEpsgCode(coverage.getCoordinateReferenceSystem2D(), false);
+            }
+            Object raster = epsg != null ? "EPSG:" + epsg : call();
+            try (GrassMetrics.Timer timer = METRICS.time("location")) {
+                GrassProcesses.location(location, raster);
+                if (epsg != null) {
+                    File permanent = new File(location, "PERMANENT");
+                    GridEnvelope2D range = coverage.getGridGeometry().getGridRange2D();
+                    LocationPool.region(new File(permanent, "DEFAULT_WIND"), coverage.getEnvelope2D(), range);
+                    LocationPool.region(new File(permanent, "WIND"), coverage.getEnvelope2D(), range);
+                }
+            }
         }
-        if( !exec.canExecute()){
-            throw new IllegalStateException(command+" not executable:"+exec);
+
+        /** Remove staged files */
+        void cleanup() {
+            GrassProcesses.cleanup(file, binary);
         }
-        return exec;
     }
+
+    /**
+     * Execute GRASS module, once a slot is available from the job scheduler.
+     *
+     * @param cmd command line
+     * @param env environment from {@link #customEnv(File, File, File, File)}, or null to inherit
+     * @param directory working directory, or null for the current directory
+     * @return exit value
+     * @throws InterruptedIOException if the process request was cancelled
+     * @throws IOException if the module could not be executed, or failed
+     */
+    static int execute(CommandLine cmd, Map<String,String> env, File directory) throws IOException {
+        String module = module(cmd);
+        GrassJob job = GrassJob.of(env);
+        JobOutput output = new JobOutput(OUTPUT_LIMIT);
+        long queued = System.nanoTime();
+        try (JobScheduler.Slot slot = SCHEDULER.acquire(module)) {
+            METRICS.record("queue", System.nanoTime() - queued);
+            if (job != null) {
+                job.check(module);
+            }
+            LOGGER.info(cmd.toString());
+            int exitValue;
+            // progress parsed from output, killed by the job watcher on timeout or cancel
+            GrassJob.Task task = GrassJob.task(job, module, output);
+            try (GrassMetrics.Timer timer = METRICS.time(module)) {
+                exitValue = EXECUTOR.execute(cmd, env, directory, task);
+            } catch (ExecuteException fail) {
+                if ("cancelled".equals(task.killed())) {
+                    throw new InterruptedIOException(module + " cancelled");
+                } else if (task.killed() != null) {
+                    throw new GrassJob.Killed(module + " " + task.killed(), fail.getExitValue(), fail);
+                }
+                throw fail;
+            } finally {
+                task.close();
+            }
+            METRICS.exit(module, exitValue);
+            LOGGER.fine(module + " output:\n" + output);
+            return exitValue;
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(module + " interrupted waiting for GRASS job scheduler");
+        } catch (ExecuteException fail) {
+            METRICS.exit(module, fail.getExitValue());
+            LOGGER.warning(module + ":" + fail.getLocalizedMessage() + "\n" + output);
+            throw fail;
+        }
+    }
+
+    /**
+     * Module name for command line, such as r.viewshed.
+     */
+    static String module(CommandLine cmd) {
+        String name = new File(cmd.getExecutable()).getName();
+        if (name.endsWith(".exe") || name.endsWith(".bat")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name;
+    }
+
+    private static void cleanup(File ... files) {
+        for( File file : files ){
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private static File bin(String command) {
+        return CATALOG.module(command);
+    }
+
     /**
      * Define environment variable for independent grass operation.
      * see: http://grasswiki.osgeo.org/wiki/GRASS_and_Shell
+     * @param scratch job directory, holding the GISRC file
      * @param geodb
      * @param location
      * @param mapset
      * @return
      * @throws IOException
      */
-    private static Map<String, String> customEnv(File geodb, File location, File mapset) throws IOException {
-        Map<String, String> env = EnvironmentUtils.getProcEnvironment();
-        // GRASS ENV
-        File GISBASE = new File(EXEC).getParentFile();
-        String GRASS_VERSION = "7.0.0";
-        EnvironmentUtils.addVariableToEnvironment(env, "GISBASE="+GISBASE);
-        EnvironmentUtils.addVariableToEnvironment(env, "GRASS_VERSION="+GRASS_VERSION);
+    static Map<String, String> customEnv(File scratch, File geodb, File location, File mapset)
+            throws IOException {
+        Map<String, String> env = baseEnv();
+        String GRASS_VERSION = env.get("GRASS_VERSION");
 
-        File GISRC = new File(System.getProperty("user.home"),".grassrc."+GRASS_VERSION+"."+location.getName());
+        File GISRC = Files.createTempFile(scratch.toPath(),
+                ".grassrc."+GRASS_VERSION+"."+location.getName()+"."+mapset.getName()+".", "").toFile();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(GISRC))) {
             writer.write("GISDBASE: " + geodb);
             writer.newLine();
             writer.write("LOCATION_NAME: " + location.getName());
             writer.newLine();
-            writer.write("MAPSET: PERMANENT");
+            writer.write("MAPSET: " + mapset.getName());
             writer.newLine();
             writer.write("GRASS_GUI: text");
             writer.newLine();
         }
         EnvironmentUtils.addVariableToEnvironment(env, "GISRC="+GISRC);
-
-        // SYSTEM ENV
-        String bin = new File(GISBASE,"bin").getAbsolutePath();
-        String scripts = new File(GISBASE,"scripts").getAbsolutePath();
-        String lib = new File(GISBASE,"lib").getAbsolutePath();
-        if (SYSTEM == Env.WINDOWS) {
-            String PATH = env.get("PATH") + pathSeparator + bin + pathSeparator + scripts + pathSeparator + lib;
-            EnvironmentUtils.addVariableToEnvironment(env, "PATH=" + PATH);
-        } else {
-            String PATH = env.get("PATH") + pathSeparator + bin + pathSeparator + scripts;
-            EnvironmentUtils.addVariableToEnvironment(env, "PATH=" + PATH);
-            if (SYSTEM == Env.LINUX) {
-                String LD_LIBRARY_PATH = (env.containsKey("LD_LIBRARY_PATH")
-                        ? env.get("LD_LIBRARY_PATH") + pathSeparator : "") + lib;
-                EnvironmentUtils.addVariableToEnvironment(env, "LD_LIBRARY_PATH=" + LD_LIBRARY_PATH);
-            } else if (SYSTEM == Env.MAC) {
-                String DYLD_LIBRARY_PATH = (env.containsKey("DYLD_LIBRARY_PATH")
-                        ? env.get("DYLD_LIBRARY_PATH") + pathSeparator : "") + lib;
-                EnvironmentUtils.addVariableToEnvironment(env, "DYLD_LIBRARY_PATH=" + DYLD_LIBRARY_PATH);
-            }
-        }
         return env;
     }
 
     /**
-     * Define a GISBASE/LOCATION_NAME/PERMANENT for the provided dem.
-     *
-     * The dem is staged in GISBASE/dem.tif and then moved to
-     * GISBASE/LOCATION_NAME/PERMANENT/dem.tif
+     * Environment variables for GRASS operation, shared by all jobs (everything except GISRC).
+     * @return environment
+     * @throws IOException
+     */
+    static Map<String, String> baseEnv() throws IOException {
+        // built once by the catalog, copied so GISRC can be added
+        return new HashMap<String, String>(CATALOG.environment());
+    }
+
+    /**
+     * Define a GISBASE/LOCATION_NAME/PERMANENT for the provided raster.
      *
-     * @param operation
-     *            Name used for the location on disk
-     * @param dem
-     *            File used to establish CRS and Bounds for the location
-     * @return Array of files consisting of {GISBASE, LOCATION, MAPSET, dem.tif}
+     * @param location
+     *            Location directory to create
+     * @param raster
+     *            Georeferenced file, or EPSG code (such as EPSG:4326), used to
+     *            establish CRS and default region for the location
+     * @return location directory
      * @throws Exception
      */
-    static File location( File location, File raster ) throws Exception {
+    static File location( File location, Object raster ) throws Exception {
         // grass70 + ' -c ' + myfile + ' -e ' + location_path
         CommandLine cmd = new CommandLine(EXEC);
         cmd.addArgument("-c");
@@ -382,21 +2089,7 @@ public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses>
         cmd.addArgument("-e");
         cmd.addArgument("${location}");
         cmd.setSubstitutionMap(new KVP("raster", raster, "location", location));
-        LOGGER.info( cmd.toString() );
-
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setExitValue(0);
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(60000);
-        executor.setWatchdog(watchdog);
-        executor.setStreamHandler(new PumpStreamHandler(System.out));
-
-        LOGGER.info(cmd.toString());
-        try {
-            int exitValue = executor.execute(cmd);
-        } catch (ExecuteException fail) {
-            LOGGER.warning("grass70:" + fail.getLocalizedMessage());
-            throw fail;
-        }
+        execute(cmd, null, null);
 
         File mapset = new File( location, "PERMANENT" );
         if( !mapset.exists() ){
@@ -437,14 +2130,7 @@ public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses>
         cmd.addArgument("-e");
         cmd.addArgument("${location}");
         cmd.setSubstitutionMap(new KVP("file", file, "location", location));
-        LOGGER.info( cmd.toString() );
-
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setExitValue(0);
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(60000);
-        executor.setWatchdog(watchdog);
-        executor.setStreamHandler(new PumpStreamHandler(System.out));
-        int exitValue = executor.execute(cmd);
+        execute(cmd, null, null);
 
         File origional = file;
         file = new File(mapset, file.getName());
@@ -476,12 +2162,7 @@ public class GrassProcesses extends StaticMethodsProcessFactory<GrassProcesses>
         cmd.addArgument("${location}");
         cmd.setSubstitutionMap(kvp);
 
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setExitValue(0);
-        executor.setWatchdog(new ExecuteWatchdog(60000));
-        executor.setStreamHandler(new PumpStreamHandler(System.out));
-
-        int exitValue = executor.execute(cmd);
+        execute(cmd, null, null);
         return location;
     }
 
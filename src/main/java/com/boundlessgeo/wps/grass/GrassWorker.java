@@ -0,0 +1,466 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Daemon running GRASS module commands sent by {@link RemoteExecutor}, so GRASS processes can
+ * be supervised outside of the GeoServer JVM, on the same machine or on hosts sharing the
+ * scratch and location directories.
+ * <p>
+ * Started with {@code java -cp gs-grass.jar:... com.boundlessgeo.wps.grass.GrassWorker [port [host]]}
+ * (default port {@value #PORT} on the loopback interface), with GRASS, GRASS_MODULES and
+ * GRASS_WORKER_SECRET defined as system properties or environmental variables. At most
+ * GRASS_WORKER_CONNECTIONS connections are handled at once, and clients have
+ * {@value #REQUEST_TIMEOUT} milliseconds to authenticate and send their request.
+ * <p>
+ * Each connection runs one command. The worker sends a random challenge, and the client
+ * replies with {@link #MAGIC} and the HMAC-SHA256 of the challenge using the shared secret,
+ * followed by the command line, the GRASS variables to set and the working
+ * directory (empty for none), with counts as ints and strings as UTF-8 prefixed by their
+ * length. Only GRASS executables and modules are run, in the worker environment with GISRC and
+ * GRASS_* variables from the request. The worker replies {@link #ACCEPTED} with its number of
+ * active jobs, {@link #OUTPUT} for each chunk of combined output, then {@link #EXIT} with the
+ * exit value, or {@link #FAILED} with a message if the command was refused or could not be
+ * started. Closing the connection kills the command and its children.
+ */
+public class GrassWorker implements Closeable {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Default port */
+    static final int PORT = 7171;
+
+    /** Start of each request, guarding against other clients */
+    static final int MAGIC = 0x47525353;
+
+    /** Command started, followed by the number of active jobs */
+    static final byte ACCEPTED = 'A';
+
+    /** Output chunk, followed by length and bytes */
+    static final byte OUTPUT = 'O';
+
+    /** Command finished, followed by the exit value */
+    static final byte EXIT = 'X';
+
+    /** Command refused or could not be started, followed by a message */
+    static final byte FAILED = 'F';
+
+    /** Default number of connections handled at once */
+    static final int CONNECTIONS = 32;
+
+    /** Default time in milliseconds allowed to authenticate and send a request */
+    static final int REQUEST_TIMEOUT = 10000;
+
+    /** Length of the authentication challenge in bytes */
+    private static final int CHALLENGE = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final ServerSocket server;
+
+    /** Threads handling connections, bounded to limit connections held open */
+    private final ThreadPoolExecutor connections;
+
+    /** Threads watching for clients disconnecting, one for each running command */
+    private final ExecutorService watchers;
+
+    /** Time in milliseconds a client has to authenticate and send its request */
+    volatile int timeout = REQUEST_TIMEOUT;
+
+    private final byte[] secret;
+
+    /** GRASS executable, which may be run to create locations */
+    private final File exec;
+
+    /** Directories holding the modules that may be run */
+    private final List<File> modules = new ArrayList<File>();
+
+    /** Environment commands run in, before GRASS variables from the request */
+    private final Map<String, String> environment;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong handled = new AtomicLong();
+
+    /**
+     * Worker listening on address, accepting commands once started.
+     *
+     * @param address address to listen on, port 0 for any free port
+     * @param secret shared secret clients authenticate with
+     * @param exec GRASS executable, located in GISBASE
+     * @param bin module directory
+     * @param connections maximum number of connections handled at once, others being closed
+     * @throws IOException if the address is not available
+     */
+    GrassWorker(InetSocketAddress address, String secret, String exec, String bin, int connections)
+            throws IOException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("GRASS_WORKER_SECRET required");
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.exec = new File(exec).getCanonicalFile();
+        File gisbase = new File(exec).getParentFile();
+        this.modules.add(new File(bin).getCanonicalFile());
+        this.modules.add(new File(gisbase, "bin").getCanonicalFile());
+        this.modules.add(new File(gisbase, "scripts").getCanonicalFile());
+        this.environment = GrassCatalog.environment(exec, GrassCatalog.grassVersion(GrassCatalog.version(exec)));
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        this.connections = new ThreadPoolExecutor(0, Math.max(connections, 1), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), daemon("GRASS worker connection"));
+        this.watchers = Executors.newCachedThreadPool(daemon("GRASS worker watcher"));
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        // loopback unless a listening address is given
+        InetSocketAddress address = args.length > 1 ? new InetSocketAddress(args[1], port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        String exec = GrassProcesses.property("GRASS", null);
+        String bin = GrassProcesses.property("GRASS_MODULES", null);
+        if (exec == null || bin == null) {
+            throw new IllegalArgumentException("GRASS and GRASS_MODULES required");
+        }
+        GrassWorker worker = new GrassWorker(address, GrassProcesses.property("GRASS_WORKER_SECRET", null), exec,
+                bin, (int) GrassProcesses.property("GRASS_WORKER_CONNECTIONS", CONNECTIONS));
+        LOGGER.info("GRASS worker listening on " + worker.server.getLocalSocketAddress());
+        worker.accept();
+    }
+
+    /** Accept connections in a background thread */
+    GrassWorker start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "GRASS worker");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /** Accept connections until closed */
+    void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException closed) {
+                break;
+            }
+            try {
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (RejectedExecutionException busy) {
+                LOGGER.warning("GRASS worker busy, " + connections.getMaximumPoolSize()
+                        + " connections open, closing connection from " + socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /** Port the worker is listening on */
+    int port() {
+        return server.getLocalPort();
+    }
+
+    /** Number of commands running */
+    int active() {
+        return active.get();
+    }
+
+    /** Number of commands started */
+    long handled() {
+        return handled.get();
+    }
+
+    private void handle(Socket socket) {
+        Process process = null;
+        boolean finished = false;
+        try {
+            // clients must authenticate and send their request promptly
+            socket.setSoTimeout(timeout);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] challenge = new byte[CHALLENGE];
+            random.nextBytes(challenge);
+            writeBytes(out, challenge);
+            out.flush();
+            if (in.readInt() != MAGIC || !MessageDigest.isEqual(readBytes(in), sign(secret, challenge))) {
+                refuse(out, "Unauthorized request from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            String[] command = new String[in.readInt()];
+            for (int i = 0; i < command.length; i++) {
+                command[i] = readString(in);
+            }
+            Map<String, String> variables = new LinkedHashMap<String, String>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                variables.put(readString(in), readString(in));
+            }
+            String directory = readString(in);
+
+            String refused = check(command, variables);
+            if (refused != null) {
+                refuse(out, refused);
+                return;
+            }
+            // commands may run for as long as their timeout, enforced by the client
+            socket.setSoTimeout(0);
+            ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+            builder.environment().clear();
+            builder.environment().putAll(environment);
+            builder.environment().putAll(variables);
+            if (!directory.isEmpty()) {
+                builder.directory(new File(directory));
+            }
+            try {
+                process = builder.start();
+            } catch (IOException e) {
+                refuse(out, e.getMessage());
+                return;
+            }
+            LOGGER.fine("GRASS worker running " + Arrays.toString(command));
+            handled.incrementAndGet();
+            active.incrementAndGet();
+            try {
+                out.writeByte(ACCEPTED);
+                out.writeInt(active.get());
+                out.flush();
+                watch(in, process);
+
+                byte[] buffer = new byte[8192];
+                InputStream output = process.getInputStream();
+                for (int n; (n = output.read(buffer)) != -1;) {
+                    out.writeByte(OUTPUT);
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+                int exitValue = process.waitFor();
+                finished = true;
+                out.writeByte(EXIT);
+                out.writeInt(exitValue);
+                out.flush();
+            } finally {
+                active.decrementAndGet();
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "GRASS worker connection closed", e);
+        } finally {
+            if (process != null && !finished) {
+                GrassJob.kill(process);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Check a command may be run: the GRASS executable or a module, with only GRASS variables.
+     *
+     * @param command command line
+     * @param variables variables to set
+     * @return reason the command is refused, or null if allowed
+     */
+    String check(String[] command, Map<String, String> variables) throws IOException {
+        if (command.length == 0) {
+            return "Empty command";
+        }
+        for (String name : variables.keySet()) {
+            if (!grassVariable(name)) {
+                return "Variable " + name + " refused";
+            }
+        }
+        File executable = new File(command[0]).getCanonicalFile();
+        if (executable.equals(exec) || modules.contains(executable.getParentFile())) {
+            return null;
+        }
+        return "Executable " + command[0] + " refused, not a GRASS module";
+    }
+
+    /**
+     * Variables passed on to workers: GISRC and GRASS_* variables (such as GRASS_VERSION and
+     * GRASS_MESSAGE_FORMAT). Others, such as PATH, are defined by the worker environment.
+     */
+    static boolean grassVariable(String name) {
+        return name.equals("GISRC") || name.startsWith("GRASS_");
+    }
+
+    private static void refuse(DataOutputStream out, String message) throws IOException {
+        LOGGER.warning("GRASS worker: " + message);
+        out.writeByte(FAILED);
+        writeString(out, message);
+        out.flush();
+    }
+
+    /** Kill process when the client closes the connection */
+    private void watch(final InputStream in, final Process process) {
+        watchers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (in.read() != -1) {
+                        // nothing further is sent by the client
+                    }
+                } catch (IOException closed) {
+                    // connection closed once the command is finished
+                }
+                try {
+                    process.exitValue();
+                } catch (IllegalThreadStateException running) {
+                    LOGGER.info("GRASS worker client disconnected, killing process");
+                    GrassJob.kill(process);
+                }
+            }
+        });
+    }
+
+    /** Stop accepting connections and kill running commands */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+        watchers.shutdownNow();
+    }
+
+    /**
+     * Response to an authentication challenge.
+     *
+     * @param secret shared secret
+     * @param challenge challenge sent by the worker
+     * @return HMAC-SHA256 of challenge
+     */
+    static byte[] sign(byte[] secret, byte[] challenge) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    /**
+     * Write a command request, answering the worker challenge.
+     *
+     * @param in connection from worker
+     * @param out connection to worker
+     * @param secret shared secret
+     * @param command command line
+     * @param env environment, of which only GRASS variables are sent, or null
+     * @param directory working directory, or null
+     */
+    static void writeRequest(DataInputStream in, DataOutputStream out, byte[] secret, String[] command,
+            Map<String, String> env, File directory) throws IOException {
+        byte[] challenge = readBytes(in);
+        out.writeInt(MAGIC);
+        writeBytes(out, sign(secret, challenge));
+        out.writeInt(command.length);
+        for (String argument : command) {
+            writeString(out, argument);
+        }
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        if (env != null) {
+            for (Map.Entry<String, String> variable : env.entrySet()) {
+                if (grassVariable(variable.getKey())) {
+                    variables.put(variable.getKey(), variable.getValue());
+                }
+            }
+        }
+        out.writeInt(variables.size());
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            writeString(out, variable.getKey());
+            writeString(out, variable.getValue());
+        }
+        writeString(out, directory != null ? directory.getAbsolutePath() : "");
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        writeBytes(out, String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1024 * 1024) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
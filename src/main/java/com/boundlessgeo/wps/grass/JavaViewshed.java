@@ -0,0 +1,357 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * In-process viewshed, used instead of r.viewshed for small and medium DEMs or when GRASS
+ * is not available.
+ * <p>
+ * Uses a radial sweep (R2): a ray is traced from the viewpoint to each cell on the edge of
+ * the region, keeping the maximum slope of the terrain crossed so far (interpolated between
+ * the two cells either side of the ray). A cell is visible when the slope to the cell, plus
+ * target elevation, is at least the maximum slope between it and the viewpoint. Rays are
+ * traced in parallel, split into sectors using fork-join.
+ * <p>
+ * The output matches r.viewshed: the vertical angle in degrees at which a visible cell is
+ * seen (0 directly below, 90 horizontal, 180 directly above), NaN for cells not visible.
+ */
+class JavaViewshed {
+    /** Rays traced by a task before splitting */
+    static final int SECTOR = 64;
+
+    private static ForkJoinPool pool;
+
+    /** Elevation by row */
+    private final float[] z;
+
+    private final int cols;
+
+    private final int rows;
+
+    /** Cell width in map units */
+    private final double resx;
+
+    /** Cell height in map units */
+    private final double resy;
+
+    /** No data value, in addition to NaN */
+    private final float nodata;
+
+    JavaViewshed(float[] z, int cols, int rows, double resx, double resy, float nodata) {
+        this.z = z;
+        this.cols = cols;
+        this.rows = rows;
+        this.resx = resx;
+        this.resy = resy;
+        this.nodata = nodata;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Compute viewshed of coverage.
+     *
+     * @param dem digital elevation model
+     * @param x viewpoint x in map units
+     * @param y viewpoint y in map units
+     * @param observerElevation viewing elevation above the ground
+     * @param targetElevation offset for target elevation above the ground
+     * @param maxDistance maximum visibility radius, or 0 for unlimited
+     * @return viewshed, covering dem or the cells within maxDistance of the viewpoint
+     * @throws Exception if the viewpoint is outside of dem
+     */
+    static GridCoverage2D viewshed(GridCoverage2D dem, double x, double y, double observerElevation,
+            double targetElevation, double maxDistance) throws Exception {
+        GridGeometry2D grid = dem.getGridGeometry();
+        GridEnvelope2D range = grid.getGridRange2D();
+        Envelope2D bounds = grid.getEnvelope2D();
+        double resx = bounds.getWidth() / range.width;
+        double resy = bounds.getHeight() / range.height;
+
+        GridCoordinates2D viewpoint = grid.worldToGrid(new DirectPosition2D(dem.getCoordinateReferenceSystem2D(), x, y));
+        if (!range.contains(viewpoint)) {
+            throw new IllegalArgumentException("Viewpoint " + x + "," + y + " outside of dem");
+        }
+        // region: dem, or cells within maxDistance
+        Rectangle window = range;
+        if (maxDistance > 0) {
+            int dx = (int) Math.ceil(maxDistance / resx);
+            int dy = (int) Math.ceil(maxDistance / resy);
+            window = new Rectangle(viewpoint.x - dx, viewpoint.y - dy, 2 * dx + 1, 2 * dy + 1).intersection(range);
+        }
+        JavaViewshed viewshed = read(dem, window);
+        float[] angles = viewshed.compute(viewpoint.x - window.x, viewpoint.y - window.y, observerElevation,
+                targetElevation, maxDistance);
+
+        DataBufferFloat buffer = new DataBufferFloat(angles, angles.length);
+        WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_FLOAT, window.width, window.height, 1), buffer, null);
+        Envelope2D envelope = grid.gridToWorld(new GridEnvelope2D(window));
+        return new GridCoverageFactory().create("viewshed", raster, envelope);
+    }
+
+    /**
+     * Encode viewshed as requested, matching the r.out.gdal exports of r.viewshed output.
+     *
+     * @param viewshed vertical angles, NaN for cells not visible
+     * @param encoding output encoding (polygons are not supported in-process)
+     * @return viewshed, or 1-bit mask, or whole degrees as bytes
+     */
+    static GridCoverage2D encode(GridCoverage2D viewshed, GrassProcesses.Encoding encoding) {
+        if (encoding == GrassProcesses.Encoding.ANGLES) {
+            return viewshed;
+        }
+        RenderedImage image = encode(viewshed.getRenderedImage().getData(), encoding);
+        return new GridCoverageFactory().create(viewshed.getName(), image, viewshed.getEnvelope());
+    }
+
+    /**
+     * Encode viewshed angles as a 1-bit mask (1 visible, 0 not visible), or as angles rounded to
+     * whole degrees with 255 for cells not visible.
+     *
+     * @param angles vertical angles, NaN for cells not visible
+     * @param encoding MASK or COMPRESSED
+     * @return encoded image
+     */
+    static BufferedImage encode(Raster angles, GrassProcesses.Encoding encoding) {
+        int width = angles.getWidth();
+        int height = angles.getHeight();
+        boolean mask = encoding == GrassProcesses.Encoding.MASK;
+        if (!mask && encoding != GrassProcesses.Encoding.COMPRESSED) {
+            throw new IllegalArgumentException("Encoding " + encoding + " not supported in-process");
+        }
+        BufferedImage image = new BufferedImage(width, height,
+                mask ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = image.getRaster();
+        float[] row = new float[width];
+        for (int y = 0; y < height; y++) {
+            angles.getSamples(angles.getMinX(), angles.getMinY() + y, width, 1, 0, row);
+            for (int x = 0; x < width; x++) {
+                boolean visible = !Float.isNaN(row[x]);
+                raster.setSample(x, y, 0, mask ? (visible ? 1 : 0) : (visible ? Math.round(row[x]) : 255));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Read elevation of dem cells within window, so the viewshed of several viewpoints can be
+     * computed from one copy.
+     *
+     * @param dem digital elevation model
+     * @param window cells to read, in grid coordinates of dem
+     * @return viewshed of window (viewpoint columns and rows are relative to the window)
+     */
+    static JavaViewshed read(GridCoverage2D dem, Rectangle window) {
+        GridGeometry2D grid = dem.getGridGeometry();
+        GridEnvelope2D range = grid.getGridRange2D();
+        Envelope2D bounds = grid.getEnvelope2D();
+        double resx = bounds.getWidth() / range.width;
+        double resy = bounds.getHeight() / range.height;
+
+        RenderedImage image = dem.getRenderedImage();
+        Raster data = image.getData(new Rectangle(image.getMinX() + window.x - range.x,
+                image.getMinY() + window.y - range.y, window.width, window.height));
+        float[] z = data.getSamples(data.getMinX(), data.getMinY(), window.width, window.height, 0,
+                (float[]) null);
+        return new JavaViewshed(z, window.width, window.height, resx, resy, nodata(dem));
+    }
+
+    /** No data value of the first band, or NaN */
+    static float nodata(GridCoverage2D dem) {
+        GridSampleDimension band = dem.getSampleDimension(0);
+        double[] values = band != null ? band.getNoDataValues() : null;
+        return values != null && values.length > 0 ? (float) values[0] : Float.NaN;
+    }
+
+    /**
+     * Compute viewshed.
+     *
+     * @param column viewpoint column
+     * @param row viewpoint row
+     * @param observerElevation viewing elevation above the ground
+     * @param targetElevation offset for target elevation above the ground
+     * @param maxDistance maximum visibility radius, or 0 for unlimited
+     * @return vertical angle for visible cells, NaN for cells not visible
+     */
+    float[] compute(int column, int row, double observerElevation, double targetElevation, double maxDistance) {
+        float[] angles = new float[cols * rows];
+        Arrays.fill(angles, Float.NaN);
+        float ground = z[row * cols + column];
+        if (isNoData(ground)) {
+            return angles;
+        }
+        angles[row * cols + column] = 180;
+        Sweep sweep = new Sweep(angles, column, row, ground + observerElevation, targetElevation,
+                maxDistance > 0 ? maxDistance : Double.POSITIVE_INFINITY);
+        pool().invoke(new Sector(sweep, 0, perimeter()));
+        return angles;
+    }
+
+    private boolean isNoData(float value) {
+        return Float.isNaN(value) || value == nodata;
+    }
+
+    /** Number of cells on the edge of the region */
+    private int perimeter() {
+        if (cols == 1 || rows == 1) {
+            return cols * rows;
+        }
+        return 2 * cols + 2 * rows - 4;
+    }
+
+    /** Edge cell (column and row), numbered clockwise from the top left */
+    private int[] edge(int index) {
+        if (rows == 1) {
+            return new int[] { index, 0 };
+        }
+        if (cols == 1) {
+            return new int[] { 0, index };
+        }
+        if (index < cols) {
+            return new int[] { index, 0 };
+        }
+        index -= cols;
+        if (index < rows - 1) {
+            return new int[] { cols - 1, index + 1 };
+        }
+        index -= rows - 1;
+        if (index < cols - 1) {
+            return new int[] { cols - 2 - index, rows - 1 };
+        }
+        index -= cols - 1;
+        return new int[] { 0, rows - 2 - index };
+    }
+
+    /** Parameters of a sweep from the viewpoint */
+    private class Sweep {
+        final float[] angles;
+        final int column;
+        final int row;
+        /** Observer elevation */
+        final double height;
+        final double target;
+        final double radius;
+
+        Sweep(float[] angles, int column, int row, double height, double target, double radius) {
+            this.angles = angles;
+            this.column = column;
+            this.row = row;
+            this.height = height;
+            this.target = target;
+            this.radius = radius;
+        }
+
+        /**
+         * Trace ray from viewpoint to edge cell. Cells are only ever marked visible, with an
+         * angle depending on the cell alone, so rays crossing the same cell can be traced
+         * concurrently.
+         */
+        void trace(int edgeColumn, int edgeRow) {
+            int dx = edgeColumn - column;
+            int dy = edgeRow - row;
+            int steps = Math.max(Math.abs(dx), Math.abs(dy));
+            boolean major = Math.abs(dx) >= Math.abs(dy);
+            double horizon = Double.NEGATIVE_INFINITY;
+            for (int k = 1; k <= steps; k++) {
+                double fx = column + (double) dx * k / steps;
+                double fy = row + (double) dy * k / steps;
+                int c = (int) Math.round(fx);
+                int r = (int) Math.round(fy);
+                double ex = (c - column) * resx;
+                double ey = (r - row) * resy;
+                double distance = Math.sqrt(ex * ex + ey * ey);
+                if (distance > radius) {
+                    break;
+                }
+                float elevation = z[r * cols + c];
+                if (!isNoData(elevation)) {
+                    double slope = (elevation + target - height) / distance;
+                    if (slope >= horizon) {
+                        angles[r * cols + c] = (float) (90 + Math.toDegrees(Math.atan(slope)));
+                    }
+                }
+                // terrain crossed by the ray, interpolated across the minor axis
+                double terrain = major ? interpolate(c, fy, false) : interpolate(r, fx, true);
+                if (!Double.isNaN(terrain)) {
+                    double rx = (fx - column) * resx;
+                    double ry = (fy - row) * resy;
+                    horizon = Math.max(horizon, (terrain - height) / Math.sqrt(rx * rx + ry * ry));
+                }
+            }
+        }
+
+        /**
+         * Elevation at fractional position along a column (or row), NaN if no data.
+         */
+        private double interpolate(int fixed, double position, boolean alongRow) {
+            int low = (int) Math.floor(position);
+            double t = position - low;
+            int high = Math.min(low + 1, (alongRow ? cols : rows) - 1);
+            float a = alongRow ? z[fixed * cols + low] : z[low * cols + fixed];
+            float b = alongRow ? z[fixed * cols + high] : z[high * cols + fixed];
+            if (isNoData(a)) {
+                return isNoData(b) ? Double.NaN : b;
+            }
+            if (isNoData(b)) {
+                return a;
+            }
+            return a * (1 - t) + b * t;
+        }
+    }
+
+    /** Rays to a range of edge cells */
+    private class Sector extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Sweep sweep;
+        private final int start;
+        private final int end;
+
+        Sector(Sweep sweep, int start, int end) {
+            this.sweep = sweep;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= SECTOR) {
+                for (int i = start; i < end; i++) {
+                    int[] cell = edge(i);
+                    sweep.trace(cell[0], cell[1]);
+                }
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Sector(sweep, start, middle), new Sector(sweep, middle, end));
+            }
+        }
+    }
+}
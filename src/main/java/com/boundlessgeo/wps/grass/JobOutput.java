@@ -0,0 +1,64 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded buffer for the output of a GRASS module, keeping the last bytes written.
+ * <p>
+ * Used instead of copying module output to System.out, so the output is available for
+ * logging when a module fails without flooding the container log.
+ */
+class JobOutput extends OutputStream {
+    private final byte[] buffer;
+
+    /** Total number of bytes written */
+    private long count;
+
+    JobOutput(int limit) {
+        this.buffer = new byte[Math.max(limit, 1)];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buffer[(int) (count % buffer.length)] = (byte) b;
+        count++;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (length >= buffer.length) {
+            // only the tail fits
+            offset += length - buffer.length;
+            count += length - buffer.length;
+            length = buffer.length;
+        }
+        int start = (int) (count % buffer.length);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(bytes, offset, buffer, start, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+        count += length;
+    }
+
+    /** Number of bytes written, including bytes discarded */
+    synchronized long size() {
+        return count;
+    }
+
+    /** Output retained, prefixed with ... if earlier output was discarded */
+    @Override
+    public synchronized String toString() {
+        if (count <= buffer.length) {
+            return new String(buffer, 0, (int) count, StandardCharsets.UTF_8);
+        }
+        int start = (int) (count % buffer.length);
+        byte[] tail = new byte[buffer.length];
+        System.arraycopy(buffer, start, tail, 0, buffer.length - start);
+        System.arraycopy(buffer, 0, tail, buffer.length - start, start);
+        return "..." + new String(tail, StandardCharsets.UTF_8);
+    }
+}
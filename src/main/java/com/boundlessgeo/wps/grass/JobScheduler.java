@@ -0,0 +1,164 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for GRASS module execution.
+ * <p>
+ * Each module has a limited number of concurrent jobs (so a burst of requests does not
+ * fork dozens of memory hungry processes). Jobs waiting for a slot are held in a bounded
+ * queue; when the queue is full new jobs are either rejected or wait for space in the queue.
+ * With a queue size of 0 no job may wait, and jobs are rejected when all slots are in use.
+ * <p>
+ * The scheduler also records the memory budget granted to each job, passed to modules
+ * supporting a memory parameter such as {@code r.viewshed memory=}.
+ */
+class JobScheduler {
+    /** Default number of concurrent jobs for each module */
+    final int jobs;
+
+    /** Number of jobs allowed to wait for a slot */
+    final int queue;
+
+    /** True to wait for space in the queue, false to reject jobs when the queue is full */
+    final boolean wait;
+
+    /** Memory budget for each job (in MB) */
+    final int memory;
+
+    /** Number of concurrent jobs for specific modules */
+    private final Map<String, Integer> limits = new HashMap<String, Integer>();
+
+    private final Map<String, Slots> slots = new HashMap<String, Slots>();
+
+    /** Jobs waiting for a slot */
+    private int waiting;
+
+    JobScheduler(int jobs, int queue, boolean wait, int memory) {
+        this.jobs = jobs;
+        this.queue = queue;
+        this.wait = wait;
+        this.memory = memory;
+    }
+
+    /**
+     * Limit the number of concurrent jobs for a module. A lower limit takes effect as running
+     * jobs finish, jobs already running are not stopped.
+     *
+     * @param module module name, such as r.viewshed
+     * @param limit maximum number of concurrent jobs
+     */
+    synchronized void limit(String module, int limit) {
+        int previous = limit(module);
+        limits.put(module, limit);
+        Slots semaphore = slots.get(module);
+        if (semaphore != null) {
+            if (limit > previous) {
+                semaphore.release(limit - previous);
+            } else if (limit < previous) {
+                semaphore.reduce(previous - limit);
+            }
+        }
+    }
+
+    /**
+     * Maximum number of concurrent jobs for module, configured using GRASS_MAX_JOBS_ followed
+     * by the module name (such as GRASS_MAX_JOBS_r_viewshed) or the default number of jobs.
+     */
+    synchronized int limit(String module) {
+        Integer limit = limits.get(module);
+        if (limit == null) {
+            limit = (int) GrassProcesses.property("GRASS_MAX_JOBS_" + module.replace('.', '_'), jobs);
+            limits.put(module, limit);
+        }
+        return limit;
+    }
+
+    private synchronized Semaphore semaphore(String module) {
+        Slots semaphore = slots.get(module);
+        if (semaphore == null) {
+            semaphore = new Slots(limit(module));
+            slots.put(module, semaphore);
+        }
+        return semaphore;
+    }
+
+    /**
+     * Acquire a slot to run module, waiting in the queue if all slots are in use.
+     *
+     * @param module module name, such as r.viewshed
+     * @return slot, to be closed when the module has finished
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RejectedExecutionException if the queue is full and the policy is to reject, or
+     *         the queue size is 0
+     */
+    Slot acquire(String module) throws InterruptedException {
+        final Semaphore semaphore = semaphore(module);
+        // honours fairness, unlike tryAcquire()
+        if (!semaphore.tryAcquire(0, TimeUnit.SECONDS)) {
+            synchronized (this) {
+                while (waiting >= queue) {
+                    if (!wait || queue <= 0) {
+                        throw new RejectedExecutionException("GRASS queue full (" + queue + " jobs waiting), "
+                                + module + " rejected");
+                    }
+                    wait();
+                }
+                waiting++;
+            }
+            try {
+                semaphore.acquire();
+            } finally {
+                synchronized (this) {
+                    waiting--;
+                    notifyAll();
+                }
+            }
+        }
+        return new Slot(semaphore);
+    }
+
+    /** Number of jobs waiting for a slot */
+    synchronized int waiting() {
+        return waiting;
+    }
+
+    /** Fair semaphore of module slots, reduced when the module limit is lowered */
+    @SuppressWarnings("serial")
+    private static class Slots extends Semaphore {
+        Slots(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /** Slot granted to a running job */
+    static class Slot implements Closeable {
+        private final Semaphore semaphore;
+        private boolean closed;
+
+        Slot(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.PumpStreamHandler;
+
+/**
+ * Runs modules as child processes of this JVM, in a warm shell session when GRASS_SESSIONS is
+ * enabled (see {@link SessionPool}).
+ */
+class LocalExecutor implements GrassExecutor {
+
+    @Override
+    public int execute(CommandLine cmd, Map<String, String> env, File directory, GrassJob.Task task)
+            throws IOException {
+        SessionPool sessions = GrassProcesses.SESSIONS;
+        if (sessions != null && env != null) {
+            // run in a warm session
+            return sessions.execute(cmd.toStrings(), env, directory, task.timeout, task, task);
+        }
+        MonitoredExecutor executor = new MonitoredExecutor(task.module, task);
+        executor.setExitValue(0);
+        executor.setStreamHandler(new PumpStreamHandler(task));
+        if (directory != null) {
+            executor.setWorkingDirectory(directory);
+        }
+        try {
+            return executor.execute(cmd, env);
+        } finally {
+            executor.finished();
+        }
+    }
+
+    /**
+     * Executor sampling resource use of the launched module process.
+     */
+    private static class MonitoredExecutor extends DefaultExecutor {
+        private final String module;
+        private final GrassJob.Task task;
+        private GrassMetrics.Sample sample;
+
+        MonitoredExecutor(String module, GrassJob.Task task) {
+            this.module = module;
+            this.task = task;
+        }
+
+        @Override
+        protected Process launch(CommandLine command, Map<String, String> env, File dir) throws IOException {
+            Process process = super.launch(command, env, dir);
+            sample = GrassProcesses.METRICS.sample(module, process);
+            task.started(process);
+            return process;
+        }
+
+        /** Stop sampling once the process has finished */
+        void finished() {
+            if (sample != null) {
+                sample.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Pool of GRASS locations keyed by coordinate reference system and grid geometry.
+ * <p>
+ * Creating a location ({@code grass70 -c dem.tif -e location}) starts GRASS and is the
+ * largest fixed cost of a small request. Locations are created once, kept warm under
+ * a shared GISDBASE, and each request checks out its own mapset so concurrent jobs
+ * do not interfere with each other.
+ * <p>
+ * The pool is bounded: when all locations are in use additional requests are given a
+ * transient location which is removed when the mapset is closed. Locations that have
+ * not been used for the idle timeout are evicted.
+ */
+class LocationPool {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+    private static final SecureRandom random = new SecureRandom();
+
+    /** GISDBASE holding the pooled locations */
+    final File geodb;
+
+    /** Maximum number of pooled locations */
+    final int size;
+
+    /** Idle time (in milliseconds) before an unused location is evicted */
+    final long idle;
+
+    /** Pooled locations by key, in least recently used order */
+    private final LinkedHashMap<String, Location> locations = new LinkedHashMap<String, Location>(16, 0.75f, true);
+
+    LocationPool(File geodb, int size, long idle) {
+        this.geodb = geodb;
+        this.size = size;
+        this.idle = idle;
+    }
+
+    /**
+     * Key describing the CRS and grid geometry of the provided coverage.
+     *
+     * @param dem coverage used to establish location
+     * @return key identifying a compatible location
+     */
+    static String key(GridCoverage2D dem) {
+        CoordinateReferenceSystem crs = dem.getCoordinateReferenceSystem2D();
+        Envelope2D bounds = dem.getEnvelope2D();
+        GridEnvelope2D range = dem.getGridGeometry().getGridRange2D();
+
+        StringBuilder key = new StringBuilder();
+        key.append(crs == null ? "" : crs.toWKT());
+        key.append("|").append(bounds.getMinX()).append(",").append(bounds.getMinY());
+        key.append(",").append(bounds.getMaxX()).append(",").append(bounds.getMaxY());
+        key.append("|").append(range.width).append("x").append(range.height);
+        return key.toString();
+    }
+
+    /**
+     * Check out an isolated mapset from a location matching key, creating the location
+     * if required.
+     *
+     * @param key location key (see {@link #key(GridCoverage2D)})
+     * @param prototype used to create the location, only called if required
+     * @return mapset, to be closed when no longer required
+     * @throws Exception if the location could not be created
+     */
+    Mapset checkout(String key, Prototype prototype) throws Exception {
+        Location location;
+        synchronized (this) {
+            evict(System.currentTimeMillis());
+            location = locations.get(key);
+            if (location == null && locations.size() < size) {
+                location = new Location(new File(geodb, "location" + digest(key)), false);
+                locations.put(key, location);
+            }
+            if (location != null) {
+                location.leases++;
+            }
+        }
+        if (location == null) {
+            // pool exhausted, use a transient location removed on close
+            LOGGER.info("GRASS location pool exhausted, creating transient location");
+            File transientDB = Files.createTempDirectory("grassdata").toFile();
+            location = new Location(new File(transientDB, "location" + digest(key)), true);
+            location.leases++;
+        }
+        try {
+            synchronized (location) {
+                if (!new File(location.directory, "PERMANENT").exists()) {
+                    prototype.create(location.directory);
+                }
+            }
+            return location.mapset();
+        } catch (Exception fail) {
+            release(location);
+            synchronized (this) {
+                if (locations.get(key) == location) {
+                    locations.remove(key);
+                }
+            }
+            FileUtils.deleteQuietly(location.directory);
+            throw fail;
+        }
+    }
+
+    /**
+     * Define the region of a WIND (or DEFAULT_WIND) file, preserving projection and zone.
+     *
+     * @param wind region file to update
+     * @param bounds region bounds
+     * @param range grid dimensions, used to determine rows, columns and resolution
+     * @throws IOException if the region file could not be updated
+     */
+    static void region(File wind, Envelope2D bounds, GridEnvelope2D range) throws IOException {
+        String proj = "proj:       99";
+        String zone = "zone:       0";
+        if (wind.exists()) {
+            for (String line : Files.readAllLines(wind.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("proj:")) {
+                    proj = line;
+                } else if (line.startsWith("zone:")) {
+                    zone = line;
+                }
+            }
+        }
+        double ewres = bounds.getWidth() / range.width;
+        double nsres = bounds.getHeight() / range.height;
+        List<String> lines = new ArrayList<String>();
+        lines.add(proj);
+        lines.add(zone);
+        lines.add("north:      " + plain(bounds.getMaxY()));
+        lines.add("south:      " + plain(bounds.getMinY()));
+        lines.add("east:       " + plain(bounds.getMaxX()));
+        lines.add("west:       " + plain(bounds.getMinX()));
+        lines.add("cols:       " + range.width);
+        lines.add("rows:       " + range.height);
+        lines.add("e-w resol:  " + plain(ewres));
+        lines.add("n-s resol:  " + plain(nsres));
+        lines.add("top:        1");
+        lines.add("bottom:     0");
+        lines.add("cols3:      " + range.width);
+        lines.add("rows3:      " + range.height);
+        lines.add("depths:     1");
+        lines.add("e-w resol3: " + plain(ewres));
+        lines.add("n-s resol3: " + plain(nsres));
+        lines.add("t-b resol:  1");
+        Files.write(wind.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /** Format value without exponent */
+    private static String plain(double value) {
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * Evict locations which have not been used for the idle timeout.
+     *
+     * @param now current time
+     */
+    private synchronized void evict(long now) {
+        List<Location> expired = new ArrayList<Location>();
+        for (Iterator<Location> i = locations.values().iterator(); i.hasNext();) {
+            Location location = i.next();
+            if (location.leases == 0 && now - location.used > idle) {
+                i.remove();
+                expired.add(location);
+            }
+        }
+        for (Location location : expired) {
+            LOGGER.info("Evicting idle GRASS location " + location.directory);
+            FileUtils.deleteQuietly(location.directory);
+        }
+    }
+
+    private synchronized void release(Location location) {
+        location.leases--;
+        location.used = System.currentTimeMillis();
+        if (location.temporary && location.leases == 0) {
+            FileUtils.deleteQuietly(location.directory.getParentFile());
+        }
+    }
+
+    /**
+     * Remove all idle locations from the pool.
+     */
+    synchronized void clear() {
+        evict(Long.MAX_VALUE);
+    }
+
+    /** Number of pooled locations */
+    synchronized int count() {
+        return locations.size();
+    }
+
+    static String digest(String key) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the PERMANENT mapset of a new location.
+     */
+    interface Prototype {
+        /**
+         * Create location, defining CRS and default region.
+         *
+         * @param location location directory
+         * @throws Exception if the location could not be created
+         */
+        void create(File location) throws Exception;
+    }
+
+    /** Location managed by the pool */
+    private class Location {
+        final File directory;
+        final boolean temporary;
+        int leases;
+        long used = System.currentTimeMillis();
+
+        Location(File directory, boolean temporary) {
+            this.directory = directory;
+            this.temporary = temporary;
+        }
+
+        /**
+         * Create a new mapset, using the location default region.
+         */
+        Mapset mapset() throws IOException {
+            File permanent = new File(directory, "PERMANENT");
+            File mapset;
+            do {
+                mapset = new File(directory, "job" + Long.toHexString(random.nextLong()));
+            } while (!mapset.mkdir());
+            Files.copy(new File(permanent, "DEFAULT_WIND").toPath(), new File(mapset, "WIND").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            return new Mapset(this, mapset);
+        }
+    }
+
+    /**
+     * Mapset checked out from the pool for the exclusive use of a single job.
+     * <p>
+     * Closing the mapset removes it and returns the location to the pool.
+     */
+    class Mapset implements Closeable {
+        private final Location location;
+        private final File mapset;
+        private boolean closed;
+
+        Mapset(Location location, File mapset) {
+            this.location = location;
+            this.mapset = mapset;
+        }
+
+        /** GISDBASE directory */
+        File geodb() {
+            return location.directory.getParentFile();
+        }
+
+        /** LOCATION_NAME directory */
+        File location() {
+            return location.directory;
+        }
+
+        /** MAPSET directory */
+        File mapset() {
+            return mapset;
+        }
+
+        /**
+         * Check out another mapset from the same location, using the region of this mapset.
+         * Rasters of this mapset can be shared as {@code name@mapset}.
+         *
+         * @return mapset, to be closed when no longer required
+         * @throws IOException if the mapset could not be created
+         */
+        Mapset sibling() throws IOException {
+            synchronized (LocationPool.this) {
+                location.leases++;
+            }
+            try {
+                Mapset sibling = location.mapset();
+                Files.copy(new File(mapset, "WIND").toPath(), new File(sibling.mapset, "WIND").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return sibling;
+            } catch (IOException fail) {
+                release(location);
+                throw fail;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            FileUtils.deleteQuietly(mapset);
+            release(location);
+        }
+
+        @Override
+        public String toString() {
+            return location.directory.getName() + "/" + mapset.getName();
+        }
+    }
+
+}
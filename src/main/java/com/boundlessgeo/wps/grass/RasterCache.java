@@ -0,0 +1,326 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.media.jai.RenderedOp;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Cache of DEM rasters already imported into GRASS.
+ * <p>
+ * Imported rasters are kept in the PERMANENT mapset of the pooled location matching
+ * their grid geometry (see {@link LocationPool}), named after a fingerprint of the
+ * coverage. Job mapsets reference the cached raster as {@code name@PERMANENT} rather
+ * than staging and importing the coverage again.
+ * <p>
+ * The cache is limited to a disk budget, least recently used rasters are removed
+ * when the budget is exceeded. Rasters in use by a job are never removed.
+ */
+class RasterCache {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Coverage property used by GeoTools readers to record the source file */
+    static final String FILE_SOURCE_PROPERTY = "OriginalFileSource";
+
+    /** Raster elements (directories of the mapset) holding raster content */
+    private static final String[] ELEMENTS = { "cell", "fcell", "cellhd", "cats", "colr", "hist", "cell_misc" };
+
+    /** Disk budget in bytes */
+    final long budget;
+
+    /** Cached rasters in least recently used order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Content fingerprints of coverages not read from a file, computed once for each coverage */
+    private static final Map<GridCoverage2D, String> DIGESTS = Collections
+            .synchronizedMap(new WeakHashMap<GridCoverage2D, String>());
+
+    /** Locks used to ensure a raster is only imported once */
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    /** Total size of cached rasters */
+    private long size;
+
+    RasterCache(long budget) {
+        this.budget = budget;
+    }
+
+    /** True if the cache is enabled */
+    boolean enabled() {
+        return budget > 0;
+    }
+
+    /**
+     * GRASS raster name for the provided coverage fingerprint.
+     */
+    static String name(String fingerprint) {
+        return "dem_" + fingerprint;
+    }
+
+    /**
+     * Fingerprint the provided coverage.
+     * <p>
+     * The fingerprint covers the CRS and grid geometry; along with the source file
+     * identity (path, size and modification time) for coverages read from a file,
+     * or a digest of the raster content otherwise. The digest is computed once for each
+     * coverage, and reused for as long as the coverage is referenced.
+     *
+     * @param dem coverage
+     * @return fingerprint suitable for use in a GRASS raster name
+     */
+    static String fingerprint(GridCoverage2D dem) {
+        File source = source(dem);
+        if (source == null) {
+            String fingerprint = DIGESTS.get(dem);
+            if (fingerprint == null) {
+                fingerprint = fingerprint(dem, null);
+                DIGESTS.put(dem, fingerprint);
+            }
+            return fingerprint;
+        }
+        return fingerprint(dem, source);
+    }
+
+    private static String fingerprint(GridCoverage2D dem, File source) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha.update(LocationPool.key(dem).getBytes(StandardCharsets.UTF_8));
+        if (source != null) {
+            String identity = source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified();
+            sha.update(identity.getBytes(StandardCharsets.UTF_8));
+        } else {
+            digest(sha, dem.getRenderedImage());
+        }
+        byte[] hash = sha.digest();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * File the coverage was read from, if known.
+     *
+     * @param dem coverage
+     * @return source file, or null if not file-backed
+     */
+    static File source(GridCoverage2D dem) {
+        File file = file(dem.getProperty(FILE_SOURCE_PROPERTY));
+        if (file == null && dem.getRenderedImage() instanceof RenderedOp) {
+            RenderedOp op = (RenderedOp) dem.getRenderedImage();
+            if ("ImageRead".equals(op.getOperationName()) && op.getParameterBlock().getNumParameters() > 0) {
+                file = file(op.getParameterBlock().getObjectParameter(0));
+            }
+        }
+        return file;
+    }
+
+    private static File file(Object source) {
+        File file = null;
+        if (source instanceof File) {
+            file = (File) source;
+        } else if (source instanceof String) {
+            file = new File((String) source);
+        }
+        return file != null && file.isFile() ? file : null;
+    }
+
+    /**
+     * Digest image content, tile by tile.
+     */
+    private static void digest(MessageDigest sha, RenderedImage image) {
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        int bands = image.getSampleModel().getNumBands();
+        double[] row = null;
+        ByteBuffer buffer = null;
+        for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for (int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                Raster tile = image.getTile(tx, ty);
+                Rectangle area = tile.getBounds().intersection(bounds);
+                if (row == null || row.length < area.width) {
+                    row = new double[area.width];
+                    buffer = ByteBuffer.allocate(area.width * 8);
+                }
+                for (int band = 0; band < bands; band++) {
+                    for (int y = area.y; y < area.y + area.height; y++) {
+                        tile.getSamples(area.x, y, area.width, 1, band, row);
+                        buffer.clear();
+                        for (int i = 0; i < area.width; i++) {
+                            buffer.putDouble(row[i]);
+                        }
+                        sha.update(buffer.array(), 0, buffer.position());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifier of a raster, unique across location directories.
+     */
+    private static String id(File location, String name) {
+        return new File(location.getAbsoluteFile(), name).getPath();
+    }
+
+    /**
+     * Lock used to ensure only one job imports a raster into location.
+     */
+    Object lock(File location, String name) {
+        String id = id(location, name);
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(id, lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * Remove the lock of a raster that did not end up cached, such as a raster
+     * dropped by {@link #checkout(File, String)} that then failed to import.
+     */
+    synchronized void unlock(File location, String name, Object lock) {
+        String id = id(location, name);
+        if (!entries.containsKey(id)) {
+            locks.remove(id, lock);
+        }
+    }
+
+    /**
+     * Check out a cached raster, preventing its removal until released.
+     *
+     * @param location location directory
+     * @param name raster name
+     * @return cache entry, or null if the raster is not cached
+     */
+    synchronized Entry checkout(File location, String name) {
+        String id = id(location, name);
+        Entry entry = entries.get(id);
+        File permanent = new File(location, "PERMANENT");
+        if (!new File(new File(permanent, "cellhd"), name).exists()) {
+            // location has been removed from the pool
+            if (entry != null) {
+                entries.remove(id);
+                size -= entry.size;
+            }
+            return null;
+        }
+        if (entry == null) {
+            // raster imported before restart
+            entry = new Entry(id, permanent, name);
+            entries.put(id, entry);
+            size += entry.size;
+        }
+        entry.leases++;
+        return entry;
+    }
+
+    /**
+     * Add a newly imported raster to the cache, evicting least recently used
+     * rasters to stay within budget.
+     *
+     * @param location location directory
+     * @param name raster name, imported into PERMANENT mapset
+     * @return cache entry, checked out for use
+     */
+    Entry add(File location, String name) {
+        String id = id(location, name);
+        List<Entry> evicted = new ArrayList<Entry>();
+        Entry entry = new Entry(id, new File(location, "PERMANENT"), name);
+        synchronized (this) {
+            Entry previous = entries.put(id, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            entry.leases++;
+            size += entry.size;
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && size > budget;) {
+                Entry candidate = i.next();
+                if (candidate.leases == 0) {
+                    i.remove();
+                    size -= candidate.size;
+                    evicted.add(candidate);
+                    locks.remove(candidate.id);
+                }
+            }
+        }
+        for (Entry candidate : evicted) {
+            LOGGER.info("Evicting cached GRASS raster " + candidate.id);
+            candidate.delete();
+        }
+        return entry;
+    }
+
+    /**
+     * Release a cache entry obtained from {@link #checkout(File, String)} or {@link #add(File, String)}.
+     */
+    synchronized void release(Entry entry) {
+        entry.leases--;
+    }
+
+    /** Total size of cached rasters in bytes */
+    synchronized long size() {
+        return size;
+    }
+
+    /** Imported raster held in the PERMANENT mapset of a pooled location */
+    static class Entry {
+        final String id;
+        final File mapset;
+        final String name;
+        final long size;
+        int leases;
+
+        Entry(String id, File mapset, String name) {
+            this.id = id;
+            this.mapset = mapset;
+            this.name = name;
+            long bytes = 0;
+            for (String element : ELEMENTS) {
+                File file = new File(new File(mapset, element), name);
+                if (file.isDirectory()) {
+                    bytes += FileUtils.sizeOfDirectory(file);
+                } else {
+                    bytes += file.length();
+                }
+            }
+            this.size = bytes;
+        }
+
+        /** Fully qualified raster name */
+        String raster() {
+            return name + "@PERMANENT";
+        }
+
+        void delete() {
+            for (String element : ELEMENTS) {
+                FileUtils.deleteQuietly(new File(new File(mapset, element), name));
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Rasters kept in server side mapsets between requests, referred to by handle.
+ * <p>
+ * A process can return a handle rather than exporting a raster, and a later process can
+ * use the handle as input without staging and importing the raster again. Mapsets holding
+ * handles stay checked out from the {@link LocationPool}; a mapset is closed when all its
+ * handles have expired (not used for the time to live) or have been evicted to keep the
+ * mapsets within the disk quota. Handles in use by a running process are not removed.
+ * Expired handles are removed periodically in the background, and whenever a handle is added
+ * or checked out.
+ */
+class RasterHandles {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+    private static final SecureRandom random = new SecureRandom();
+
+    /** Prefix of handle identifiers */
+    static final String PREFIX = "grass-raster-";
+
+    /** Disk quota for mapsets holding handles, in bytes */
+    final long quota;
+
+    /** Time to live since last use, in milliseconds */
+    final long ttl;
+
+    /** Handles in least recently used order */
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+    /** Number of handles held by each mapset */
+    private final IdentityHashMap<LocationPool.Mapset, Holder> mapsets = new IdentityHashMap<LocationPool.Mapset, Holder>();
+
+    private ScheduledExecutorService reaper;
+
+    RasterHandles(long quota, long ttl) {
+        this.quota = quota;
+        this.ttl = ttl;
+    }
+
+    /** True if handles are enabled */
+    boolean enabled() {
+        return quota > 0;
+    }
+
+    /**
+     * Remove expired handles periodically in the background.
+     */
+    synchronized void start() {
+        if (reaper != null || !enabled()) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GRASS handle reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(Math.min(ttl, TimeUnit.MINUTES.toMillis(5)), TimeUnit.SECONDS.toMillis(1));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to expire GRASS raster handles", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keep raster in mapset, which is closed once all handles to its rasters are removed.
+     *
+     * @param mapset mapset holding raster, no longer closed by the caller
+     * @param raster raster name in mapset
+     * @return handle identifier
+     * @throws IOException if the mapset exceeds the quota by itself
+     */
+    String add(LocationPool.Mapset mapset, String raster) throws IOException {
+        return add(mapset, Collections.singletonList(raster)).get(0);
+    }
+
+    /**
+     * Keep rasters in mapset, which is closed once all handles to its rasters are removed.
+     * Either all rasters are kept, or none are and the mapset is closed.
+     *
+     * @param mapset mapset holding rasters, no longer closed by the caller
+     * @param rasters raster names in mapset
+     * @return handle identifiers, in the order of rasters
+     * @throws IOException if the mapset exceeds the quota by itself
+     */
+    List<String> add(LocationPool.Mapset mapset, List<String> rasters) throws IOException {
+        List<LocationPool.Mapset> closed = new ArrayList<LocationPool.Mapset>();
+        List<String> ids = new ArrayList<String>();
+        try {
+            synchronized (this) {
+                expire(System.currentTimeMillis(), closed);
+                Holder holder = mapsets.get(mapset);
+                if (holder == null) {
+                    holder = new Holder();
+                    mapsets.put(mapset, holder);
+                }
+                for (String raster : rasters) {
+                    String id;
+                    do {
+                        id = PREFIX + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+                    } while (handles.containsKey(id));
+                    holder.count++;
+                    handles.put(id, new Handle(id, mapset, raster));
+                    ids.add(id);
+                }
+                holder.size = FileUtils.sizeOfDirectory(mapset.mapset());
+                if (holder.size > quota) {
+                    // too large to keep, regardless of other handles
+                    for (String id : ids) {
+                        remove(handles.remove(id), closed);
+                    }
+                    throw new IOException("Rasters " + rasters + " (" + holder.size
+                            + " bytes) exceed GRASS_HANDLE_QUOTA " + quota);
+                }
+                evict(closed);
+            }
+        } finally {
+            close(closed);
+        }
+        return ids;
+    }
+
+    /**
+     * Check out handle for use by a process, preventing its removal until released.
+     *
+     * @param id handle identifier
+     * @return handle
+     * @throws IllegalArgumentException if the handle is unknown or has expired
+     */
+    Handle checkout(String id) {
+        List<LocationPool.Mapset> closed = new ArrayList<LocationPool.Mapset>();
+        try {
+            synchronized (this) {
+                expire(System.currentTimeMillis(), closed);
+                Handle handle = handles.get(id);
+                if (handle == null) {
+                    throw new IllegalArgumentException("Raster handle " + id + " unknown or expired");
+                }
+                handle.pins++;
+                handle.used = System.currentTimeMillis();
+                return handle;
+            }
+        } finally {
+            close(closed);
+        }
+    }
+
+    /**
+     * Release handle checked out by a process.
+     *
+     * @param handle handle from {@link #checkout(String)}
+     */
+    synchronized void release(Handle handle) {
+        handle.pins--;
+        handle.used = System.currentTimeMillis();
+    }
+
+    /**
+     * Remove handles not used within the time to live.
+     *
+     * @param now current time
+     */
+    void expire(long now) {
+        List<LocationPool.Mapset> closed = new ArrayList<LocationPool.Mapset>();
+        try {
+            synchronized (this) {
+                expire(now, closed);
+            }
+        } finally {
+            close(closed);
+        }
+    }
+
+    private void expire(long now, List<LocationPool.Mapset> closed) {
+        for (Iterator<Handle> i = handles.values().iterator(); i.hasNext();) {
+            Handle handle = i.next();
+            if (handle.pins == 0 && now - handle.used > ttl) {
+                LOGGER.fine("Raster handle " + handle.id + " expired");
+                i.remove();
+                remove(handle, closed);
+            }
+        }
+    }
+
+    /** Remove least recently used handles until mapsets fit within the quota */
+    private void evict(List<LocationPool.Mapset> closed) {
+        for (Iterator<Handle> i = handles.values().iterator(); i.hasNext() && size() > quota;) {
+            Handle handle = i.next();
+            if (handle.pins == 0) {
+                LOGGER.info("Raster handle " + handle.id + " evicted, GRASS_HANDLE_QUOTA " + quota + " exceeded");
+                i.remove();
+                remove(handle, closed);
+            }
+        }
+    }
+
+    private void remove(Handle handle, List<LocationPool.Mapset> closed) {
+        Holder holder = mapsets.get(handle.mapset);
+        if (--holder.count == 0) {
+            mapsets.remove(handle.mapset);
+            closed.add(handle.mapset);
+        }
+    }
+
+    /** Close mapsets outside of lock, as this returns their location to the pool */
+    private static void close(List<LocationPool.Mapset> closed) {
+        for (LocationPool.Mapset mapset : closed) {
+            mapset.close();
+        }
+    }
+
+    /** Disk space used by mapsets holding handles, in bytes */
+    synchronized long size() {
+        long size = 0;
+        for (Holder holder : mapsets.values()) {
+            size += holder.size;
+        }
+        return size;
+    }
+
+    /** Number of handles */
+    synchronized int count() {
+        return handles.size();
+    }
+
+    /** Remove all handles not in use */
+    void clear() {
+        expire(Long.MAX_VALUE);
+    }
+
+    /** Raster kept in a mapset */
+    static class Handle {
+        final String id;
+        final LocationPool.Mapset mapset;
+        /** Raster name within mapset */
+        final String raster;
+        private int pins;
+        private long used = System.currentTimeMillis();
+
+        Handle(String id, LocationPool.Mapset mapset, String raster) {
+            this.id = id;
+            this.mapset = mapset;
+            this.raster = raster;
+        }
+
+        /** Fully qualified raster name, name@mapset */
+        String qualified() {
+            return raster + "@" + mapset.mapset().getName();
+        }
+    }
+
+    private static class Holder {
+        int count;
+        long size;
+    }
+}
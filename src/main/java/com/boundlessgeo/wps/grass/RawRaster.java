@@ -0,0 +1,155 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Raw binary raster file, staged for import using r.in.bin.
+ * <p>
+ * The first band of the image is written tile by tile using positional writes on a
+ * {@link FileChannel}, so the raster is never held on heap as a whole. Samples are
+ * written in native byte order using the smallest type r.in.bin can read without loss.
+ */
+class RawRaster {
+    /** Raw file */
+    final File file;
+
+    /** Bytes per cell */
+    final int bytes;
+
+    /** True for floating point data (r.in.bin -f or -d) */
+    final boolean floating;
+
+    /** True for signed integer data (r.in.bin -s) */
+    final boolean signed;
+
+    /** Byte order of data */
+    final ByteOrder order;
+
+    final int cols;
+
+    final int rows;
+
+    private RawRaster(File file, int bytes, boolean floating, boolean signed, int cols, int rows) {
+        this.file = file;
+        this.bytes = bytes;
+        this.floating = floating;
+        this.signed = signed;
+        this.order = ByteOrder.nativeOrder();
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    /**
+     * Write the first band of image to file.
+     *
+     * @param image image to write
+     * @param file raw file to create
+     * @return description of the written file
+     * @throws IOException if the file could not be written
+     */
+    static RawRaster write(RenderedImage image, File file) throws IOException {
+        int type = image.getSampleModel().getDataType();
+        int bytes;
+        boolean floating = false;
+        boolean signed = false;
+        switch (type) {
+        case DataBuffer.TYPE_BYTE:
+            bytes = 1;
+            break;
+        case DataBuffer.TYPE_USHORT:
+            bytes = 2;
+            break;
+        case DataBuffer.TYPE_SHORT:
+            bytes = 2;
+            signed = true;
+            break;
+        case DataBuffer.TYPE_INT:
+            bytes = 4;
+            signed = true;
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            bytes = 4;
+            floating = true;
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            bytes = 8;
+            floating = true;
+            break;
+        default:
+            throw new IOException("Unsupported data type " + type);
+        }
+        RawRaster raw = new RawRaster(file, bytes, floating, signed, image.getWidth(), image.getHeight());
+
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        // one tile row at a time (tiles never exceed the tile width)
+        int width = image.getTileWidth();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * bytes).order(raw.order);
+        int[] ints = type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE ? null : new int[width];
+        float[] floats = type == DataBuffer.TYPE_FLOAT ? new float[width] : null;
+        double[] doubles = type == DataBuffer.TYPE_DOUBLE ? new double[width] : null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+                for (int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                    Raster tile = image.getTile(tx, ty);
+                    Rectangle area = tile.getBounds().intersection(bounds);
+                    if (area.isEmpty()) {
+                        continue;
+                    }
+                    for (int y = area.y; y < area.y + area.height; y++) {
+                        buffer.clear();
+                        switch (type) {
+                        case DataBuffer.TYPE_FLOAT:
+                            floats = tile.getSamples(area.x, y, area.width, 1, 0, floats);
+                            for (int i = 0; i < area.width; i++) {
+                                buffer.putFloat(floats[i]);
+                            }
+                            break;
+                        case DataBuffer.TYPE_DOUBLE:
+                            doubles = tile.getSamples(area.x, y, area.width, 1, 0, doubles);
+                            for (int i = 0; i < area.width; i++) {
+                                buffer.putDouble(doubles[i]);
+                            }
+                            break;
+                        default:
+                            ints = tile.getSamples(area.x, y, area.width, 1, 0, ints);
+                            for (int i = 0; i < area.width; i++) {
+                                if (bytes == 1) {
+                                    buffer.put((byte) ints[i]);
+                                } else if (bytes == 2) {
+                                    buffer.putShort((short) ints[i]);
+                                } else {
+                                    buffer.putInt(ints[i]);
+                                }
+                            }
+                        }
+                        buffer.flip();
+                        long position = ((long) (y - bounds.y) * bounds.width + (area.x - bounds.x)) * bytes;
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+                }
+            }
+        }
+        return raw;
+    }
+
+    /** r.in.bin order parameter */
+    String order() {
+        return order == ByteOrder.BIG_ENDIAN ? "big" : "little";
+    }
+}
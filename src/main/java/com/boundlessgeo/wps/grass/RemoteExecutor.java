@@ -0,0 +1,284 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.ExecuteException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Sends module commands to {@link GrassWorker} daemons, so GRASS processes are supervised
+ * outside of this JVM.
+ * <p>
+ * Each command goes to the worker with the fewest active jobs, as last reported by the worker
+ * and counting commands sent to it since. A worker that cannot be reached is skipped for
+ * {@link #RETRY} milliseconds and the command is sent to the next worker. Workers must see
+ * the scratch and location directories, and the GRASS installation, at the same paths. Only
+ * GISRC and GRASS_* variables of the module environment are sent, other variables are those of
+ * the worker.
+ */
+class RemoteExecutor implements GrassExecutor {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Time in milliseconds an unreachable worker is skipped */
+    static final long RETRY = 30000;
+
+    /** Time in milliseconds allowed to connect to a worker */
+    static final int CONNECT_TIMEOUT = 5000;
+
+    final List<Worker> workers = new ArrayList<Worker>();
+
+    private final byte[] secret;
+
+    /**
+     * Executor sending commands to workers.
+     *
+     * @param addresses worker addresses
+     * @param secret shared secret (GRASS_WORKER_SECRET) to authenticate with
+     */
+    RemoteExecutor(List<InetSocketAddress> addresses, String secret) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No GRASS workers");
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        for (InetSocketAddress address : addresses) {
+            workers.add(new Worker(address));
+        }
+    }
+
+    /** Worker daemon, with an estimate of its active jobs */
+    static class Worker {
+        final InetSocketAddress address;
+
+        final AtomicInteger load = new AtomicInteger();
+
+        /** Time the worker could not be reached, or 0 */
+        volatile long unreachable;
+
+        Worker(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return "GRASS worker " + address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * Parse worker addresses.
+     *
+     * @param workers comma separated host:port (port defaults to {@value GrassWorker#PORT})
+     * @return addresses
+     * @throws IllegalArgumentException if an address is invalid
+     */
+    static List<InetSocketAddress> addresses(String workers) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String worker : workers.split(",")) {
+            worker = worker.trim();
+            if (worker.isEmpty()) {
+                continue;
+            }
+            int colon = worker.lastIndexOf(':');
+            try {
+                String host = colon == -1 ? worker : worker.substring(0, colon);
+                int port = colon == -1 ? GrassWorker.PORT : Integer.parseInt(worker.substring(colon + 1));
+                addresses.add(InetSocketAddress.createUnresolved(host, port));
+            } catch (IllegalArgumentException invalid) {
+                throw new IllegalArgumentException("Invalid GRASS worker " + worker, invalid);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Worker for the next attempt: the least loaded, preferring workers not recently unreachable.
+     *
+     * @param tried workers already tried for this command
+     * @return worker, or null if all have been tried
+     */
+    synchronized Worker next(Set<Worker> tried) {
+        long now = System.currentTimeMillis();
+        Worker next = null;
+        boolean nextDown = true;
+        for (Worker worker : workers) {
+            if (tried.contains(worker)) {
+                continue;
+            }
+            boolean down = now - worker.unreachable < RETRY;
+            if (next == null || (nextDown && !down)
+                    || (nextDown == down && worker.load.get() < next.load.get())) {
+                next = worker;
+                nextDown = down;
+            }
+        }
+        if (next != null) {
+            tried.add(next);
+        }
+        return next;
+    }
+
+    @Override
+    public int execute(CommandLine cmd, Map<String, String> env, File directory, GrassJob.Task task)
+            throws IOException {
+        String[] command = cmd.toStrings();
+        Set<Worker> tried = new HashSet<Worker>();
+        IOException failure = null;
+        for (Worker worker = next(tried); worker != null; worker = next(tried)) {
+            Socket socket = new Socket();
+            try {
+                InetSocketAddress address = worker.address.isUnresolved()
+                        ? new InetSocketAddress(worker.address.getHostString(), worker.address.getPort())
+                        : worker.address;
+                socket.connect(address, CONNECT_TIMEOUT);
+            } catch (IOException unreachable) {
+                LOGGER.warning(worker + " unreachable: " + unreachable.getMessage());
+                worker.unreachable = System.currentTimeMillis();
+                failure = unreachable;
+                socket.close();
+                continue;
+            }
+            worker.unreachable = 0;
+            worker.load.incrementAndGet();
+            try {
+                return run(worker, socket, command, env, directory, task);
+            } finally {
+                worker.load.decrementAndGet();
+                socket.close();
+            }
+        }
+        throw new IOException("No GRASS worker available to run " + task.module, failure);
+    }
+
+    private int run(Worker worker, Socket socket, String[] command, Map<String, String> env, File directory,
+            GrassJob.Task task) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        GrassWorker.writeRequest(in, out, secret, command, env, directory);
+        out.flush();
+        // killed on timeout or cancel by closing the connection
+        RemoteProcess process = new RemoteProcess(socket);
+        task.started(process);
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == GrassWorker.ACCEPTED) {
+                    worker.load.set(in.readInt());
+                } else if (type == GrassWorker.OUTPUT) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    task.write(bytes, 0, bytes.length);
+                } else if (type == GrassWorker.EXIT) {
+                    int exitValue = in.readInt();
+                    process.finished(exitValue);
+                    if (exitValue != 0) {
+                        throw new ExecuteException("Process exited with an error: " + exitValue + " (" + worker
+                                + ")", exitValue);
+                    }
+                    return exitValue;
+                } else if (type == GrassWorker.FAILED) {
+                    throw new IOException(worker + " could not run " + task.module + ": "
+                            + GrassWorker.readString(in));
+                } else {
+                    throw new EOFException(worker + " closed connection running " + task.module);
+                }
+            }
+        } catch (ExecuteException failed) {
+            throw failed;
+        } catch (IOException e) {
+            if (task.killed() != null) {
+                throw new ExecuteException("Process killed (" + worker + ")", -1, e);
+            }
+            throw e;
+        } finally {
+            process.finished(-1);
+        }
+    }
+
+    /**
+     * Module running on a worker, destroyed by closing the connection.
+     */
+    private static class RemoteProcess extends Process {
+        private final Socket socket;
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private volatile int exitValue = -1;
+
+        RemoteProcess(Socket socket) {
+            this.socket = socket;
+        }
+
+        /** Record exit value reported by the worker, or -1 if the connection was lost */
+        void finished(int exitValue) {
+            if (finished.getCount() > 0) {
+                this.exitValue = exitValue;
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        /** Wait until the worker reports the exit value, or the connection is closed */
+        @Override
+        public int waitFor() throws InterruptedException {
+            finished.await();
+            return exitValue;
+        }
+
+        @Override
+        public int exitValue() {
+            if (finished.getCount() > 0) {
+                throw new IllegalThreadStateException("Remote process running");
+            }
+            return exitValue;
+        }
+
+        @Override
+        public void destroy() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+            finished(-1);
+        }
+    }
+}
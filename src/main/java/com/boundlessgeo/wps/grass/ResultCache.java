@@ -0,0 +1,329 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Disk cache of process results, such as viewshed GeoTIFF files.
+ * <p>
+ * Results are stored under a key describing the inputs (DEM fingerprint, observer cell and
+ * module parameters). The cache is limited by a disk budget with least recently used eviction,
+ * and entries expire after a time to live. Concurrent requests for the same key wait for a
+ * single computation rather than repeating it.
+ */
+class ResultCache {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Directory holding cached results */
+    final File directory;
+
+    /** Disk budget in bytes */
+    final long budget;
+
+    /** Time to live in milliseconds */
+    final long ttl;
+
+    /** Cached results in least recently used order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Computations in progress */
+    private final ConcurrentHashMap<String, FutureTask<File>> inflight = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    private long size;
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong evictions = new AtomicLong();
+
+    ResultCache(File directory, long budget, long ttl) {
+        this.directory = directory;
+        this.budget = budget;
+        this.ttl = ttl;
+    }
+
+    /** True if the cache is enabled */
+    boolean enabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Cache key for the provided process inputs.
+     *
+     * @param process process name
+     * @param inputs process inputs (sorted by name to form the key)
+     * @return key
+     */
+    static String key(String process, Map<String, Object> inputs) {
+        StringBuilder key = new StringBuilder(process);
+        for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(inputs).entrySet()) {
+            key.append("|").append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copy cached result for key to target, computing the result if required.
+     * <p>
+     * Requests waiting on a computation copy its result, even if it could not be cached, and
+     * retry if the computation was cancelled or killed rather than failing.
+     *
+     * @param key cache key
+     * @param compute computes the result file, called at most once for concurrent requests
+     * @param target file receiving a copy of the result
+     * @return target
+     * @throws Exception if the result could not be computed
+     */
+    File get(String key, Callable<File> compute, File target) throws Exception {
+        File shared = null;
+        while (true) {
+            Entry entry = checkout(key);
+            if (entry != null) {
+                try {
+                    hits.incrementAndGet();
+                    Files.copy(entry.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return target;
+                } finally {
+                    release(entry);
+                }
+            }
+            if (shared != null) {
+                // result computed for another request, but not cached
+                try {
+                    Files.copy(shared.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    hits.incrementAndGet();
+                    return target;
+                } catch (NoSuchFileException removed) {
+                    // removed with the scratch directory of the other request
+                    shared = null;
+                }
+            }
+            FutureTask<File> task = new FutureTask<File>(caching(key, compute));
+            FutureTask<File> existing = inflight.putIfAbsent(key, task);
+            if (existing == null) {
+                // compute result
+                misses.incrementAndGet();
+                try {
+                    task.run();
+                    File result = unwrap(task);
+                    if (!result.equals(target)) {
+                        Files.copy(result.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return target;
+                } finally {
+                    inflight.remove(key, task);
+                }
+            }
+            // wait for computation in progress, then use its result
+            try {
+                shared = unwrap(existing);
+            } catch (InterruptedIOException | GrassJob.Killed abandoned) {
+                // cancelled or killed for the other request, compute for this request instead
+                inflight.remove(key, existing);
+                LOGGER.fine("Result computation abandoned, retrying: " + abandoned.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Computation adding its result to the cache before completing, so requests waiting
+     * on the computation find the cached result.
+     */
+    private Callable<File> caching(final String key, final Callable<File> compute) {
+        return new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                File result = compute.call();
+                try {
+                    add(key, result);
+                } catch (IOException failed) {
+                    LOGGER.warning("Unable to cache result: " + failed.getMessage());
+                }
+                return result;
+            }
+        };
+    }
+
+    private static File unwrap(FutureTask<File> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException failed) {
+            if (failed.getCause() instanceof Exception) {
+                throw (Exception) failed.getCause();
+            }
+            throw failed;
+        }
+    }
+
+    /**
+     * Cached entry for key, pinned so its file is kept until released.
+     *
+     * @return entry, or null if not cached
+     */
+    synchronized Entry checkout(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created > ttl || !entry.file.exists()) {
+            remove(key, entry);
+            return null;
+        }
+        entry.pins++;
+        return entry;
+    }
+
+    /** Release entry from {@link #checkout(String)} */
+    void release(Entry entry) {
+        synchronized (this) {
+            entry.pins--;
+            if (!entry.removed || entry.pins > 0) {
+                return;
+            }
+        }
+        // removed while in use
+        FileUtils.deleteQuietly(entry.file);
+    }
+
+    /**
+     * Add result to the cache, evicting least recently used entries to stay within budget.
+     */
+    private void add(String key, File result) throws IOException {
+        long length = result.length();
+        if (length > budget) {
+            LOGGER.fine("Result too large to cache: " + length);
+            return;
+        }
+        directory.mkdirs();
+        // unique file, as a replaced entry may still be in use
+        File file = File.createTempFile(key + "-result", "." + extension(result), directory);
+        Files.copy(result.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        List<Entry> evicted = new ArrayList<Entry>();
+        File replaced = null;
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(file, length));
+            if (previous != null) {
+                size -= previous.size;
+                if (discard(previous)) {
+                    replaced = previous.file;
+                }
+            }
+            size += length;
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+                Entry candidate = i.next();
+                if (candidate.pins == 0 && candidate.file != file
+                        && (size > budget || now - candidate.created > ttl)) {
+                    i.remove();
+                    size -= candidate.size;
+                    candidate.removed = true;
+                    evicted.add(candidate);
+                }
+            }
+        }
+        FileUtils.deleteQuietly(replaced);
+        for (Entry candidate : evicted) {
+            evictions.incrementAndGet();
+            FileUtils.deleteQuietly(candidate.file);
+        }
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        entries.remove(key);
+        size -= entry.size;
+        evictions.incrementAndGet();
+        if (discard(entry)) {
+            FileUtils.deleteQuietly(entry.file);
+        }
+    }
+
+    /**
+     * Entry no longer cached, its file to be deleted now or once released.
+     *
+     * @return true if the file can be deleted now, false if it is deleted on release
+     */
+    private boolean discard(Entry entry) {
+        entry.removed = true;
+        return entry.pins == 0;
+    }
+
+    private static String extension(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "bin" : name.substring(dot + 1);
+    }
+
+    /** Total size of cached results in bytes */
+    synchronized long size() {
+        return size;
+    }
+
+    /** Number of cached results */
+    synchronized int count() {
+        return entries.size();
+    }
+
+    /** Remove all cached results */
+    synchronized void clear() {
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (discard(entry)) {
+                FileUtils.deleteQuietly(entry.file);
+            }
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /** Cached result file */
+    static class Entry {
+        final File file;
+        final long size;
+        final long created = System.currentTimeMillis();
+        int pins;
+        /** No longer cached, file deleted once released */
+        boolean removed;
+
+        Entry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wps.resource.GridCoverageResource;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+
+/**
+ * Coverage read lazily, a tile at a time, from a result file in a scratch directory.
+ * <p>
+ * The scratch directory is kept until the coverage is disposed. Results are registered with
+ * the WPS resource manager so they are disposed once the response has been written.
+ */
+class ScratchCoverage extends GridCoverage2D {
+    private static final long serialVersionUID = 1L;
+
+    /** Tile size requested from the reader */
+    static final String TILE_SIZE = "512,512";
+
+    private final transient GeoTiffReader reader;
+
+    private final File scratch;
+
+    private boolean disposed;
+
+    private ScratchCoverage(GridCoverage2D coverage, GeoTiffReader reader, File scratch) {
+        super(coverage.getName(), coverage);
+        this.reader = reader;
+        this.scratch = scratch;
+    }
+
+    /**
+     * Read GeoTIFF result using deferred loading, keeping scratch until the result is disposed.
+     *
+     * @param file GeoTIFF file within scratch
+     * @param scratch scratch directory from {@link ScratchSpace#create()}
+     * @return coverage, reading tiles from file on demand
+     */
+    static GridCoverage2D read(File file, File scratch) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("Generated " + file.getName() + " not found");
+        }
+        ParameterValue<Boolean> deferred = AbstractGridFormat.USE_JAI_IMAGEREAD.createValue();
+        deferred.setValue(true);
+        ParameterValue<String> tiles = AbstractGridFormat.SUGGESTED_TILE_SIZE.createValue();
+        tiles.setValue(TILE_SIZE);
+
+        GeoTiffReader reader = new GeoTiffFormat().getReader(file);
+        ScratchCoverage coverage;
+        try {
+            coverage = new ScratchCoverage(reader.read(new GeneralParameterValue[] { deferred, tiles }), reader,
+                    scratch);
+        } catch (IOException | RuntimeException e) {
+            reader.dispose();
+            throw e;
+        }
+        GrassProcesses.SCRATCH.retain(scratch);
+
+        WPSResourceManager resources = GeoServerExtensions.bean(WPSResourceManager.class);
+        if (resources != null) {
+            resources.addResource(new GridCoverageResource(coverage));
+        }
+        return coverage;
+    }
+
+    @Override
+    public boolean dispose(boolean force) {
+        boolean result = super.dispose(force);
+        synchronized (this) {
+            if (disposed || !result) {
+                return result;
+            }
+            disposed = true;
+        }
+        reader.dispose();
+        GrassProcesses.SCRATCH.release(scratch);
+        return result;
+    }
+}
@@ -0,0 +1,327 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Scratch directories (GISDBASE, staged inputs and exported results) used by GRASS jobs.
+ * <p>
+ * A directory is created for each job and removed when the job has finished, unless it holds
+ * result files still being read, in which case it is removed when the last result is
+ * released (see {@link ScratchCoverage}). A reaper removes orphaned directories, such as
+ * those left by a previous run or results never disposed, once they are older than the
+ * maximum age and not in use by a running job.
+ * <p>
+ * Several roots may be configured, such as a tmpfs for small jobs and a local disk for large
+ * ones. Each job is placed in the first root accepting its estimated size (see
+ * {@link Root#limit}) with room left in its quota. Quotas are enforced against the estimate
+ * reserved by running jobs, and the measured size of directories kept for results.
+ */
+class ScratchSpace {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+
+    /** Prefix of scratch directory names */
+    static final String PREFIX = "grassdata";
+
+    /** Directories holding scratch directories, in order of preference */
+    final List<Root> roots;
+
+    /** Age (in milliseconds) after which unused scratch directories are removed */
+    final long maxAge;
+
+    /** Directories in use */
+    private final Map<File, Usage> directories = new HashMap<File, Usage>();
+
+    private ScheduledExecutorService reaper;
+
+    ScratchSpace(File root, long maxAge) {
+        this(Collections.singletonList(new Root(root, 0, 0)), maxAge);
+    }
+
+    ScratchSpace(List<Root> roots, long maxAge) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("Scratch root required");
+        }
+        this.roots = Collections.unmodifiableList(new ArrayList<Root>(roots));
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Create scratch directory for a job of unknown size.
+     *
+     * @return directory, to be finished when the job completes
+     */
+    File create() throws IOException {
+        return create(0);
+    }
+
+    /**
+     * Create scratch directory for a job, in the first root accepting its estimated size.
+     *
+     * @param estimate estimated disk space used by the job, in bytes
+     * @return directory, to be finished when the job completes
+     * @throws IOException if no root has room for the job
+     */
+    File create(long estimate) throws IOException {
+        Root root = reserve(estimate);
+        try {
+            root.directory.mkdirs();
+            File directory = Files.createTempDirectory(root.directory.toPath(), PREFIX).toFile();
+            synchronized (this) {
+                directories.put(directory, new Usage(root, estimate));
+            }
+            return directory;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                root.used -= estimate;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized Root reserve(long estimate) throws IOException {
+        boolean accepted = false;
+        for (Root root : roots) {
+            if (root.limit > 0 && estimate > root.limit) {
+                continue;
+            }
+            accepted = true;
+            if (root.quota <= 0 || root.used + estimate <= root.quota) {
+                root.used += estimate;
+                return root;
+            }
+        }
+        if (!accepted) {
+            throw new IOException("No GRASS scratch root accepts jobs of " + estimate + " bytes, check GRASS_SCRATCH_JOB_LIMIT");
+        }
+        throw new IOException("GRASS scratch space exhausted, unable to reserve " + estimate + " bytes within GRASS_SCRATCH_QUOTA");
+    }
+
+    /**
+     * Job using directory has completed, removing the directory unless it holds results.
+     *
+     * @param directory directory from {@link #create()}
+     */
+    void finish(File directory) {
+        // results kept count against the quota, in place of the estimate
+        long size = directory.isDirectory() ? FileUtils.sizeOfDirectory(directory) : 0;
+        boolean remove;
+        synchronized (this) {
+            Usage usage = directories.get(directory);
+            if (usage == null) {
+                return;
+            }
+            usage.jobs--;
+            remove = usage.jobs <= 0 && usage.results <= 0;
+            if (remove) {
+                remove(directory, usage);
+            } else if (usage.jobs <= 0) {
+                usage.root.used += size - usage.size;
+                usage.size = size;
+            }
+        }
+        if (remove) {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Keep directory for a result read from it.
+     *
+     * @param directory directory from {@link #create()}
+     */
+    synchronized void retain(File directory) {
+        Usage usage = directories.get(directory);
+        if (usage != null) {
+            usage.results++;
+        }
+    }
+
+    /**
+     * Result read from directory no longer required, removing the directory once unused.
+     *
+     * @param directory directory from {@link #create()}
+     */
+    void release(File directory) {
+        boolean remove;
+        synchronized (this) {
+            Usage usage = directories.get(directory);
+            if (usage == null) {
+                return;
+            }
+            usage.results--;
+            remove = usage.jobs <= 0 && usage.results <= 0;
+            if (remove) {
+                remove(directory, usage);
+            }
+        }
+        if (remove) {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    private void remove(File directory, Usage usage) {
+        directories.remove(directory);
+        usage.root.used -= usage.size;
+    }
+
+    /**
+     * Remove scratch directories older than the maximum age, unless in use by a running job.
+     *
+     * @param now current time
+     * @return number of directories removed
+     */
+    int reap(long now) {
+        int reaped = 0;
+        for (Root root : roots) {
+            File[] files = root.directory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!file.isDirectory() || !file.getName().startsWith(PREFIX) || now - file.lastModified() <= maxAge) {
+                    continue;
+                }
+                synchronized (this) {
+                    Usage usage = directories.get(file);
+                    if (usage != null) {
+                        if (usage.jobs > 0) {
+                            continue;
+                        }
+                        remove(file, usage);
+                    }
+                }
+                LOGGER.info("Removing orphaned GRASS scratch directory " + file);
+                FileUtils.deleteQuietly(file);
+                reaped++;
+            }
+        }
+        return reaped;
+    }
+
+    /** Number of scratch directories in use */
+    synchronized int count() {
+        return directories.size();
+    }
+
+    /** Disk space reserved by scratch directories in use, in bytes */
+    synchronized long used() {
+        long used = 0;
+        for (Root root : roots) {
+            used += root.used;
+        }
+        return used;
+    }
+
+    /**
+     * Reap orphaned directories now, and periodically in the background.
+     */
+    synchronized void start() {
+        if (reaper != null || maxAge <= 0) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GRASS scratch reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(Math.min(maxAge, TimeUnit.HOURS.toMillis(1)), TimeUnit.MINUTES.toMillis(1));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to reap GRASS scratch directories", e);
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parse scratch roots from comma separated lists, missing quotas and limits being 0.
+     *
+     * @param directories root directories, in order of preference
+     * @param quotas disk quota of each root in bytes, 0 for unlimited
+     * @param limits largest estimated job size accepted by each root in bytes, 0 for any
+     * @return roots
+     * @throws IllegalArgumentException if a quota or limit is not a number
+     */
+    static List<Root> roots(String directories, String quotas, String limits) {
+        String[] quota = quotas == null ? new String[0] : quotas.split(",");
+        String[] limit = limits == null ? new String[0] : limits.split(",");
+        List<Root> roots = new ArrayList<Root>();
+        String[] names = directories.split(",");
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().isEmpty()) {
+                continue;
+            }
+            roots.add(new Root(new File(names[i].trim()), bytes(quota, i), bytes(limit, i)));
+        }
+        return roots;
+    }
+
+    private static long bytes(String[] values, int index) {
+        if (index >= values.length || values[index].trim().isEmpty()) {
+            return 0;
+        }
+        return Long.parseLong(values[index].trim());
+    }
+
+    /** Directory holding scratch directories */
+    static class Root {
+        final File directory;
+        /** Disk quota in bytes, 0 for unlimited */
+        final long quota;
+        /** Largest estimated job size accepted in bytes, 0 for any */
+        final long limit;
+        /** Disk space reserved by directories in use */
+        private long used;
+
+        Root(File directory, long quota, long limit) {
+            this.directory = directory;
+            this.quota = quota;
+            this.limit = limit;
+        }
+
+        @Override
+        public String toString() {
+            return directory + " (quota " + quota + ", limit " + limit + ")";
+        }
+    }
+
+    private static class Usage {
+        final Root root;
+        /** Reserved estimate, or measured size once the job has finished */
+        long size;
+        int jobs = 1;
+        int results;
+
+        Usage(Root root, long size) {
+            this.root = root;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/* Copyright (c) 2013 - 2014 Boundless - http://boundlessgeo.com All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package com.boundlessgeo.wps.grass;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.exec.ExecuteException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Pool of long-lived shell sessions used to run GRASS modules.
+ * <p>
+ * Each session is a {@code /bin/sh} started once with the GRASS base environment. Commands
+ * are written to the shell on stdin, with the job specific environment (GISRC) and working
+ * directory, and completion is detected by a marker line echoed with the exit code. This
+ * avoids setting up a new process environment from Java for every module.
+ * <p>
+ * Sessions are health checked before use and recycled after a number of jobs.
+ */
+class SessionPool {
+    private static final Logger LOGGER = Logging.getLogger("org.geoserver.wps.grass");
+    private static final SecureRandom random = new SecureRandom();
+
+    /** Maximum number of sessions */
+    final int size;
+
+    /** Number of jobs before a session is recycled */
+    final int jobs;
+
+    /** Environment used to start sessions */
+    private final Map<String, String> base;
+
+    private final BlockingQueue<Session> idle = new LinkedBlockingQueue<Session>();
+
+    /** Number of sessions created (idle or in use) */
+    private int created;
+
+    SessionPool(int size, int jobs, Map<String, String> base) {
+        this.size = size;
+        this.jobs = jobs;
+        this.base = base;
+    }
+
+    /**
+     * Execute command in a warm session.
+     *
+     * @param command executable followed by arguments
+     * @param env environment, entries differing from the session environment are passed to the command
+     * @param directory working directory, or null
+     * @param timeout timeout in milliseconds
+     * @param output stream receiving command output (stdout and stderr)
+     * @return exit value
+     * @throws ExecuteException if the command failed or timed out
+     * @throws IOException if a session could not be used
+     */
+    int execute(String[] command, Map<String, String> env, File directory, long timeout, OutputStream output)
+            throws IOException {
+        return execute(command, env, directory, timeout, output, null);
+    }
+
+    /**
+     * Execute command in a warm session, which is killed (and recycled) if the task is killed.
+     *
+     * @param command executable followed by arguments
+     * @param env environment, entries differing from the session environment are passed to the command
+     * @param directory working directory, or null
+     * @param timeout timeout in milliseconds
+     * @param output stream receiving command output (stdout and stderr)
+     * @param task task notified of the session process, or null
+     * @return exit value
+     * @throws ExecuteException if the command failed, timed out or was killed
+     * @throws IOException if a session could not be used
+     */
+    int execute(String[] command, Map<String, String> env, File directory, long timeout, OutputStream output,
+            GrassJob.Task task) throws IOException {
+        Session session = checkout();
+        boolean healthy = false;
+        try {
+            if (task != null) {
+                task.started(session.process);
+            }
+            int exitValue = session.execute(command, env, directory, timeout, output);
+            healthy = true;
+            if (exitValue != 0) {
+                throw new ExecuteException("Process exited with an error: " + exitValue, exitValue);
+            }
+            return exitValue;
+        } finally {
+            release(session, healthy);
+        }
+    }
+
+    private Session checkout() throws IOException {
+        while (true) {
+            Session session = idle.poll();
+            if (session == null) {
+                synchronized (this) {
+                    if (created < size) {
+                        created++;
+                        try {
+                            return new Session(base);
+                        } catch (IOException fail) {
+                            created--;
+                            throw fail;
+                        }
+                    }
+                }
+                try {
+                    session = idle.take();
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for GRASS session");
+                }
+            }
+            if (session.ping()) {
+                return session;
+            }
+            LOGGER.info("GRASS session failed health check, recycling");
+            discard(session);
+        }
+    }
+
+    private void release(Session session, boolean healthy) {
+        if (healthy && session.count < jobs) {
+            idle.add(session);
+        } else {
+            discard(session);
+        }
+    }
+
+    private void discard(Session session) {
+        session.close();
+        synchronized (this) {
+            created--;
+        }
+    }
+
+    /**
+     * Close idle sessions.
+     */
+    void close() {
+        List<Session> sessions = new ArrayList<Session>();
+        idle.drainTo(sessions);
+        for (Session session : sessions) {
+            discard(session);
+        }
+    }
+
+    /** Quote argument for use with /bin/sh */
+    static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    /** Shell process reading commands from stdin */
+    static class Session {
+        /** Added to lines once the shell has exited */
+        private static final Object EXITED = new Object();
+
+        private final Process process;
+        private final Writer stdin;
+        private final Map<String, String> base;
+        private final String marker = "__GRASS_" + Long.toHexString(random.nextLong()) + "__";
+        /** Output lines from the shell, collected by a background thread, then {@link #EXITED} */
+        private final BlockingQueue<Object> lines = new LinkedBlockingQueue<Object>();
+        /** Number of commands executed */
+        int count;
+
+        Session(Map<String, String> base) throws IOException {
+            this.base = base;
+            ProcessBuilder builder = new ProcessBuilder("/bin/sh");
+            builder.environment().clear();
+            builder.environment().putAll(base);
+            builder.redirectErrorStream(true);
+            process = builder.start();
+            stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+            Thread reader = new Thread("GRASS session reader") {
+                @Override
+                public void run() {
+                    try (BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                            StandardCharsets.UTF_8))) {
+                        for (String line = stdout.readLine(); line != null; line = stdout.readLine()) {
+                            lines.add(line);
+                        }
+                    } catch (IOException closed) {
+                        // session closed
+                    }
+                    lines.add(EXITED);
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Check the shell is responsive.
+         */
+        boolean ping() {
+            try {
+                return send("true", 5000, null) == 0;
+            } catch (IOException unresponsive) {
+                return false;
+            }
+        }
+
+        int execute(String[] command, Map<String, String> env, File directory, long timeout, OutputStream output)
+                throws IOException {
+            StringBuilder script = new StringBuilder();
+            if (directory != null) {
+                script.append("cd ").append(quote(directory.getPath())).append(" && ");
+            }
+            if (env != null) {
+                for (Map.Entry<String, String> entry : env.entrySet()) {
+                    if (!entry.getValue().equals(base.get(entry.getKey()))) {
+                        script.append(entry.getKey()).append("=").append(quote(entry.getValue())).append(" ");
+                    }
+                }
+            }
+            for (String argument : command) {
+                script.append(quote(argument)).append(" ");
+            }
+            script.append("</dev/null 2>&1");
+            count++;
+            return send(script.toString(), timeout, output);
+        }
+
+        /**
+         * Send script, waiting for completion marker. The marker may follow output not ending
+         * with a new line.
+         */
+        private int send(String script, long timeout, OutputStream output) throws IOException {
+            stdin.write(script + "\necho " + marker + " $?\n");
+            stdin.flush();
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (true) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Object next = remaining > 0 ? lines.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (next == null) {
+                        close();
+                        throw new ExecuteException("Process timed out after " + timeout + "ms", -1);
+                    }
+                    if (next == EXITED) {
+                        throw new ExecuteException("GRASS session exited", -1);
+                    }
+                    String line = (String) next;
+                    int at = line.indexOf(marker);
+                    if (at != -1) {
+                        if (at > 0 && output != null) {
+                            output.write((line.substring(0, at) + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                        return Integer.parseInt(line.substring(at + marker.length()).trim());
+                    }
+                    if (output != null) {
+                        output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("Interrupted waiting for GRASS session");
+            }
+        }
+
+        void close() {
+            try {
+                stdin.close();
+            } catch (IOException ignore) {
+                LOGGER.log(Level.FINEST, "GRASS session closed", ignore);
+            }
+            // including a module still running
+            GrassJob.kill(process);
+        }
+    }
+}
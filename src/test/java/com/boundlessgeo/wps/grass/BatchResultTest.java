@@ -0,0 +1,54 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BatchResultTest {
+
+	@Test
+	public void testCumulative() throws Exception {
+		BatchResult result = new BatchResult(2, 2, 2, false);
+		result.add(0, new float[] { 90, Float.NaN, 100, Float.NaN });
+
+		BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster tile = image.getRaster();
+		tile.setSamples(0, 0, 2, 2, 0, new int[] { 1, 0, 1, 1 });
+		result.add(1, image, 0);
+
+		Raster raster = result.raster();
+		assertEquals(DataBuffer.TYPE_INT, raster.getDataBuffer().getDataType());
+		assertEquals(1, raster.getNumBands());
+		assertArrayEquals(new int[] { 2, 0, 2, 1 }, raster.getSamples(0, 0, 2, 2, 0, (int[]) null));
+	}
+
+	@Test
+	public void testBands() throws Exception {
+		BatchResult result = new BatchResult(2, 1, 3, true);
+		result.add(1, new float[] { 90, Float.NaN });
+
+		BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_BYTE_GRAY);
+		image.getRaster().setSamples(0, 0, 2, 1, 0, new int[] { 0, 7 });
+		result.add(0, image, 0);
+
+		Raster raster = result.raster();
+		assertEquals(3, raster.getNumBands());
+		assertEquals("[NaN, 7.0]", Arrays.toString(raster.getSamples(0, 0, 2, 1, 0, (float[]) null)));
+		assertEquals("[90.0, NaN]", Arrays.toString(raster.getSamples(0, 0, 2, 1, 1, (float[]) null)));
+		assertEquals("[NaN, NaN]", Arrays.toString(raster.getSamples(0, 0, 2, 1, 2, (float[]) null)));
+	}
+
+	@Test
+	public void testBytes() {
+		assertEquals(4L * 100 * 50, BatchResult.bytes(100, 50, 10, false));
+		assertEquals(4L * 100 * 50 * 10, BatchResult.bytes(100, 50, 10, true));
+		// beyond int range
+		assertEquals(4L * 20000 * 20000 * 100, BatchResult.bytes(20000, 20000, 100, true));
+	}
+}
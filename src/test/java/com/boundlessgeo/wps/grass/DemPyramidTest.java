@@ -0,0 +1,80 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.Raster;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.crs.DefaultEngineeringCRS;
+import org.junit.Test;
+
+public class DemPyramidTest {
+
+	/** DEM of cols by rows cells of 10 map units, elevation column + row */
+	private static GridCoverage2D dem(int cols, int rows) {
+		float[][] z = new float[rows][cols];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				z[r][c] = c + r;
+			}
+		}
+		return new GridCoverageFactory().create("dem", z,
+				new Envelope2D(DefaultEngineeringCRS.GENERIC_2D, 0, 0, 10 * cols, 10 * rows));
+	}
+
+	@Test
+	public void testFactor() {
+		GridCoverage2D dem = dem(64, 32);
+		assertEquals(1, DemPyramid.factor(dem, 5));
+		assertEquals(1, DemPyramid.factor(dem, 19));
+		assertEquals(2, DemPyramid.factor(dem, 20));
+		assertEquals(4, DemPyramid.factor(dem, 50));
+		// at least one cell
+		assertEquals(64, DemPyramid.factor(dem, 100000));
+	}
+
+	@Test
+	public void testBuild() throws Exception {
+		GridCoverage2D dem = dem(5, 4);
+		GridCoverage2D level = DemPyramid.build(dem, 2);
+		Raster data = level.getRenderedImage().getData();
+		assertEquals(3, data.getWidth());
+		assertEquals(2, data.getHeight());
+		// average of cells covered
+		assertEquals(1, data.getSampleFloat(data.getMinX(), data.getMinY(), 0), 1e-6);
+		assertEquals(3, data.getSampleFloat(data.getMinX() + 1, data.getMinY(), 0), 1e-6);
+		// partial block at the edge
+		assertEquals(4.5, data.getSampleFloat(data.getMinX() + 2, data.getMinY(), 0), 1e-6);
+		assertEquals(60, level.getEnvelope2D().getWidth(), 1e-6);
+		assertEquals(40, level.getEnvelope2D().getHeight(), 1e-6);
+	}
+
+	@Test
+	public void testLevels() throws Exception {
+		GridCoverage2D dem = dem(64, 64);
+		// levels of 32x32 (4096 bytes), 16x16 (1024 bytes) and 8x8 (256 bytes)
+		DemPyramid pyramid = new DemPyramid(5200);
+		assertSame(dem, pyramid.level(dem, null));
+		assertSame(dem, pyramid.level(dem, 5.0));
+
+		GridCoverage2D level = pyramid.level(dem, 20.0);
+		assertSame(level, pyramid.level(dem, 30.0));
+		assertEquals(1, pyramid.count());
+		assertEquals(4096, pyramid.size());
+
+		pyramid.level(dem, 40.0);
+		assertEquals(2, pyramid.count());
+		assertEquals(5120, pyramid.size());
+
+		// least recently used level evicted
+		pyramid.level(dem, 80.0);
+		assertEquals(2, pyramid.count());
+		assertEquals(1280, pyramid.size());
+		assertNotSame(level, pyramid.level(dem, 20.0));
+
+		pyramid.clear();
+		assertEquals(0, pyramid.size());
+	}
+}
@@ -0,0 +1,95 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrassCatalogTest {
+
+	private File directory;
+
+	private File bin;
+
+	private GrassCatalog catalog;
+
+	@Before
+	public void before() throws IOException {
+		Assume.assumeTrue(new File("/bin/sh").exists());
+		directory = Files.createTempDirectory("grasscatalog").toFile();
+		bin = new File(directory, "bin");
+		bin.mkdirs();
+		script(new File(directory, "grass70"), "echo 'GRASS GIS 7.0.4'");
+		script(new File(bin, "r.viewshed"), "exit 0");
+		new File(bin, "README").createNewFile();
+		catalog = new GrassCatalog(new File(directory, "grass70").getPath(), bin.getPath(), directory);
+	}
+
+	@After
+	public void after() {
+		if (catalog != null) {
+			catalog.close();
+		}
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private static void script(File file, String command) throws IOException {
+		Files.write(file.toPath(), ("#!/bin/sh\n" + command + "\n").getBytes(StandardCharsets.UTF_8));
+		file.setExecutable(true);
+	}
+
+	@Test
+	public void testProbe() throws Exception {
+		assertNull(catalog.getVersion());
+		catalog.refresh();
+		GrassCatalog.Snapshot snapshot = catalog.await();
+		assertTrue(snapshot.version.contains("7.0.4"));
+		assertArrayEquals(new String[] { "r.viewshed" }, catalog.getModules());
+		assertEquals(new File(bin, "r.viewshed"), catalog.module("r.viewshed"));
+		try {
+			catalog.module("r.missing");
+			fail("not installed");
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals("7.0.4", catalog.environment().get("GRASS_VERSION"));
+		assertEquals(directory.getPath(), catalog.environment().get("GISBASE"));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		// first request waits for the probe
+		assertNotNull(catalog.snapshot());
+		script(new File(bin, "r.slope.aspect"), "exit 0");
+		try {
+			catalog.module("r.slope.aspect");
+			fail("not probed");
+		} catch (IllegalStateException expected) {
+		}
+		catalog.refresh();
+		catalog.await();
+		assertEquals(new File(bin, "r.slope.aspect"), catalog.module("r.slope.aspect"));
+	}
+
+	@Test
+	public void testEnvironment() throws Exception {
+		// environment requested before the probe completes uses the probed version
+		assertEquals("7.0.4", catalog.environment().get("GRASS_VERSION"));
+		catalog.refresh();
+		assertEquals("7.0.4", catalog.environment().get("GRASS_VERSION"));
+	}
+
+	@Test
+	public void testGrassVersion() {
+		assertEquals(GrassCatalog.DEFAULT_VERSION, GrassCatalog.grassVersion(null));
+		assertEquals(GrassCatalog.DEFAULT_VERSION, GrassCatalog.grassVersion("exit code: 1"));
+		assertEquals("7.2.1", GrassCatalog.grassVersion("GRASS GIS 7.2.1\n"));
+	}
+}
@@ -0,0 +1,114 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.NullProgressListener;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrassJobTest {
+
+	private File scratch;
+
+	private Listener listener;
+
+	@Before
+	public void before() throws IOException {
+		scratch = Files.createTempDirectory("grassjob").toFile();
+		listener = new Listener();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(scratch);
+	}
+
+	@Test
+	public void testMessages() throws Exception {
+		JobOutput output = new JobOutput(1024);
+		GrassJob.Task task = GrassJob.task(null, "r.test", output);
+		task.write(("GRASS_INFO_PERCENT: 50\nGRASS_INFO_MESSAGE(1,2): hello\nGRASS_INFO_END(1,2)\n"
+				+ "GRASS_INFO_WARNING(1,3): careful\nplain").getBytes(StandardCharsets.UTF_8));
+		assertEquals(50, task.percent);
+		task.close();
+		assertEquals("hello\nWARNING: careful\nplain\n", output.toString());
+	}
+
+	@Test
+	public void testProgress() throws Exception {
+		GrassJob job = GrassJob.start(scratch, listener, 60000, 2);
+		Map<String, String> env = Collections.singletonMap("GISRC", new File(scratch, ".grassrc").getPath());
+		assertSame(job, GrassJob.of(env));
+
+		GrassJob.Task task = GrassJob.task(job, "r.test", new JobOutput(1024));
+		task.write("GRASS_INFO_PERCENT: 50\n".getBytes(StandardCharsets.UTF_8));
+		GrassJob.check(System.currentTimeMillis());
+		assertEquals(25, listener.progress, 0.01);
+		task.close();
+		GrassJob.check(System.currentTimeMillis());
+		assertEquals(50, listener.progress, 0.01);
+
+		job.finish();
+		assertNull(GrassJob.of(env));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		Assume.assumeTrue(new File("/bin/sh").exists());
+		GrassJob job = GrassJob.start(scratch, listener, 60000, 1);
+		GrassJob.Task task = GrassJob.task(job, "r.test", new JobOutput(1024));
+		Process process = new ProcessBuilder("/bin/sh", "-c", "sleep 60 & wait").start();
+		try {
+			task.started(process);
+			GrassJob.check(System.currentTimeMillis());
+			assertNull(task.killed());
+
+			listener.setCanceled(true);
+			GrassJob.check(System.currentTimeMillis());
+			assertEquals("cancelled", task.killed());
+			process.waitFor();
+			try {
+				job.check("r.test");
+				fail("cancelled");
+			} catch (InterruptedIOException expected) {
+			}
+		} finally {
+			process.destroy();
+			task.close();
+			job.finish();
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		GrassJob.Task task = GrassJob.task(null, "r.test", new JobOutput(1024));
+		try {
+			GrassJob.check(System.currentTimeMillis());
+			assertNull(task.killed());
+			GrassJob.check(System.currentTimeMillis() + task.timeout + 1000);
+			assertTrue(task.killed().startsWith("timed out"));
+		} finally {
+			task.close();
+		}
+	}
+
+	static class Listener extends NullProgressListener {
+		volatile float progress;
+
+		@Override
+		public void progress(float percent) {
+			progress = percent;
+		}
+	}
+}
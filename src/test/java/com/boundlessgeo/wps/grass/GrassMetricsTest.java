@@ -0,0 +1,67 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class GrassMetricsTest {
+
+	@Test
+	public void testLatency() {
+		GrassMetrics metrics = new GrassMetrics();
+		metrics.record("staging", 3000000L);
+		metrics.record("staging", 200000000L);
+		try (GrassMetrics.Timer timer = metrics.time("read")) {
+			// nothing to read
+		}
+		GrassMetrics.Latency staging = metrics.getStages().get("staging");
+		assertEquals(2, staging.getCount());
+		assertEquals(203, staging.getTotal());
+		assertEquals(200, staging.getMax());
+		long[] histogram = staging.getHistogram();
+		assertEquals(1, histogram[1]); // <= 5ms
+		assertEquals(1, histogram[5]); // <= 500ms
+		assertEquals(1, metrics.getStages().get("read").getCount());
+
+		metrics.exit("r.viewshed", 0);
+		metrics.exit("r.viewshed", 0);
+		metrics.exit("r.viewshed", 1);
+		assertEquals(Long.valueOf(2), metrics.getExitCodes().get("r.viewshed:0"));
+		assertEquals(Long.valueOf(1), metrics.getExitCodes().get("r.viewshed:1"));
+
+		metrics.reset();
+		assertTrue(metrics.getStages().isEmpty());
+	}
+
+	@Test
+	public void testSample() throws Exception {
+		Assume.assumeTrue(new File("/proc/self/status").exists());
+		GrassMetrics metrics = new GrassMetrics();
+		Process process = new ProcessBuilder("sleep", "0.3").start();
+		GrassMetrics.Sample sample = metrics.sample("sleep", process);
+		process.waitFor();
+		sample.close();
+
+		GrassMetrics.Usage usage = metrics.getProcesses().get("sleep");
+		assertEquals(1, usage.getCount());
+		assertTrue(usage.getPeakMemory() > 0);
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		GrassMetrics metrics = new GrassMetrics();
+		metrics.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(GrassMetrics.NAME);
+		assertTrue(server.isRegistered(name));
+		assertNotNull(server.getAttribute(name, "Stages"));
+		server.unregisterMBean(name);
+	}
+}
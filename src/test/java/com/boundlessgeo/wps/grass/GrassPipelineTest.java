@@ -0,0 +1,72 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.junit.Test;
+
+public class GrassPipelineTest {
+
+	static List<GrassPipeline> parse(String xml) throws IOException {
+		return GrassPipeline.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testTerrain() throws Exception {
+		List<GrassPipeline> pipelines;
+		try (InputStream xml = GrassPipeline.class.getClassLoader().getResourceAsStream(GrassPipelineFactory.RESOURCE)) {
+			pipelines = GrassPipeline.parse(xml);
+		}
+		assertEquals(1, pipelines.size());
+		GrassPipeline terrain = pipelines.get(0);
+		assertEquals("terrain", terrain.name);
+		assertEquals(GridCoverage2D.class, terrain.input("dem").type);
+		assertTrue(terrain.input("dem").required);
+		assertEquals(30.0, terrain.input("altitude").defaultValue);
+		assertEquals(2, terrain.steps.size());
+		assertEquals("r.relief", terrain.steps.get(1).module);
+		assertEquals(3, terrain.outputs.size());
+	}
+
+	@Test
+	public void testOptionalArguments() throws Exception {
+		GrassPipeline pipeline = parse("<pipelines><pipeline name='smooth'>"
+				+ "<input name='raster'/><input name='size' type='integer' required='false'/>"
+				+ "<step module='r.neighbors'><arg>input=${raster}</arg><arg>output=smooth</arg><arg>size=${size}</arg></step>"
+				+ "<output name='result' raster='smooth'/></pipeline></pipelines>").get(0);
+		GrassPipeline.Step step = pipeline.steps.get(0);
+		assertFalse(pipeline.input("size").required);
+		assertEquals(Arrays.asList("input=${raster}", "output=smooth"),
+				pipeline.arguments(step, Collections.singleton("raster")));
+		assertEquals(3, pipeline.arguments(step, new HashSet<String>(Arrays.asList("raster", "size"))).size());
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		String[] invalid = {
+				// module outside of GRASS modules directory
+				"<pipelines><pipeline name='p'><input name='dem'/><step module='../../bin/sh'/><output name='o'/></pipeline></pipelines>",
+				// undefined input
+				"<pipelines><pipeline name='p'><input name='dem'/><step module='r.info'><arg>map=${map}</arg></step><output name='o'/></pipeline></pipelines>",
+				// no raster input
+				"<pipelines><pipeline name='p'><input name='n' type='double'/><step module='r.info'/><output name='o'/></pipeline></pipelines>",
+				// invalid name
+				"<pipelines><pipeline name='p q'><input name='dem'/><step module='r.info'/><output name='o'/></pipeline></pipelines>" };
+		for (String xml : invalid) {
+			try {
+				parse(xml);
+				fail("expected invalid: " + xml);
+			} catch (IOException expected) {
+			}
+		}
+	}
+}
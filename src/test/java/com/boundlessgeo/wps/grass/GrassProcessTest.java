@@ -2,16 +2,22 @@ package com.boundlessgeo.wps.grass;
 
 import static org.junit.Assert.*;
 
+import java.awt.Rectangle;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.List;
 
 import org.geoserver.data.util.IOUtils;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffReader;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -25,6 +31,8 @@ public class GrassProcessTest {
 	@BeforeClass
 	public static void init() {
 		grass = new GrassProcesses();
+		// exercise r.viewshed rather than the in-process engine
+		GrassProcesses.ENGINE = GrassProcesses.Engine.GRASS;
 	}
 
 	@AfterClass
@@ -61,9 +69,141 @@ public class GrassProcessTest {
 		
 		GridCoverage2D dem = sfdem.read(null);
 		try {
-			GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604);
+			GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604, null, null, null, null, null, null);
 		} finally {
 			dem.dispose(false);
 		}
 	}
+
+	@Test
+	public void testMaxDistance() throws Exception {
+		GridCoverage2D dem = sfdem.read(null);
+		try {
+			GridCoverage2D viewshed = GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604, 10.0, null, 1000.0, null, null, null);
+			assertTrue(viewshed.getEnvelope2D().getWidth() <= 2000 + 30);
+			assertTrue(viewshed.getEnvelope2D().getHeight() <= 2000 + 30);
+		} finally {
+			dem.dispose(false);
+		}
+	}
+
+	@Test
+	public void testJavaEngine() throws Exception {
+		Assume.assumeNotNull(GrassProcesses.EXEC);
+		GridCoverage2D dem = sfdem.read(null);
+		try {
+			GridCoverage2D expected = GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604, null, null, null, null, null, null);
+			GridCoverage2D actual = JavaViewshed.viewshed(dem, 599909.340659, 4923108.95604, 1.75, 0, 0);
+			Raster a = expected.getRenderedImage().getData();
+			Raster b = actual.getRenderedImage().getData();
+			assertEquals(a.getWidth(), b.getWidth());
+			assertEquals(a.getHeight(), b.getHeight());
+
+			int agree = 0;
+			for (int y = 0; y < a.getHeight(); y++) {
+				for (int x = 0; x < a.getWidth(); x++) {
+					boolean visible = !Float.isNaN(a.getSampleFloat(a.getMinX() + x, a.getMinY() + y, 0));
+					if (visible == !Float.isNaN(b.getSampleFloat(b.getMinX() + x, b.getMinY() + y, 0))) {
+						agree++;
+					}
+				}
+			}
+			assertTrue("agreement " + agree, agree > 0.95 * a.getWidth() * a.getHeight());
+		} finally {
+			dem.dispose(false);
+		}
+	}
+
+	@Test
+	public void testTiles() throws Exception {
+		List<Rectangle> tiles = GrassProcesses.tiles(new GridEnvelope2D(0, 0, 5, 3), 2);
+		assertEquals(6, tiles.size());
+		assertEquals(new Rectangle(0, 0, 2, 2), tiles.get(0));
+		assertEquals(new Rectangle(4, 0, 1, 2), tiles.get(2));
+		assertEquals(new Rectangle(4, 2, 1, 1), tiles.get(5));
+	}
+
+	@Test
+	public void testSlopeTiled() throws Exception {
+		Assume.assumeNotNull(GrassProcesses.EXEC);
+		GridCoverage2D dem = sfdem.read(null);
+		int size = GrassProcesses.TILE_SIZE;
+		try {
+			GridCoverage2D expected = GrassProcesses.slope(dem, null, null, null);
+			GrassProcesses.TILE_SIZE = 64;
+			GridCoverage2D actual = GrassProcesses.slope(dem, null, null, null);
+			Raster a = expected.getRenderedImage().getData();
+			Raster b = actual.getRenderedImage().getData();
+			assertEquals(a.getWidth(), b.getWidth());
+			assertEquals(a.getHeight(), b.getHeight());
+			for (int y = 0; y < a.getHeight(); y++) {
+				for (int x = 0; x < a.getWidth(); x++) {
+					assertEquals(a.getSampleFloat(a.getMinX() + x, a.getMinY() + y, 0),
+							b.getSampleFloat(b.getMinX() + x, b.getMinY() + y, 0), 1e-6);
+				}
+			}
+		} finally {
+			GrassProcesses.TILE_SIZE = size;
+			dem.dispose(false);
+		}
+	}
+
+	/** Copy of sfdem.tiff with the provided suffix, read as a coverage */
+	private static GridCoverage2D copy(String suffix) throws IOException {
+		File file = Files.createTempFile("sfdem", suffix).toFile();
+		file.deleteOnExit();
+		try (InputStream resource = GrassProcessTest.class.getResourceAsStream("sfdem.tiff")) {
+			IOUtils.copy(resource, file);
+		}
+		return new GeoTiffFormat().getReader(file).read(null);
+	}
+
+	@Test
+	public void testGeoTiffSource() throws Exception {
+		GridCoverage2D tif = copy(".tif");
+		GridCoverage2D other = copy(".dem");
+		try {
+			File source = GrassProcesses.geotiff(tif);
+			assertNotNull(source);
+			assertTrue(source.getName().endsWith(".tif"));
+			// not a GeoTIFF by name
+			assertNull(GrassProcesses.geotiff(other));
+			// not read from a file
+			GridCoverage2D memory = new GridCoverageFactory().create("memory",
+					tif.getRenderedImage().getData().createCompatibleWritableRaster(), tif.getEnvelope2D());
+			assertNull(GrassProcesses.geotiff(memory));
+		} finally {
+			tif.dispose(true);
+			other.dispose(true);
+		}
+	}
+
+	@Test
+	public void testExternalExchange() throws Exception {
+		Assume.assumeNotNull(GrassProcesses.EXEC);
+		GridCoverage2D dem = copy(".tif");
+		GrassProcesses.Exchange exchange = GrassProcesses.EXCHANGE;
+		try {
+			assertNotNull(GrassProcesses.geotiff(dem));
+			GridCoverage2D expected = GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604, null, null, 1000.0, null, null, null);
+			// linked with r.external rather than imported
+			GrassProcesses.EXCHANGE = GrassProcesses.Exchange.EXTERNAL;
+			GridCoverage2D actual = GrassProcesses.viewshed(dem, 599909.340659, 4923108.95604, null, null, 1000.0, null, null, null);
+			Raster a = expected.getRenderedImage().getData();
+			Raster b = actual.getRenderedImage().getData();
+			assertEquals(a.getWidth(), b.getWidth());
+			assertEquals(a.getHeight(), b.getHeight());
+			for (int y = 0; y < a.getHeight(); y++) {
+				for (int x = 0; x < a.getWidth(); x++) {
+					assertEquals(a.getSampleFloat(a.getMinX() + x, a.getMinY() + y, 0),
+							b.getSampleFloat(b.getMinX() + x, b.getMinY() + y, 0), 1e-6);
+				}
+			}
+			expected.dispose(true);
+			actual.dispose(true);
+		} finally {
+			GrassProcesses.EXCHANGE = exchange;
+			dem.dispose(true);
+		}
+	}
 }
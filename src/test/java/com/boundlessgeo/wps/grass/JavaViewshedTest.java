@@ -0,0 +1,164 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JavaViewshedTest {
+
+	private static float[] flat(int cols, int rows, float elevation) {
+		float[] z = new float[cols * rows];
+		Arrays.fill(z, elevation);
+		return z;
+	}
+
+	@Test
+	public void testFlat() {
+		JavaViewshed viewshed = new JavaViewshed(flat(50, 40, 100), 50, 40, 10, 10, -9999);
+		float[] angles = viewshed.compute(10, 20, 1.75, 0, 0);
+		assertEquals(180, angles[20 * 50 + 10], 0);
+		for (int i = 0; i < angles.length; i++) {
+			assertFalse("cell " + i + " visible", Float.isNaN(angles[i]));
+			assertTrue(angles[i] <= 180);
+		}
+		// looking down at the ground nearby, close to horizontal far away
+		assertTrue(angles[20 * 50 + 11] < angles[20 * 50 + 49]);
+		assertTrue(angles[20 * 50 + 49] < 90);
+	}
+
+	@Test
+	public void testWall() {
+		int cols = 60;
+		int rows = 30;
+		float[] z = flat(cols, rows, 0);
+		for (int r = 0; r < rows; r++) {
+			z[r * cols + 30] = 50;
+		}
+		JavaViewshed viewshed = new JavaViewshed(z, cols, rows, 1, 1, -9999);
+		float[] angles = viewshed.compute(10, 15, 1.75, 0, 0);
+		assertFalse(Float.isNaN(angles[15 * cols + 20]));
+		assertFalse("wall visible", Float.isNaN(angles[15 * cols + 30]));
+		for (int c = 31; c < cols; c++) {
+			assertTrue("behind wall " + c, Float.isNaN(angles[15 * cols + c]));
+		}
+
+		// a tall target can be seen over the wall, far enough behind it
+		angles = viewshed.compute(10, 15, 1.75, 200, 0);
+		assertFalse(Float.isNaN(angles[15 * cols + 59]));
+	}
+
+	@Test
+	public void testMaxDistance() {
+		JavaViewshed viewshed = new JavaViewshed(flat(41, 41, 0), 41, 41, 1, 1, -9999);
+		float[] angles = viewshed.compute(20, 20, 1.75, 0, 10);
+		assertFalse(Float.isNaN(angles[20 * 41 + 30]));
+		assertTrue(Float.isNaN(angles[20 * 41 + 31]));
+		assertTrue(Float.isNaN(angles[0]));
+	}
+
+	@Test
+	public void testNoData() {
+		float[] z = flat(20, 20, 10);
+		z[5 * 20 + 15] = -9999;
+		z[6 * 20 + 15] = Float.NaN;
+		JavaViewshed viewshed = new JavaViewshed(z, 20, 20, 1, 1, -9999);
+		float[] angles = viewshed.compute(5, 5, 1.75, 0, 0);
+		assertTrue(Float.isNaN(angles[5 * 20 + 15]));
+		assertTrue(Float.isNaN(angles[6 * 20 + 15]));
+		assertFalse(Float.isNaN(angles[5 * 20 + 16]));
+
+		// viewpoint without data
+		angles = viewshed.compute(15, 5, 1.75, 0, 0);
+		for (float angle : angles) {
+			assertTrue(Float.isNaN(angle));
+		}
+	}
+
+	/**
+	 * Compare with line of sight to each cell, sampling bilinear interpolated terrain at fine intervals.
+	 */
+	@Test
+	public void testLineOfSight() {
+		int cols = 80;
+		int rows = 70;
+		float[] z = new float[cols * rows];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				z[r * cols + c] = (float) (20 * Math.sin(c / 7.0) + 15 * Math.cos(r / 5.0) + c * 0.3);
+			}
+		}
+		JavaViewshed viewshed = new JavaViewshed(z, cols, rows, 10, 10, -9999);
+		float[] angles = viewshed.compute(30, 35, 5, 0, 0);
+		double height = z[35 * cols + 30] + 5;
+
+		int agree = 0;
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				double distance = Math.hypot(c - 30, r - 35);
+				boolean visible = true;
+				double slope = (z[r * cols + c] - height) / distance;
+				for (double t = 0.5 / distance; t < 1 - 0.5 / distance; t += 0.1 / distance) {
+					double terrain = bilinear(z, cols, rows, 30 + (c - 30) * t, 35 + (r - 35) * t);
+					if ((terrain - height) / (distance * t) > slope) {
+						visible = false;
+						break;
+					}
+				}
+				if (visible != Float.isNaN(angles[r * cols + c])) {
+					agree++;
+				}
+			}
+		}
+		assertTrue("agreement " + agree, agree > 0.95 * cols * rows);
+	}
+
+	@Test
+	public void testEncode() {
+		float[] angles = { Float.NaN, 90.4f, 179.6f, Float.NaN, 0, 45.5f };
+		Raster raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 3, 2, 1),
+				new DataBufferFloat(angles, angles.length), null);
+
+		BufferedImage mask = JavaViewshed.encode(raster, GrassProcesses.Encoding.MASK);
+		assertEquals(1, mask.getSampleModel().getSampleSize(0));
+		assertEquals(0, mask.getRaster().getSample(0, 0, 0));
+		assertEquals(1, mask.getRaster().getSample(1, 0, 0));
+		assertEquals(1, mask.getRaster().getSample(1, 1, 0));
+
+		BufferedImage degrees = JavaViewshed.encode(raster, GrassProcesses.Encoding.COMPRESSED);
+		assertEquals(DataBuffer.TYPE_BYTE, degrees.getSampleModel().getDataType());
+		assertEquals(255, degrees.getRaster().getSample(0, 0, 0));
+		assertEquals(90, degrees.getRaster().getSample(1, 0, 0));
+		assertEquals(180, degrees.getRaster().getSample(2, 0, 0));
+		assertEquals(0, degrees.getRaster().getSample(1, 1, 0));
+		assertEquals(46, degrees.getRaster().getSample(2, 1, 0));
+	}
+
+	@Test
+	public void testEncoding() {
+		assertEquals(GrassProcesses.Encoding.ANGLES, GrassProcesses.encoding(null));
+		assertEquals(GrassProcesses.Encoding.MASK, GrassProcesses.encoding(" Mask"));
+		try {
+			GrassProcesses.encoding("polygons");
+			fail("polygons available from viewshedArea");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static double bilinear(float[] z, int cols, int rows, double x, double y) {
+		int x0 = (int) Math.floor(x);
+		int y0 = (int) Math.floor(y);
+		int x1 = Math.min(x0 + 1, cols - 1);
+		int y1 = Math.min(y0 + 1, rows - 1);
+		double tx = x - x0;
+		double ty = y - y0;
+		return (z[y0 * cols + x0] * (1 - tx) + z[y0 * cols + x1] * tx) * (1 - ty)
+				+ (z[y1 * cols + x0] * (1 - tx) + z[y1 * cols + x1] * tx) * ty;
+	}
+}
@@ -0,0 +1,25 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class JobOutputTest {
+
+	@Test
+	public void testBounded() throws Exception {
+		JobOutput output = new JobOutput(10);
+		output.write("hello ".getBytes(StandardCharsets.UTF_8));
+		assertEquals("hello ", output.toString());
+
+		output.write("world".getBytes(StandardCharsets.UTF_8));
+		output.write('!');
+		assertEquals("...llo world!", output.toString());
+		assertEquals(12, output.size());
+
+		output.write("0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+		assertEquals("...6789abcdef", output.toString());
+	}
+}
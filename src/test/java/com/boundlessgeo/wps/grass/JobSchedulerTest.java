@@ -0,0 +1,80 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class JobSchedulerTest {
+
+	@Test
+	public void testLimit() throws Exception {
+		final JobScheduler scheduler = new JobScheduler(2, 10, true, 500);
+		scheduler.limit("r.viewshed", 1);
+
+		JobScheduler.Slot slot = scheduler.acquire("r.viewshed");
+		// other modules are not affected
+		scheduler.acquire("r.in.gdal").close();
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiting = new Thread() {
+			public void run() {
+				try (JobScheduler.Slot next = scheduler.acquire("r.viewshed")) {
+					acquired.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		waiting.start();
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(1, scheduler.waiting());
+
+		slot.close();
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiting.join();
+		assertEquals(0, scheduler.waiting());
+	}
+
+	@Test
+	public void testChangeLimit() throws Exception {
+		final JobScheduler scheduler = new JobScheduler(2, 0, false, 500);
+		JobScheduler.Slot first = scheduler.acquire("r.viewshed");
+		JobScheduler.Slot second = scheduler.acquire("r.viewshed");
+
+		// lowered limit applies to the slots already in use
+		scheduler.limit("r.viewshed", 1);
+		first.close();
+		try {
+			scheduler.acquire("r.viewshed");
+			fail("limit exceeded");
+		} catch (RejectedExecutionException expected) {
+		}
+		second.close();
+		first = scheduler.acquire("r.viewshed");
+
+		scheduler.limit("r.viewshed", 2);
+		second = scheduler.acquire("r.viewshed");
+		first.close();
+		second.close();
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void testReject() throws Exception {
+		final JobScheduler scheduler = new JobScheduler(1, 0, false, 500);
+		try (JobScheduler.Slot slot = scheduler.acquire("r.viewshed")) {
+			scheduler.acquire("r.viewshed");
+		}
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void testNoQueue() throws Exception {
+		// no job may wait, even when waiting for space in the queue
+		final JobScheduler scheduler = new JobScheduler(1, 0, true, 500);
+		try (JobScheduler.Slot slot = scheduler.acquire("r.viewshed")) {
+			scheduler.acquire("r.viewshed");
+		}
+	}
+}
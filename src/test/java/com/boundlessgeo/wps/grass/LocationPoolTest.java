@@ -0,0 +1,68 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocationPoolTest {
+
+	private File geodb;
+
+	@Before
+	public void before() throws IOException {
+		geodb = Files.createTempDirectory("grasslocations").toFile();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(geodb);
+	}
+
+	/**
+	 * Create PERMANENT mapset in advance so the pool does not need GRASS to create the location.
+	 */
+	private void prepare(String key) throws IOException {
+		File permanent = new File(new File(geodb, "location" + LocationPool.digest(key)), "PERMANENT");
+		permanent.mkdirs();
+		FileUtils.writeStringToFile(new File(permanent, "DEFAULT_WIND"), "proj: 1\n");
+	}
+
+	@Test
+	public void testCheckout() throws Exception {
+		LocationPool pool = new LocationPool(geodb, 2, 60000);
+		prepare("a");
+
+		try (LocationPool.Mapset first = pool.checkout("a", null);
+				LocationPool.Mapset second = pool.checkout("a", null)) {
+			assertEquals(first.location(), second.location());
+			assertFalse(first.mapset().equals(second.mapset()));
+			assertTrue(new File(first.mapset(), "WIND").exists());
+			assertTrue(new File(second.mapset(), "WIND").exists());
+			assertEquals(1, pool.count());
+		}
+		File[] mapsets = new File(geodb, "location" + LocationPool.digest("a")).listFiles();
+		assertEquals("only PERMANENT remains", 1, mapsets.length);
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		LocationPool pool = new LocationPool(geodb, 2, 0);
+		prepare("a");
+		File location;
+		try (LocationPool.Mapset mapset = pool.checkout("a", null)) {
+			location = mapset.location();
+			pool.clear();
+			assertTrue("location in use is not evicted", location.exists());
+		}
+		pool.clear();
+		assertFalse(location.exists());
+		assertEquals(0, pool.count());
+	}
+}
@@ -0,0 +1,112 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RasterCacheTest {
+
+	private File location;
+
+	@Before
+	public void before() throws IOException {
+		location = Files.createTempDirectory("location").toFile();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(location);
+	}
+
+	/**
+	 * Simulate r.in.gdal import of a raster into PERMANENT.
+	 */
+	private void imported(String name, int bytes) throws IOException {
+		File permanent = new File(location, "PERMANENT");
+		FileUtils.writeStringToFile(new File(new File(permanent, "cellhd"), name), "rows: 1\n");
+		FileUtils.writeStringToFile(new File(new File(permanent, "fcell"), name), new String(new char[bytes]));
+	}
+
+	@Test
+	public void testCheckout() throws Exception {
+		RasterCache cache = new RasterCache(1024 * 1024);
+		assertNull(cache.checkout(location, "dem_a"));
+
+		imported("dem_a", 100);
+		RasterCache.Entry entry = cache.add(location, "dem_a");
+		assertEquals("dem_a@PERMANENT", entry.raster());
+		cache.release(entry);
+
+		entry = cache.checkout(location, "dem_a");
+		assertNotNull(entry);
+		cache.release(entry);
+		assertTrue(cache.size() > 100);
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		RasterCache cache = new RasterCache(2500);
+		imported("dem_a", 1000);
+		cache.release(cache.add(location, "dem_a"));
+		imported("dem_b", 1000);
+		RasterCache.Entry b = cache.add(location, "dem_b");
+
+		// dem_a least recently used and not in use
+		imported("dem_c", 1000);
+		cache.release(cache.add(location, "dem_c"));
+		assertNull(cache.checkout(location, "dem_a"));
+		assertFalse(new File(location, "PERMANENT/fcell/dem_a").exists());
+
+		// dem_b is in use and must not be removed
+		imported("dem_d", 1000);
+		cache.release(cache.add(location, "dem_d"));
+		assertTrue(new File(location, "PERMANENT/fcell/dem_b").exists());
+		cache.release(b);
+	}
+
+	@Test
+	public void testLocationsWithSameName() throws Exception {
+		// locations of the same name in different directories hold different rasters
+		File other = new File(Files.createTempDirectory("location").toFile(), location.getName());
+		try {
+			imported("dem_a", 1000);
+			RasterCache cache = new RasterCache(1024 * 1024);
+			cache.release(cache.add(location, "dem_a"));
+			FileUtils.copyDirectory(location, other);
+			cache.release(cache.add(other, "dem_a"));
+			assertTrue(cache.size() >= 2000);
+		} finally {
+			FileUtils.deleteQuietly(other.getParentFile());
+		}
+	}
+
+	@Test
+	public void testLocks() throws Exception {
+		RasterCache cache = new RasterCache(1500);
+		Object lock = cache.lock(location, "dem_a");
+		assertSame(lock, cache.lock(location, "dem_a"));
+
+		// import failed, lock dropped
+		cache.unlock(location, "dem_a", lock);
+		assertNotSame(lock, cache.lock(location, "dem_a"));
+
+		// cached raster keeps its lock until evicted
+		lock = cache.lock(location, "dem_a");
+		imported("dem_a", 1000);
+		cache.release(cache.add(location, "dem_a"));
+		cache.unlock(location, "dem_a", lock);
+		assertSame(lock, cache.lock(location, "dem_a"));
+
+		imported("dem_b", 1000);
+		cache.release(cache.add(location, "dem_b"));
+		assertNull(cache.checkout(location, "dem_a"));
+		assertNotSame(lock, cache.lock(location, "dem_a"));
+	}
+}
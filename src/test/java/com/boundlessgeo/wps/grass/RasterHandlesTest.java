@@ -0,0 +1,135 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RasterHandlesTest {
+
+	private File geodb;
+
+	private LocationPool pool;
+
+	@Before
+	public void before() throws IOException {
+		geodb = Files.createTempDirectory("grasslocations").toFile();
+		pool = new LocationPool(geodb, 2, 60000);
+		File permanent = new File(new File(geodb, "location" + LocationPool.digest("a")), "PERMANENT");
+		permanent.mkdirs();
+		FileUtils.writeStringToFile(new File(permanent, "DEFAULT_WIND"), "proj: 1\n");
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(geodb);
+	}
+
+	/** Mapset holding a raster of the given size */
+	private LocationPool.Mapset raster(int size) throws Exception {
+		LocationPool.Mapset mapset = pool.checkout("a", null);
+		File cell = new File(mapset.mapset(), "cell");
+		cell.mkdir();
+		Files.write(new File(cell, "raster").toPath(), new byte[size]);
+		return mapset;
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		RasterHandles handles = new RasterHandles(1000, 60000);
+		LocationPool.Mapset mapset = raster(100);
+		String first = handles.add(mapset, "raster");
+		String second = handles.add(mapset, "other");
+		assertTrue(first.startsWith(RasterHandles.PREFIX));
+		assertFalse(first.equals(second));
+
+		RasterHandles.Handle handle = handles.checkout(first);
+		assertEquals("raster@" + mapset.mapset().getName(), handle.qualified());
+
+		// pinned handle survives expiry, mapset kept while it has handles
+		handles.expire(Long.MAX_VALUE);
+		assertEquals(1, handles.count());
+		assertTrue(mapset.mapset().exists());
+
+		handles.release(handle);
+		handles.expire(Long.MAX_VALUE);
+		assertEquals(0, handles.count());
+		assertFalse(mapset.mapset().exists());
+		try {
+			handles.checkout(first);
+			fail("expired");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testReaper() throws Exception {
+		// expired without further requests
+		RasterHandles handles = new RasterHandles(1000, 50);
+		LocationPool.Mapset mapset = raster(100);
+		handles.add(mapset, "raster");
+		handles.start();
+		for (int i = 0; i < 100 && handles.count() > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, handles.count());
+		assertFalse(mapset.mapset().exists());
+	}
+
+	@Test
+	public void testQuota() throws Exception {
+		RasterHandles handles = new RasterHandles(250, 60000);
+		LocationPool.Mapset first = raster(100);
+		LocationPool.Mapset second = raster(100);
+		LocationPool.Mapset third = raster(100);
+		String a = handles.add(first, "raster");
+		handles.add(second, "raster");
+		handles.add(third, "raster");
+
+		// least recently used evicted
+		assertEquals(2, handles.count());
+		assertFalse(first.mapset().exists());
+		assertTrue(handles.size() <= 250);
+		try {
+			handles.checkout(a);
+			fail("evicted");
+		} catch (IllegalArgumentException expected) {
+		}
+
+		LocationPool.Mapset large = raster(500);
+		try {
+			handles.add(large, "raster");
+			fail("exceeds quota");
+		} catch (IOException expected) {
+		}
+		assertFalse(large.mapset().exists());
+		assertEquals(2, handles.count());
+	}
+
+	@Test
+	public void testAddAll() throws Exception {
+		RasterHandles handles = new RasterHandles(300, 60000);
+		LocationPool.Mapset mapset = raster(100);
+		List<String> ids = handles.add(mapset, Arrays.asList("raster", "other"));
+		assertEquals(2, ids.size());
+		assertEquals("other", handles.checkout(ids.get(1)).raster);
+
+		// no outputs kept when the mapset is too large
+		LocationPool.Mapset large = raster(500);
+		try {
+			handles.add(large, Arrays.asList("raster", "other"));
+			fail("exceeds quota");
+		} catch (IOException expected) {
+		}
+		assertFalse(large.mapset().exists());
+		assertEquals(2, handles.count());
+	}
+}
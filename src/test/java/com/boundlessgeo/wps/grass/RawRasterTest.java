@@ -0,0 +1,77 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RawRasterTest {
+
+	private File file;
+
+	@Before
+	public void before() throws IOException {
+		file = Files.createTempFile("dem", ".bin").toFile();
+	}
+
+	@After
+	public void after() {
+		file.delete();
+	}
+
+	@Test
+	public void testFloat() throws IOException {
+		WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 3, 2, 1), null);
+		for (int y = 0; y < 2; y++) {
+			for (int x = 0; x < 3; x++) {
+				raster.setSample(x, y, 0, y * 10 + x + 0.5f);
+			}
+		}
+		RawRaster raw = RawRaster.write(new BufferedImage(new FloatColorModel(), raster, false, null), file);
+		assertTrue(raw.floating);
+		assertEquals(4, raw.bytes);
+		assertEquals(3, raw.cols);
+		assertEquals(2, raw.rows);
+
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(raw.order);
+		assertEquals(24, data.capacity());
+		assertEquals(0.5f, data.getFloat(0), 0.0);
+		assertEquals(2.5f, data.getFloat(8), 0.0);
+		assertEquals(10.5f, data.getFloat(12), 0.0);
+		assertEquals(12.5f, data.getFloat(20), 0.0);
+	}
+
+	@Test
+	public void testShort() throws IOException {
+		BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_USHORT_GRAY);
+		image.getRaster().setSample(1, 1, 0, 65535);
+		RawRaster raw = RawRaster.write(image, file);
+		assertFalse(raw.floating);
+		assertFalse(raw.signed);
+		assertEquals(2, raw.bytes);
+
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(raw.order);
+		assertEquals(8, data.capacity());
+		assertEquals(0, data.getShort(0));
+		assertEquals(65535, data.getShort(6) & 0xFFFF);
+	}
+
+	/** Minimal color model allowing a float raster to be wrapped as an image */
+	static class FloatColorModel extends java.awt.image.ComponentColorModel {
+		FloatColorModel() {
+			super(java.awt.color.ColorSpace.getInstance(java.awt.color.ColorSpace.CS_GRAY), false, false,
+					java.awt.Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.ExecuteException;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteExecutorTest {
+
+	private static final String SECRET = "secret";
+
+	private GrassWorker first;
+
+	private GrassWorker second;
+
+	private ExecutorService threads;
+
+	@Before
+	public void before() throws IOException {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		first = worker();
+		second = worker();
+		threads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void after() throws IOException {
+		if (threads != null) {
+			threads.shutdownNow();
+			first.close();
+			second.close();
+		}
+	}
+
+	private static GrassWorker worker() throws IOException {
+		// shell standing in for the GRASS executable, allowed to run /bin commands
+		return new GrassWorker(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET, "/bin/sh",
+				"/bin", 2).start();
+	}
+
+	private static InetSocketAddress address(GrassWorker worker) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), worker.port());
+	}
+
+	private static CommandLine shell(String script) {
+		CommandLine cmd = new CommandLine("/bin/sh");
+		cmd.addArgument("-c");
+		cmd.addArgument(script, false);
+		return cmd;
+	}
+
+	private static void await(GrassWorker worker, int active) throws InterruptedException {
+		for (int i = 0; i < 100 && worker.active() != active; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(active, worker.active());
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first)), SECRET);
+		Map<String, String> env = new HashMap<String, String>(System.getenv());
+		env.put("GRASS_GREETING", "hello");
+		env.put("GREETING", "not sent");
+		JobOutput output = new JobOutput(1024);
+		GrassJob.Task task = GrassJob.task(null, "sh", output);
+		try {
+			int exitValue = executor.execute(
+					shell("echo \"GRASS_INFO_MESSAGE(1,1): $GRASS_GREETING$GREETING\"; echo 'GRASS_INFO_PERCENT: 50'; pwd"), env,
+					new File("/"), task);
+			assertEquals(0, exitValue);
+			assertEquals(50, task.percent);
+		} finally {
+			task.close();
+		}
+		assertEquals("hello\n/\n", output.toString());
+
+		task = GrassJob.task(null, "sh", new JobOutput(1024));
+		try {
+			executor.execute(shell("exit 3"), null, null, task);
+			fail("expected failure");
+		} catch (ExecuteException expected) {
+			assertEquals(3, expected.getExitValue());
+		} finally {
+			task.close();
+		}
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		InetSocketAddress unreachable = new InetSocketAddress(InetAddress.getLoopbackAddress(), closed.getLocalPort());
+		closed.close();
+
+		RemoteExecutor executor = new RemoteExecutor(Arrays.asList(unreachable, address(first)), SECRET);
+		GrassJob.Task task = GrassJob.task(null, "true", new JobOutput(1024));
+		try {
+			assertEquals(0, executor.execute(shell("true"), null, null, task));
+		} finally {
+			task.close();
+		}
+		assertEquals(1, first.handled());
+		assertTrue(executor.workers.get(0).unreachable > 0);
+	}
+
+	@Test
+	public void testLeastLoaded() throws Exception {
+		final RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first), address(second)), SECRET);
+		final GrassJob.Task slow = GrassJob.task(null, "sleep", new JobOutput(1024));
+		Future<Integer> running = threads.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return executor.execute(shell("sleep 1"), null, null, slow);
+			}
+		});
+		await(first, 1);
+
+		GrassJob.Task task = GrassJob.task(null, "true", new JobOutput(1024));
+		try {
+			executor.execute(shell("true"), null, null, task);
+		} finally {
+			task.close();
+		}
+		assertEquals(1, second.handled());
+		assertEquals(0, running.get().intValue());
+		slow.close();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first)), SECRET);
+		final GrassJob.Task task = GrassJob.task(null, "sleep", new JobOutput(1024));
+		Future<Integer> running = threads.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return executor.execute(shell("sleep 60 & wait"), null, null, task);
+			}
+		});
+		await(first, 1);
+		task.kill("cancelled");
+		try {
+			running.get();
+			fail("killed");
+		} catch (ExecutionException expected) {
+			assertTrue(expected.getCause() instanceof ExecuteException);
+		} finally {
+			task.close();
+		}
+		await(first, 0);
+	}
+
+	@Test
+	public void testWaitFor() throws Exception {
+		RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first)), SECRET);
+		final AtomicReference<Process> started = new AtomicReference<Process>();
+		GrassJob.Task task = new GrassJob.Task(null, "sh", new JobOutput(1024), 60000) {
+			@Override
+			synchronized void started(Process process) {
+				super.started(process);
+				try {
+					process.exitValue();
+					fail("running");
+				} catch (IllegalThreadStateException expected) {
+				}
+				started.set(process);
+			}
+		};
+		try {
+			executor.execute(shell("true"), null, null, task);
+		} finally {
+			task.close();
+		}
+		assertEquals(0, started.get().waitFor());
+		assertEquals(0, started.get().exitValue());
+	}
+
+	@Test
+	public void testRefused() throws Exception {
+		RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first)), "wrong");
+		GrassJob.Task task = GrassJob.task(null, "true", new JobOutput(1024));
+		try {
+			executor.execute(shell("true"), null, null, task);
+			fail("unauthorized");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains("Unauthorized"));
+		} finally {
+			task.close();
+		}
+
+		executor = new RemoteExecutor(Arrays.asList(address(first)), SECRET);
+		task = GrassJob.task(null, "java", new JobOutput(1024));
+		try {
+			executor.execute(new CommandLine(new File(System.getProperty("java.home"), "bin/java")), null, null, task);
+			fail("not a GRASS module");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains("refused"));
+		} finally {
+			task.close();
+		}
+		assertEquals(0, first.handled());
+	}
+
+	@Test
+	public void testSilentClients() throws Exception {
+		// silent clients hold connections only until the request timeout
+		first.timeout = 200;
+		Socket a = new Socket(InetAddress.getLoopbackAddress(), first.port());
+		Socket b = new Socket(InetAddress.getLoopbackAddress(), first.port());
+		try {
+			// beyond the connection limit
+			Socket c = new Socket(InetAddress.getLoopbackAddress(), first.port());
+			c.setSoTimeout(5000);
+			try {
+				assertEquals(-1, c.getInputStream().read());
+			} catch (SocketException reset) {
+				// closed by the worker
+			} finally {
+				c.close();
+			}
+
+			a.setSoTimeout(5000);
+			InputStream in = a.getInputStream();
+			while (in.read() != -1) {
+				// challenge, then closed
+			}
+		} finally {
+			a.close();
+			b.close();
+		}
+		Thread.sleep(300);
+		RemoteExecutor executor = new RemoteExecutor(Arrays.asList(address(first)), SECRET);
+		GrassJob.Task task = GrassJob.task(null, "true", new JobOutput(1024));
+		try {
+			assertEquals(0, executor.execute(shell("true"), null, null, task));
+		} finally {
+			task.close();
+		}
+	}
+
+	@Test
+	public void testAddresses() {
+		List<InetSocketAddress> addresses = RemoteExecutor.addresses("gis1:7000, gis2");
+		assertEquals(2, addresses.size());
+		assertEquals("gis1", addresses.get(0).getHostString());
+		assertEquals(7000, addresses.get(0).getPort());
+		assertEquals(GrassWorker.PORT, addresses.get(1).getPort());
+		try {
+			RemoteExecutor.addresses("gis1:port");
+			fail("invalid port");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.KVP;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+	private File directory;
+
+	@Before
+	public void before() throws IOException {
+		directory = Files.createTempDirectory("results").toFile();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(directory);
+	}
+
+	/**
+	 * Simulate a process writing a result of the provided size.
+	 */
+	private Callable<File> result(final String name, final int bytes, final AtomicInteger count) {
+		return new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				count.incrementAndGet();
+				File file = new File(Files.createTempDirectory(directory.toPath(), "job").toFile(), name + ".tif");
+				FileUtils.writeStringToFile(file, new String(new char[bytes]));
+				return file;
+			}
+		};
+	}
+
+	@Test
+	public void testKey() {
+		KVP a = new KVP();
+		a.put("dem", "abc");
+		a.put("column", 1);
+		KVP b = new KVP();
+		b.put("column", 1);
+		b.put("dem", "abc");
+		assertEquals(ResultCache.key("viewshed", a), ResultCache.key("viewshed", b));
+		b.put("max_distance", 100.0);
+		assertNotEquals(ResultCache.key("viewshed", a), ResultCache.key("viewshed", b));
+	}
+
+	@Test
+	public void testHit() throws Exception {
+		ResultCache cache = new ResultCache(new File(directory, "cache"), 1024 * 1024, 60000);
+		AtomicInteger count = new AtomicInteger();
+
+		File target = new File(directory, "a.tif");
+		cache.get("a", result("a", 100, count), target);
+		assertEquals(100, target.length());
+		target.delete();
+
+		cache.get("a", result("a", 100, count), target);
+		assertEquals(100, target.length());
+		assertEquals(1, count.get());
+		assertEquals(1, cache.hits.get());
+		assertEquals(1, cache.misses.get());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ResultCache cache = new ResultCache(new File(directory, "cache"), 2500, 60000);
+		AtomicInteger count = new AtomicInteger();
+		File target = new File(directory, "target.tif");
+		cache.get("a", result("a", 1000, count), target);
+		cache.get("b", result("b", 1000, count), target);
+		cache.get("a", result("a", 1000, count), target);
+		cache.get("c", result("c", 1000, count), target);
+
+		// b least recently used
+		assertEquals(2, cache.count());
+		assertEquals(1, cache.evictions.get());
+		cache.get("b", result("b", 1000, count), target);
+		assertEquals(4, count.get());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		ResultCache cache = new ResultCache(new File(directory, "cache"), 1024 * 1024, 0);
+		AtomicInteger count = new AtomicInteger();
+		File target = new File(directory, "target.tif");
+		cache.get("a", result("a", 100, count), target);
+		Thread.sleep(5);
+		cache.get("a", result("a", 100, count), target);
+		assertEquals(2, count.get());
+	}
+
+	@Test
+	public void testInflight() throws Exception {
+		final ResultCache cache = new ResultCache(new File(directory, "cache"), 1024 * 1024, 60000);
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		final Callable<File> slow = new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				started.countDown();
+				finish.await();
+				return result("a", 100, count).call();
+			}
+		};
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.get("a", slow, new File(directory, "first.tif"));
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		first.start();
+		started.await();
+
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.get("a", result("a", 100, count), new File(directory, "second.tif"));
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		second.start();
+		Thread.sleep(50);
+		finish.countDown();
+		first.join();
+		second.join();
+
+		assertEquals(1, count.get());
+		assertEquals(100, new File(directory, "second.tif").length());
+	}
+
+	/**
+	 * Run get in a thread, returning the thread and recording failure.
+	 */
+	private Thread request(final ResultCache cache, final Callable<File> compute, final File target,
+			final AtomicReference<Exception> failure) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.get("a", compute, target);
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testInflightUncached() throws Exception {
+		// result larger than budget is still shared with waiting requests
+		final ResultCache cache = new ResultCache(new File(directory, "cache"), 10, 60000);
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		Callable<File> slow = new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				started.countDown();
+				finish.await();
+				return result("a", 100, count).call();
+			}
+		};
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread first = request(cache, slow, new File(directory, "first.tif"), failure);
+		started.await();
+		Thread second = request(cache, result("a", 100, count), new File(directory, "second.tif"), failure);
+		Thread.sleep(50);
+		finish.countDown();
+		first.join();
+		second.join();
+
+		assertNull(failure.get());
+		assertEquals(1, count.get());
+		assertEquals(0, cache.count());
+		assertEquals(100, new File(directory, "second.tif").length());
+	}
+
+	@Test
+	public void testInflightCancelled() throws Exception {
+		// waiting request computes the result itself when the first request is cancelled
+		final ResultCache cache = new ResultCache(new File(directory, "cache"), 1024 * 1024, 60000);
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		Callable<File> cancelled = new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				started.countDown();
+				finish.await();
+				throw new InterruptedIOException("r.viewshed cancelled");
+			}
+		};
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		AtomicReference<Exception> second = new AtomicReference<Exception>();
+		Thread first = request(cache, cancelled, new File(directory, "first.tif"), failure);
+		started.await();
+		Thread waiting = request(cache, result("a", 100, count), new File(directory, "second.tif"), second);
+		Thread.sleep(50);
+		finish.countDown();
+		first.join();
+		waiting.join();
+
+		assertTrue(failure.get() instanceof InterruptedIOException);
+		assertNull(second.get());
+		assertEquals(1, count.get());
+		assertEquals(100, new File(directory, "second.tif").length());
+	}
+
+	@Test
+	public void testRemovedWhileInUse() throws Exception {
+		ResultCache cache = new ResultCache(new File(directory, "cache"), 1024 * 1024, 60000);
+		AtomicInteger count = new AtomicInteger();
+		cache.get("a", result("a", 100, count), new File(directory, "a.tif"));
+		ResultCache.Entry entry = cache.checkout("a");
+		cache.clear();
+		assertTrue(entry.file.exists());
+		cache.release(entry);
+		assertFalse(entry.file.exists());
+
+		// replaced entry keeps its own file
+		cache.get("a", result("a", 100, count), new File(directory, "a.tif"));
+		entry = cache.checkout("a");
+		cache.clear();
+		cache.get("a", result("a", 200, count), new File(directory, "a.tif"));
+		cache.release(entry);
+		assertFalse(entry.file.exists());
+		ResultCache.Entry replacement = cache.checkout("a");
+		assertEquals(200, replacement.file.length());
+		cache.release(replacement);
+	}
+}
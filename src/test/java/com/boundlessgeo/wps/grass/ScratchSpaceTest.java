@@ -0,0 +1,134 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScratchSpaceTest {
+
+	private File root;
+
+	@Before
+	public void before() throws IOException {
+		root = Files.createTempDirectory("scratch").toFile();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Test
+	public void testLifetime() throws Exception {
+		ScratchSpace scratch = new ScratchSpace(root, 60000);
+		File job = scratch.create();
+		assertTrue(job.isDirectory());
+		assertTrue(job.getName().startsWith(ScratchSpace.PREFIX));
+
+		// job without results
+		scratch.finish(job);
+		assertFalse(job.exists());
+
+		// results keep directory until released
+		job = scratch.create();
+		scratch.retain(job);
+		scratch.retain(job);
+		scratch.finish(job);
+		assertTrue(job.exists());
+		scratch.release(job);
+		assertTrue(job.exists());
+		scratch.release(job);
+		assertFalse(job.exists());
+		assertEquals(0, scratch.count());
+	}
+
+	@Test
+	public void testReap() throws Exception {
+		ScratchSpace scratch = new ScratchSpace(root, 60000);
+		File orphan = new File(root, ScratchSpace.PREFIX + "1234");
+		orphan.mkdir();
+		File other = new File(root, "other");
+		other.mkdir();
+		File running = scratch.create();
+		File result = scratch.create();
+		scratch.retain(result);
+		scratch.finish(result);
+
+		// too recent
+		assertEquals(0, scratch.reap(System.currentTimeMillis()));
+
+		long later = System.currentTimeMillis() + 120000;
+		assertEquals(2, scratch.reap(later));
+		assertFalse(orphan.exists());
+		assertFalse(result.exists());
+		assertTrue(running.exists());
+		assertTrue(other.exists());
+	}
+
+	@Test
+	public void testRoots() throws Exception {
+		File small = new File(root, "tmpfs");
+		File large = new File(root, "disk");
+		List<ScratchSpace.Root> roots = ScratchSpace.roots(small + ", " + large, "1000", "500");
+		assertEquals(2, roots.size());
+		assertEquals(1000, roots.get(0).quota);
+		assertEquals(500, roots.get(0).limit);
+		assertEquals(0, roots.get(1).quota);
+		assertEquals(0, roots.get(1).limit);
+
+		ScratchSpace scratch = new ScratchSpace(roots, 60000);
+		// small jobs in the first root, until its quota is reserved
+		File first = scratch.create(400);
+		assertEquals(small, first.getParentFile());
+		File second = scratch.create(400);
+		assertEquals(small, second.getParentFile());
+		File spilled = scratch.create(400);
+		assertEquals(large, spilled.getParentFile());
+		// large jobs skip the first root
+		File big = scratch.create(5000);
+		assertEquals(large, big.getParentFile());
+		assertEquals(6200, scratch.used());
+
+		// finished jobs free their reservation
+		scratch.finish(first);
+		assertEquals(small, scratch.create(400).getParentFile());
+		scratch.finish(second);
+		scratch.finish(spilled);
+		scratch.finish(big);
+		assertEquals(400, scratch.used());
+	}
+
+	@Test
+	public void testQuota() throws Exception {
+		List<ScratchSpace.Root> roots = ScratchSpace.roots(root.getPath(), "1000", "600");
+		ScratchSpace scratch = new ScratchSpace(roots, 60000);
+		File job = scratch.create(600);
+		try {
+			scratch.create(600);
+			fail("quota exceeded");
+		} catch (IOException expected) {
+		}
+		try {
+			scratch.create(700);
+			fail("limit exceeded");
+		} catch (IOException expected) {
+		}
+
+		// results kept count against the quota by size
+		FileUtils.writeByteArrayToFile(new File(job, "result.tif"), new byte[100]);
+		scratch.retain(job);
+		scratch.finish(job);
+		assertEquals(100, scratch.used());
+		scratch.create(600);
+		scratch.release(job);
+		assertEquals(600, scratch.used());
+	}
+}
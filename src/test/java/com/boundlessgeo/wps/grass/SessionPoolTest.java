@@ -0,0 +1,76 @@
+package com.boundlessgeo.wps.grass;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.exec.ExecuteException;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionPoolTest {
+
+	private SessionPool pool;
+
+	private Map<String, String> base;
+
+	@Before
+	public void before() {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		base = new HashMap<String, String>(System.getenv());
+		pool = new SessionPool(2, 3, base);
+	}
+
+	@After
+	public void after() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		Map<String, String> env = new HashMap<String, String>(base);
+		env.put("GISRC", "/tmp/it's here");
+
+		for (int i = 0; i < 5; i++) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			int exitValue = pool.execute(new String[] { "/bin/sh", "-c", "echo $GISRC; pwd" }, env, new File("/"),
+					5000, output);
+			assertEquals(0, exitValue);
+			assertEquals("/tmp/it's here\n/\n", output.toString());
+		}
+	}
+
+	@Test
+	public void testUnterminatedOutput() throws Exception {
+		// output not ending with a new line is followed by the completion marker
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int exitValue = pool.execute(new String[] { "printf", "50%%" }, base, null, 5000, output);
+		assertEquals(0, exitValue);
+		assertEquals("50%\n", output.toString());
+		assertEquals(0, pool.execute(new String[] { "true" }, base, null, 5000, null));
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		try {
+			pool.execute(new String[] { "/bin/sh", "-c", "exit 3" }, base, null, 5000, null);
+			fail("expected failure");
+		} catch (ExecuteException expected) {
+			assertEquals(3, expected.getExitValue());
+		}
+		// pool still usable
+		assertEquals(0, pool.execute(new String[] { "true" }, base, null, 5000, null));
+	}
+
+	@Test(expected = ExecuteException.class)
+	public void testTimeout() throws Exception {
+		pool.execute(new String[] { "sleep", "5" }, base, null, 100, null);
+	}
+}